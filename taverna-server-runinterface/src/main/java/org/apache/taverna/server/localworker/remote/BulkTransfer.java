@@ -0,0 +1,175 @@
+/*
+ */
+package org.apache.taverna.server.localworker.remote;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Describes a one-shot bulk data transfer channel offered by a worker. The
+ * bytes do not travel over RMI at all; instead, the holder of this descriptor
+ * connects to a dedicated socket on the worker, presents the ticket, and then
+ * either reads or writes the data directly. Each descriptor may be used
+ * exactly once, and only for a limited time after it was issued.
+ * 
+ * @author Donal Fellows
+ * @see RemoteFile#openReadChannel(long, long)
+ * @see RemoteFile#openWriteChannel(boolean)
+ * @see RemoteDirectory#openZipChannel(int)
+ */
+public final class BulkTransfer implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/** How long to wait for the worker to accept the connection. */
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	private final String host;
+	private final int port;
+	private final byte[] ticket;
+	private final long length;
+
+	/**
+	 * @param host
+	 *            The address of the host serving the transfer.
+	 * @param port
+	 *            The port on that host serving the transfer.
+	 * @param ticket
+	 *            The secret that identifies this particular transfer.
+	 * @param length
+	 *            The number of bytes that will be sent, or -1 if that is not
+	 *            known in advance (or the transfer is in the other direction).
+	 */
+	public BulkTransfer(@Nonnull String host, int port, @Nonnull byte[] ticket,
+			long length) {
+		this.host = host;
+		this.port = port;
+		this.ticket = ticket.clone();
+		this.length = length;
+	}
+
+	/**
+	 * @return The number of bytes that will be sent by the worker, or -1 if
+	 *         that is not known.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			s.getOutputStream().write(ticket);
+			s.getOutputStream().flush();
+			return s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connect to the worker and start receiving the data.
+	 * 
+	 * @return A stream that delivers the data. Closing it closes the channel.
+	 * @throws IOException
+	 *             If the connection cannot be made.
+	 */
+	@Nonnull
+	public InputStream openInputStream() throws IOException {
+		return connect().getInputStream();
+	}
+
+	/**
+	 * Connect to the worker and start sending data to it.
+	 * 
+	 * @return A stream that accepts the data. Closing the stream signals the
+	 *         end of the data and waits for the worker to confirm that it has
+	 *         committed exactly that many bytes to disk.
+	 * @throws IOException
+	 *             If the connection cannot be made.
+	 */
+	@Nonnull
+	public OutputStream openOutputStream() throws IOException {
+		return new Upload(connect());
+	}
+
+	/**
+	 * The sending side of a bulk upload. Counts what is written so that it can
+	 * check that the worker has committed exactly that much.
+	 */
+	private static class Upload extends OutputStream {
+		private final Socket socket;
+		private final OutputStream out;
+		private long count;
+		private boolean closed;
+
+		Upload(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				out.flush();
+				socket.shutdownOutput();
+				InputStream in = socket.getInputStream();
+				long written = 0;
+				for (int i = 0; i < 8; i++) {
+					int b = in.read();
+					if (b < 0)
+						throw new IOException(
+								"worker did not confirm completion of upload");
+					written = (written << 8) | b;
+				}
+				if (written != count)
+					throw new IOException("worker wrote " + written
+							+ " bytes but " + count + " were sent");
+			} finally {
+				socket.close();
+			}
+		}
+	}
+}
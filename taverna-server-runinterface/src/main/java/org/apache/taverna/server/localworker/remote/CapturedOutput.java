@@ -0,0 +1,92 @@
+/*
+ */
+package org.apache.taverna.server.localworker.remote;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A section of what the workflow engine of a run has written to its standard
+ * output or standard error. Positions are byte offsets from the start of the
+ * stream, so a client can follow the output as it grows by asking for the
+ * section that starts where the previous one ended.
+ * 
+ * @author Donal Fellows
+ * @see RemoteSingleRun#readOutput(String, long, int)
+ */
+public final class CapturedOutput implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final long offset;
+	private final byte[] contents;
+	private final long totalLength;
+	private final boolean complete;
+
+	/**
+	 * @param offset
+	 *            Where in the stream the section starts.
+	 * @param contents
+	 *            The bytes of the section.
+	 * @param totalLength
+	 *            How many bytes have been written to the stream so far.
+	 * @param complete
+	 *            Whether the stream has been closed, so that no more bytes
+	 *            will be written to it.
+	 */
+	public CapturedOutput(long offset, @Nonnull byte[] contents,
+			long totalLength, boolean complete) {
+		this.offset = offset;
+		this.contents = contents;
+		this.totalLength = totalLength;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return Where in the stream the section starts. This may be later than
+	 *         was asked for if the earlier part of the stream is no longer
+	 *         available.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/** @return The bytes of the section, encoded as UTF-8. */
+	@Nonnull
+	public byte[] getContents() {
+		return contents;
+	}
+
+	/** @return Where in the stream the next section will start. */
+	public long getNextOffset() {
+		return offset + contents.length;
+	}
+
+	/** @return How many bytes have been written to the stream so far. */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * @return Whether the stream has been closed. Once it has, and the section
+	 *         reaches the end of it, there is nothing more to read.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ */
+package org.apache.taverna.server.localworker.remote;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The attributes of an entry in a directory, as returned by a bulk listing.
+ * Unlike a {@link RemoteDirectoryEntry}, this is a plain value that is copied
+ * to the caller, so reading its attributes needs no further communication.
+ * 
+ * @author Donal Fellows
+ * @see RemoteDirectory#list(int)
+ */
+public final class DirectoryEntryInfo implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final String name;
+	private final String path;
+	private final boolean directory;
+	private final long size;
+	private final long modificationTime;
+
+	/**
+	 * @param name
+	 *            The name of the entry.
+	 * @param path
+	 *            The name of the entry relative to the directory that was
+	 *            listed, with <tt>/</tt> separating the parts.
+	 * @param directory
+	 *            Whether the entry is a directory.
+	 * @param size
+	 *            The length of the file, in bytes; ignored for directories.
+	 * @param modificationTime
+	 *            When the entry was last modified, in milliseconds since the
+	 *            epoch.
+	 */
+	public DirectoryEntryInfo(@Nonnull String name, @Nonnull String path,
+			boolean directory, long size, long modificationTime) {
+		this.name = name;
+		this.path = path;
+		this.directory = directory;
+		this.size = directory ? -1 : size;
+		this.modificationTime = modificationTime;
+	}
+
+	/** @return The name of the entry. */
+	@Nonnull
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The name of the entry relative to the directory that was listed.
+	 *         For the immediate contents of that directory, this is the same
+	 *         as the name.
+	 */
+	@Nonnull
+	public String getPath() {
+		return path;
+	}
+
+	/** @return Whether the entry is a directory (as opposed to a file). */
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	/** @return The length of the file, in bytes, or -1 for a directory. */
+	public long getSize() {
+		return size;
+	}
+
+	/** @return When the entry was last modified. */
+	@Nonnull
+	public Date getModificationDate() {
+		return new Date(modificationTime);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ */
+package org.apache.taverna.server.localworker.remote;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A description of the value produced on an output port of a workflow run, or
+ * of some element of that value. The whole tree for a port is computed by the
+ * worker in one pass over the <tt>out</tt> directory and sent back as a single
+ * object, so that describing the outputs of a run does not need an RMI call
+ * per file.
+ * 
+ * @author Donal Fellows
+ * @see RemoteSingleRun#getOutputManifest(List)
+ */
+public final class OutputValue implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final List<OutputValue> NO_CONTENTS = emptyList();
+
+	/** The kinds of value. */
+	public enum Type {
+		/** There is no value. */
+		ABSENT,
+		/** The value is a single file. */
+		LEAF,
+		/** The value is an error document. */
+		ERROR,
+		/** The value is a directory holding a list of values. */
+		LIST
+	}
+
+	private final Type type;
+	private final String path;
+	private final long byteLength;
+	private final String contentType;
+	private final List<OutputValue> contents;
+	private final int length;
+
+	private OutputValue(Type type, String path, long byteLength,
+			String contentType, List<OutputValue> contents, int length) {
+		this.type = type;
+		this.path = path;
+		this.byteLength = byteLength;
+		this.contentType = contentType;
+		this.contents = contents;
+		this.length = length;
+	}
+
+	/**
+	 * @return A description of a missing value.
+	 */
+	@Nonnull
+	public static OutputValue absent() {
+		return new OutputValue(Type.ABSENT, null, -1, null, NO_CONTENTS, 0);
+	}
+
+	/**
+	 * @param path
+	 *            The full name of the file, relative to the working directory.
+	 * @param byteLength
+	 *            The size of the file.
+	 * @param contentType
+	 *            The MIME type of the file's contents.
+	 * @return A description of a single-file value.
+	 */
+	@Nonnull
+	public static OutputValue leaf(@Nonnull String path, long byteLength,
+			@Nonnull String contentType) {
+		return new OutputValue(Type.LEAF, path, byteLength, contentType,
+				NO_CONTENTS, 0);
+	}
+
+	/**
+	 * @param path
+	 *            The full name of the error file, relative to the working
+	 *            directory.
+	 * @param byteLength
+	 *            The size of the error file.
+	 * @return A description of an error value.
+	 */
+	@Nonnull
+	public static OutputValue error(@Nonnull String path, long byteLength) {
+		return new OutputValue(Type.ERROR, path, byteLength, null,
+				NO_CONTENTS, 0);
+	}
+
+	/**
+	 * @param path
+	 *            The full name of the directory, relative to the working
+	 *            directory.
+	 * @param contents
+	 *            The elements of the list, in order. Missing elements are
+	 *            {@linkplain #absent() absent}.
+	 * @param length
+	 *            The index (counting from 1) of the last element that is not
+	 *            absent.
+	 * @return A description of a list value.
+	 */
+	@Nonnull
+	public static OutputValue list(@Nonnull String path,
+			@Nonnull List<OutputValue> contents, int length) {
+		return new OutputValue(Type.LIST, path, -1, null,
+				new ArrayList<>(contents), length);
+	}
+
+	/** @return What kind of value this is. */
+	@Nonnull
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The full name of the file or directory holding the value,
+	 *         relative to the working directory, or <tt>null</tt> if the value
+	 *         is absent.
+	 */
+	@Nullable
+	public String getPath() {
+		return path;
+	}
+
+	/** @return The size of a leaf or error value, or -1 for other values. */
+	public long getByteLength() {
+		return byteLength;
+	}
+
+	/** @return The MIME type of a leaf value, or <tt>null</tt> otherwise. */
+	@Nullable
+	public String getContentType() {
+		return contentType;
+	}
+
+	/** @return The elements of a list value; empty for other values. */
+	@Nonnull
+	public List<OutputValue> getContents() {
+		return unmodifiableList(contents);
+	}
+
+	/** @return The length of a list value, or 0 for other values. */
+	public int getLength() {
+		return length;
+	}
+}
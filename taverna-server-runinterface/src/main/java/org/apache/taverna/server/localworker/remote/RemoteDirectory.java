@@ -21,8 +21,10 @@ package org.apache.taverna.server.localworker.remote;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Represents a directory that is the working directory of a workflow run, or a
@@ -43,6 +45,63 @@ public interface RemoteDirectory extends RemoteDirectoryEntry {
 	public Collection<RemoteDirectoryEntry> getContents()
 			throws RemoteException, IOException;
 
+	/**
+	 * Lists the contents of the directory, together with their attributes, in
+	 * a single call. No remote handles are created for the entries; use
+	 * {@link #getEntry(String)} to get one when it is needed.
+	 * 
+	 * @param depth
+	 *            How many levels of the directory tree to list. 1 lists just
+	 *            the contents of this directory, 2 also lists the contents of
+	 *            its sub-directories, and so on. Must be at least 1.
+	 * @return The attributes of the entries. The contents of a directory are
+	 *         listed after the directory itself.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If anything goes wrong with listing the directory.
+	 */
+	@Nonnull
+	public List<DirectoryEntryInfo> list(int depth) throws RemoteException,
+			IOException;
+
+	/**
+	 * Gets the handle to an entry in this directory.
+	 * 
+	 * @param name
+	 *            The name of the entry.
+	 * @return The handle to the entry, or <tt>null</tt> if there is no file or
+	 *         directory with that name.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the name is not a legal filename.
+	 */
+	@Nullable
+	public RemoteDirectoryEntry getEntry(@Nonnull String name)
+			throws RemoteException, IOException;
+
+	/**
+	 * Gets the handle to an entry somewhere below this directory, looking it
+	 * up directly rather than by listing each directory on the way.
+	 * 
+	 * @param path
+	 *            The name of the entry relative to this directory, with
+	 *            <tt>/</tt> separating the parts. Empty parts are ignored; no
+	 *            part may be <tt>.</tt> or <tt>..</tt>.
+	 * @return The handle to the entry (this directory itself if the path has
+	 *         no parts), or <tt>null</tt> if there is no file or directory with
+	 *         that name.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If a part of the path would lead out of this directory, or
+	 *             if a part other than the last is not a directory.
+	 */
+	@Nullable
+	public RemoteDirectoryEntry resolve(@Nonnull String path)
+			throws RemoteException, IOException;
+
 	/**
 	 * Creates a sub-directory of this directory.
 	 * 
@@ -72,4 +131,25 @@ public interface RemoteDirectory extends RemoteDirectoryEntry {
 	@Nonnull
 	public RemoteFile makeEmptyFile(@Nonnull String name)
 			throws RemoteException, IOException;
+
+	/**
+	 * Builds a ZIP archive of the contents of this directory (and its
+	 * sub-directories) and streams it over a dedicated channel. The archive is
+	 * produced by the worker, close to the data.
+	 * 
+	 * @param compressionLevel
+	 *            How hard to compress the entries, from 1 (fastest) to 9
+	 *            (smallest), or -1 for the default. A level of 0 causes the
+	 *            entries to be stored without compression at all, which is the
+	 *            best choice for data that is already compressed.
+	 * @return The descriptor of the channel that the archive will be
+	 *         delivered over.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong setting up the channel.
+	 */
+	@Nonnull
+	public BulkTransfer openZipChannel(int compressionLevel)
+			throws RemoteException, IOException;
 }
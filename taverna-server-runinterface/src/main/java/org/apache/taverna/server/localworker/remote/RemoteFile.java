@@ -48,6 +48,27 @@ public interface RemoteFile extends RemoteDirectoryEntry {
 	byte[] getContents(int offset, int length) throws RemoteException,
 			IOException;
 
+	/**
+	 * Read from the file in bulk. Rather than returning the bytes directly,
+	 * this arranges for them to be streamed over a dedicated channel, which is
+	 * much more efficient for large files than repeated calls to
+	 * {@link #getContents(int, int)}.
+	 * 
+	 * @param offset
+	 *            Where in the file to start reading the bytes from.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end".
+	 * @return The descriptor of the channel that the bytes will be delivered
+	 *         over.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong setting up the channel.
+	 */
+	@Nonnull
+	BulkTransfer openReadChannel(long offset, long length)
+			throws RemoteException, IOException;
+
 	/**
 	 * Write the data to the file, totally replacing what was there before.
 	 * 
@@ -73,6 +94,27 @@ public interface RemoteFile extends RemoteDirectoryEntry {
 	void appendContents(@Nonnull byte[] data) throws RemoteException,
 			IOException;
 
+	/**
+	 * Write to the file in bulk. Rather than taking the bytes directly, this
+	 * arranges for them to be streamed over a dedicated channel, which is much
+	 * more efficient for large files than repeated calls to
+	 * {@link #appendContents(byte[])}. The file is synchronized to disk when
+	 * the sender closes the channel.
+	 * 
+	 * @param append
+	 *            Whether to add to the end of the file, or to replace what
+	 *            was there before.
+	 * @return The descriptor of the channel that the bytes are to be sent
+	 *         over.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong setting up the channel.
+	 */
+	@Nonnull
+	BulkTransfer openWriteChannel(boolean append) throws RemoteException,
+			IOException;
+
 	/**
 	 * @return The length of the file, in bytes.
 	 * @throws RemoteException
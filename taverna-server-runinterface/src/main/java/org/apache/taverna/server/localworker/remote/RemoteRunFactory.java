@@ -20,6 +20,9 @@ package org.apache.taverna.server.localworker.remote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.taverna.server.localworker.server.UsageRecordReceiver;
@@ -33,6 +36,14 @@ import javax.annotation.Nullable;
  * @author Donal Fellows
  */
 public interface RemoteRunFactory extends Remote {
+	/**
+	 * What a factory process writes as a line on its standard output,
+	 * followed by the name it is registered under, once it has registered
+	 * itself and is ready to make runs. This lets whoever started it know
+	 * that it can be looked up, without having to poll the registry.
+	 */
+	String READY_ANNOUNCEMENT = "registered RemoteRunFactory with ID ";
+
 	/**
 	 * Makes a workflow run that will process a particular workflow document.
 	 * 
@@ -94,4 +105,53 @@ public interface RemoteRunFactory extends Remote {
 	 *             If anything goes wrong with the communication.
 	 */
 	int countOperatingRuns() throws RemoteException;
+
+	/**
+	 * Gets the states of many workflow runs at once.
+	 * 
+	 * @param ids
+	 *            The UUIDs of the runs to describe.
+	 * @return A map from run UUID to state. Runs that this factory does not
+	 *         know about (or that have been destroyed) are omitted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	Map<String, RemoteStatus> getRunStates(@Nonnull List<String> ids)
+			throws RemoteException;
+
+	/**
+	 * Destroys many workflow runs at once.
+	 * 
+	 * @param ids
+	 *            The UUIDs of the runs to destroy.
+	 * @return The UUIDs of the runs that this factory destroyed. Runs that it
+	 *         does not know about, or whose destruction failed, are omitted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	Set<String> destroyRuns(@Nonnull List<String> ids) throws RemoteException;
+
+	/**
+	 * Gets a count of the {@linkplain RemoteSingleRun workflow runs} that this
+	 * factory knows about, broken down by state.
+	 * 
+	 * @return A map from state to the number of runs in that state. States
+	 *         with no runs are omitted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	Map<RemoteStatus, Integer> countRunsByState() throws RemoteException;
+
+	/**
+	 * Gets how much memory the factory process itself is using. This does not
+	 * include the memory used by the processes executing the workflow runs.
+	 * 
+	 * @return The number of bytes of heap in use by the factory process.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	long getMemoryUsed() throws RemoteException;
 }
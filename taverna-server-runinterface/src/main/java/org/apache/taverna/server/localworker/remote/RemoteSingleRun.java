@@ -18,6 +18,7 @@ package org.apache.taverna.server.localworker.remote;
  * limitations under the License.
  */
 
+import java.io.IOException;
 import java.net.URL;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -154,6 +155,49 @@ public interface RemoteSingleRun extends Remote {
 	@Nonnull
 	public RemoteDirectory getWorkingDirectory() throws RemoteException;
 
+	/**
+	 * Describe the values on some output ports of the run, as written to the
+	 * <tt>out</tt> directory. Once the run has finished, the descriptions are
+	 * only computed once.
+	 * 
+	 * @param ports
+	 *            The names of the output ports to describe.
+	 * @return The descriptions of the values, in the same order as the ports.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the output directory cannot be read.
+	 */
+	@Nonnull
+	public List<OutputValue> getOutputManifest(@Nonnull List<String> ports)
+			throws RemoteException, IOException;
+
+	/**
+	 * Read part of what the workflow engine has written to its standard
+	 * output or standard error. Unlike the <tt>stdout</tt> and <tt>stderr</tt>
+	 * properties of the default listener, which only describe the most recent
+	 * output, this can reach anything the engine has written.
+	 * 
+	 * @param stream
+	 *            Which stream to read; either <tt>stdout</tt> or
+	 *            <tt>stderr</tt>.
+	 * @param offset
+	 *            Where in the stream to start reading, in bytes. If negative,
+	 *            this counts back from the end of what has been written so
+	 *            far, so that the tail of the stream can be read.
+	 * @param length
+	 *            The maximum number of bytes to read; -1 for "as much as
+	 *            possible". The worker may return less than asked for.
+	 * @return The section of the stream.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the stream is unknown or cannot be read.
+	 */
+	@Nonnull
+	public CapturedOutput readOutput(@Nonnull String stream, long offset,
+			int length) throws RemoteException, IOException;
+
 	/**
 	 * @return The list of listener instances attached to the run.
 	 * @throws RemoteException
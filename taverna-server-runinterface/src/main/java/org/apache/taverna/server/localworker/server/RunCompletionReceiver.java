@@ -0,0 +1,43 @@
+/*
+ */
+package org.apache.taverna.server.localworker.server;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface exported by (part of) the webapp to allow processes it creates to
+ * tell it that a workflow run has finished, so that it does not need to keep
+ * asking. Each receiver is specific to a single run. A worker that is given a
+ * {@link UsageRecordReceiver} that also implements this interface will call
+ * it once the run's usage record has been delivered.
+ * 
+ * @author Donal Fellows
+ */
+public interface RunCompletionReceiver extends Remote {
+	/**
+	 * Called to say that the workflow run has terminated.
+	 * 
+	 * @param exitCode
+	 *            The exit code of the workflow engine process.
+	 * @throws RemoteException
+	 *             if anything goes wrong.
+	 */
+	void runCompleted(int exitCode) throws RemoteException;
+}
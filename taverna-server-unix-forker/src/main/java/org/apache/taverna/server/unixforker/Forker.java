@@ -18,6 +18,9 @@ package org.apache.taverna.server.unixforker;
  * limitations under the License.
  */
 
+import static java.lang.Integer.getInteger;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.lang.System.err;
 import static java.lang.System.getProperty;
 import static java.lang.System.in;
@@ -25,6 +28,7 @@ import static java.lang.System.out;
 import static java.util.Arrays.asList;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -32,20 +36,61 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * A simple class that forks off processes when asked to over its standard
  * input. The one complication is that it forks them off as other users, through
  * the use of the <tt>sudo</tt> utility. It is Unix-specific.
+ * <p>
+ * The output of the forked processes is relayed, a line at a time, by a small
+ * fixed set of threads, sized with the <tt>forker.threads</tt> property; each
+ * thread looks after many processes, copying whatever they have written in
+ * blocks. The pipes to a subprocess cannot be put in non-blocking mode, so
+ * the threads poll them, backing off while there is nothing to copy. The
+ * <tt>forker.sudo</tt> property says what program to run instead of
+ * <tt>sudo</tt>.
+ * <p>
+ * A request of the form <tt>-kill UUID</tt> kills off the subprocess that was
+ * started with that UUID, if it is still running.
  * 
  * @author Donal Fellows
  */
-public class Forker extends Thread {
+public class Forker {
 	private static String password;
 	private static BufferedReader br;
+	/** How many threads to use by default to relay the subprocesses' output. */
+	private static final int DEFAULT_THREADS = 2;
+	/** How much to read from a subprocess at once. */
+	private static final int BUFFER_SIZE = 8192;
+	/** How long a line may get before it is relayed without its end. */
+	private static final int MAX_LINE = 65536;
+	/**
+	 * The longest a relay thread waits when there is nothing to copy, in ms.
+	 * The wait doubles from 1ms on each quiet pass, so this is only reached
+	 * once all the subprocesses have been quiet for a while; a new subprocess
+	 * cuts it short.
+	 */
+	private static final long MAX_IDLE_SLEEP = 500;
+	private static final Relay[] relays;
+	/** How many subprocesses are still being looked after. */
+	private static final AtomicInteger live = new AtomicInteger();
+	/** The request to kill off a subprocess. */
+	static final String KILL_REQUEST = "-kill";
+	/** The subprocesses still being looked after, by their UUID. */
+	private static final ConcurrentMap<String, Forker> byName = new ConcurrentHashMap<>();
+	static {
+		relays = new Relay[max(1, getInteger("forker.threads", DEFAULT_THREADS))];
+		for (int i = 0; i < relays.length; i++)
+			relays[i] = new Relay(i);
+	}
 
 	/**
 	 * Helper to make reading a password from a file clearer. The password must
@@ -106,20 +151,43 @@ public class Forker extends Thread {
 		String line = br.readLine();
 		if (line == null)
 			return false;
-		List<String> vals = asList(line.split("[ \t]+"));
-		if (vals.size() != 2) {
+		String[] vals = line.split("[ \t]+");
+		if (vals.length == 2 && vals[0].equals(KILL_REQUEST)) {
+			kill(vals[1]);
+			return true;
+		}
+		ProcessBuilder pb = command(line, args);
+		if (pb == null) {
 			out.println("wrong # values: must be \"username UUID\"");
 			return true;
 		}
+		new Forker(pb);
+		return true;
+	}
+
+	/**
+	 * Work out what to run for a request.
+	 * 
+	 * @param request
+	 *            The request, which should be a user name and a UUID
+	 *            separated by whitespace.
+	 * @param args
+	 *            The arguments to use when running the other program.
+	 * @return How to run the other program as the user, or <tt>null</tt> if
+	 *         the request is malformed.
+	 */
+	@Nullable
+	static ProcessBuilder command(@Nonnull String request, String[] args) {
+		List<String> vals = asList(request.split("[ \t]+"));
+		if (vals.size() != 2)
+			return null;
 		ProcessBuilder pb = new ProcessBuilder();
-		pb.command()
-				.addAll(asList("sudo", "-u", vals.get(0), "-S", "-H", "--"));
+		pb.command().addAll(
+				asList(getProperty("forker.sudo", "sudo"), "-u", vals.get(0),
+						"-S", "-H", "--"));
 		pb.command().addAll(asList(args));
 		pb.command().add(vals.get(1));
-		Forker f = new Forker(pb);
-		f.setDaemon(true);
-		f.start();
-		return true;
+		return pb;
 	}
 
 	/**
@@ -149,73 +217,261 @@ public class Forker extends Thread {
 		}
 	}
 
+	/**
+	 * Kill off a subprocess.
+	 * 
+	 * @param name
+	 *            The UUID it was started with.
+	 * @return Whether there was such a subprocess still running.
+	 */
+	static boolean kill(@Nonnull String name) {
+		Forker f = byName.get(name);
+		if (f == null) {
+			out.println("no such subprocess: " + name);
+			return false;
+		}
+		out.println("Killing subprocess: " + name);
+		f.process.destroy();
+		return true;
+	}
+
+	/** @return How many subprocesses are still having their output relayed. */
+	static int getLiveCount() {
+		return live.get();
+	}
+
 	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-
 
+	private final String name;
+	private final Process process;
+	private final Stream stdout;
+	private final Stream stderr;
+
 	public Forker(ProcessBuilder pb) throws IOException {
 		out.println("Starting subprocess: " + pb.command());
-		final Process p = pb.start();
-		abstract class ProcessAttachedDaemon extends Thread {
-			public ProcessAttachedDaemon() {
-				setDaemon(true);
-				start();
+		name = pb.command().get(pb.command().size() - 1);
+		process = pb.start();
+		try {
+			interactWithSudo(process.getOutputStream());
+		} catch (IOException e) {
+			// Still relay what it says about it
+			e.printStackTrace(err);
+			process.destroy();
+		}
+		stdout = new Stream("Subprocess(out):", process.getInputStream());
+		stderr = new Stream("Subprocess(err):", process.getErrorStream());
+		live.incrementAndGet();
+		byName.put(name, this);
+		Relay relay = relays[0];
+		for (Relay r : relays)
+			if (r.size() < relay.size())
+				relay = r;
+		relay.add(this);
+	}
+
+	protected void interactWithSudo(OutputStream os) throws IOException {
+		try {
+			if (password != null) {
+				OutputStreamWriter osw = new OutputStreamWriter(os);
+				osw.write(password + "\n");
+				osw.flush();
 			}
+		} finally {
+			os.close();
+		}
+	}
 
-			abstract void act() throws Exception;
+	/**
+	 * Copy whatever the subprocess has written since the last time.
+	 * 
+	 * @param buffer
+	 *            Where to read into.
+	 * @param lines
+	 *            Where to put the complete lines that are to be relayed.
+	 * @return Whether anything was copied, or the subprocess finished.
+	 */
+	private boolean pump(byte[] buffer, ByteArrayOutputStream lines) {
+		// Check first, so everything written before it exited gets copied
+		boolean exited;
+		try {
+			process.exitValue();
+			exited = true;
+		} catch (IllegalThreadStateException e) {
+			exited = false;
+		}
+		boolean copied = stdout.pump(buffer, lines, exited);
+		copied = stderr.pump(buffer, lines, exited) || copied;
+		if (!copied) {
+			// Quiet for a pass, so relay anything (e.g., a prompt) left over
+			stdout.flush(lines);
+			stderr.flush(lines);
+		}
+		return copied;
+	}
 
-			@Override
-			public final void run() {
-				try {
-					act();
-					p.waitFor();
-				} catch (InterruptedException e) {
-					// Just drop
-				} catch (Exception e) {
-					p.destroy();
-					e.printStackTrace(err);
-				}
-			}
+	private boolean isFinished() {
+		return stdout.closed && stderr.closed;
+	}
+
+	private void abandon() {
+		process.destroy();
+		stdout.close();
+		stderr.close();
+	}
+
+	/**
+	 * One of the output streams of a subprocess, together with any part of a
+	 * line read from it but not yet relayed.
+	 */
+	private static class Stream {
+		private final byte[] header;
+		private final InputStream stream;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		boolean closed;
+
+		Stream(String header, InputStream stream) {
+			this.header = header.getBytes();
+			this.stream = stream;
 		}
-		new ProcessAttachedDaemon() {
-			@Override
-			void act() throws Exception {
-				copyFromSudo("Subprocess(out):", p.getInputStream());
-			}
-		};
-		new ProcessAttachedDaemon() {
-			@Override
-			void act() throws Exception {
-				copyFromSudo("Subprocess(err):", p.getErrorStream());
+
+		boolean pump(byte[] buffer, ByteArrayOutputStream lines,
+				boolean exited) {
+			if (closed)
+				return false;
+			try {
+				int available = stream.available();
+				if (available > 0) {
+					int len = stream.read(buffer, 0,
+							min(available, buffer.length));
+					if (len > 0) {
+						split(buffer, len, lines);
+						return true;
+					}
+				} else if (!exited)
+					return false;
+			} catch (IOException e) {
+				// Treat as the end of the stream
 			}
-		};
-		new ProcessAttachedDaemon() {
-			@Override
-			void act() throws Exception {
-				interactWithSudo(p.getOutputStream());
+			if (line.size() > 0)
+				emit(lines);
+			close();
+			return true;
+		}
+
+		private void split(byte[] buffer, int len, ByteArrayOutputStream lines) {
+			int start = 0;
+			for (int i = 0; i < len; i++)
+				if (buffer[i] == '\n') {
+					line.write(buffer, start, i - start);
+					emit(lines);
+					start = i + 1;
+				}
+			line.write(buffer, start, len - start);
+			if (line.size() > MAX_LINE)
+				emit(lines);
+		}
+
+		void flush(ByteArrayOutputStream lines) {
+			if (line.size() > 0)
+				emit(lines);
+		}
+
+		private void emit(ByteArrayOutputStream lines) {
+			lines.write(header, 0, header.length);
+			lines.write(line.toByteArray(), 0, line.size());
+			lines.write('\n');
+			line.reset();
+		}
+
+		void close() {
+			closed = true;
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Ignore; nothing we can do about it
 			}
-		};
+		}
 	}
 
-	protected void interactWithSudo(OutputStream os) throws Exception {
-		if (password != null) {
-			OutputStreamWriter osw = new OutputStreamWriter(os);
-			osw.write(password + "\n");
-			osw.flush();
+	/**
+	 * A thread that relays the output of a group of subprocesses. The output
+	 * of all of them that is ready on one pass is written in one go.
+	 */
+	private static class Relay extends Thread {
+		private final List<Forker> children = new ArrayList<>();
+		private boolean added;
+
+		Relay(int index) {
+			super("forker relay " + index);
+			setDaemon(true);
+			start();
 		}
-		os.close();
-	}
 
-	protected void copyFromSudo(String header, InputStream sudoStream)
-			throws Exception {
-		int b = '\n';
-		while (true) {
-			if (b == '\n')
-				out.print(header);
-			b = sudoStream.read();
-			if (b == -1)
-				break;
-			out.write(b);
-			out.flush();
-		}
-		sudoStream.close();
+		synchronized void add(Forker child) {
+			children.add(child);
+			added = true;
+			notifyAll();
+		}
+
+		synchronized int size() {
+			return children.size();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			ByteArrayOutputStream lines = new ByteArrayOutputStream();
+			List<Forker> current = new ArrayList<>();
+			long idle = 0;
+			try {
+				while (true) {
+					synchronized (this) {
+						while (children.isEmpty())
+							wait();
+						current.clear();
+						current.addAll(children);
+					}
+					boolean busy = false;
+					for (Forker child : current) {
+						try {
+							busy = child.pump(buffer, lines) || busy;
+						} catch (RuntimeException e) {
+							e.printStackTrace(err);
+							child.abandon();
+						}
+						if (child.isFinished()) {
+							synchronized (this) {
+								children.remove(child);
+							}
+							byName.remove(child.name, child);
+							live.decrementAndGet();
+						}
+					}
+					if (lines.size() > 0) {
+						synchronized (out) {
+							lines.writeTo(out);
+							out.flush();
+						}
+						lines.reset();
+					}
+					if (busy)
+						idle = 0;
+					else {
+						idle = min(MAX_IDLE_SLEEP, max(1, idle * 2));
+						synchronized (this) {
+							if (!added)
+								wait(idle);
+							if (added)
+								idle = 0;
+							added = false;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// Just drop
+			} catch (IOException e) {
+				e.printStackTrace(err);
+			}
+		}
 	}
 }
@@ -0,0 +1,171 @@
+/*
+ */
+package org.apache.taverna.server.unixforker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.UUID.randomUUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Forks a few hundred trivial subprocesses through a fake <tt>sudo</tt>, and
+ * checks that their output is all relayed without the forker needing a thread
+ * per subprocess. Also checks that a subprocess can be killed on request.
+ * 
+ * @author Donal Fellows
+ */
+public class ForkerStressTest {
+	private static final int CHILDREN = 300;
+	private static final long TIMEOUT = 60000;
+	/** How long the whole batch may take; a few seconds on a normal machine. */
+	private static final long BUDGET = 20000;
+	private static final String[] PROGRAM = { "/bin/echo", "hello from" };
+
+	private File shim;
+	private PrintStream realOut;
+	private ByteArrayOutputStream captured;
+
+	@Before
+	public void setUp() throws IOException {
+		assumeTrue(new File("/bin/sh").canExecute()
+				&& new File(PROGRAM[0]).canExecute());
+		// Skip sudo's options, and just run the command as ourselves
+		shim = File.createTempFile("sudo", ".sh");
+		try (FileWriter w = new FileWriter(shim)) {
+			w.write("#!/bin/sh\n"
+					+ "while [ \"$1\" != \"--\" ]; do shift; done\n"
+					+ "shift\nexec \"$@\"\n");
+		}
+		assertTrue(shim.setExecutable(true));
+		System.setProperty("forker.sudo", shim.getAbsolutePath());
+		realOut = System.out;
+		captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true));
+	}
+
+	@After
+	public void tearDown() {
+		if (realOut != null)
+			System.setOut(realOut);
+		System.clearProperty("forker.sudo");
+		if (shim != null)
+			shim.delete();
+	}
+
+	@Test
+	public void malformedRequest() {
+		assertNull(Forker.command("nobody", PROGRAM));
+		assertNotNull(Forker.command("nobody " + randomUUID(), PROGRAM));
+	}
+
+	@Test
+	public void manyChildren() throws Exception {
+		int baseline = countThreads();
+		int peak = baseline;
+		List<String> ids = new ArrayList<>();
+		long start = currentTimeMillis();
+		for (int i = 0; i < CHILDREN; i++) {
+			String id = randomUUID().toString();
+			ids.add(id);
+			new Forker(Forker.command("nobody " + id, PROGRAM));
+			peak = Math.max(peak, countThreads());
+		}
+		while (Forker.getLiveCount() > 0
+				&& currentTimeMillis() - start < TIMEOUT) {
+			peak = Math.max(peak, countThreads());
+			Thread.sleep(10);
+		}
+		long elapsed = currentTimeMillis() - start;
+		assertEquals("subprocesses still running", 0, Forker.getLiveCount());
+
+		Set<String> seen = new HashSet<>();
+		for (String line : captured.toString().split("\n"))
+			if (line.startsWith("Subprocess(out):" + PROGRAM[1] + " "))
+				seen.add(line.substring(line.lastIndexOf(' ') + 1));
+		assertEquals(new HashSet<>(ids), seen);
+
+		// Two relay threads by default; allow some slack for the JVM
+		assertTrue("too many threads: " + (peak - baseline),
+				peak - baseline <= 8);
+		assertTrue("too slow: " + elapsed + "ms", elapsed < BUDGET);
+	}
+
+	@Test
+	public void killRequest() throws Exception {
+		String id = randomUUID().toString();
+		new Forker(Forker.command("nobody " + id, new String[] { "/bin/sh",
+				"-c", "exec sleep 60" }));
+		assertEquals(1, Forker.getLiveCount());
+		assertTrue(Forker.kill(id));
+		long start = currentTimeMillis();
+		while (Forker.getLiveCount() > 0
+				&& currentTimeMillis() - start < TIMEOUT)
+			Thread.sleep(10);
+		assertEquals("subprocess still running", 0, Forker.getLiveCount());
+		assertFalse(Forker.kill(id));
+	}
+
+	@Test
+	public void partialLineIsRelayed() throws Exception {
+		String id = randomUUID().toString();
+		new Forker(Forker.command("nobody " + id, new String[] { "/bin/sh",
+				"-c", "printf 'prompt> '; exec sleep 60" }));
+		long start = currentTimeMillis();
+		while (!captured.toString().contains("Subprocess(out):prompt> ")
+				&& currentTimeMillis() - start < TIMEOUT)
+			Thread.sleep(10);
+		assertEquals("subprocess ended early", 1, Forker.getLiveCount());
+		assertTrue("prompt not relayed",
+				captured.toString().contains("Subprocess(out):prompt> "));
+		assertTrue(Forker.kill(id));
+		while (Forker.getLiveCount() > 0
+				&& currentTimeMillis() - start < TIMEOUT)
+			Thread.sleep(10);
+	}
+
+	/**
+	 * Count the live threads, other than those that the JVM itself uses to
+	 * wait for subprocesses to exit.
+	 */
+	private static int countThreads() {
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (!t.getName().startsWith("process reaper"))
+				count++;
+		return count;
+	}
+}
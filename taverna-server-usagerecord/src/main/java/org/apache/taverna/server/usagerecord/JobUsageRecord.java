@@ -26,6 +26,8 @@ import java.util.GregorianCalendar;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -94,14 +96,37 @@ public class JobUsageRecord extends UsageRecordType {
 					e);
 		}
 	}
+	/*
+	 * Marshallers are not thread-safe but are costly to create, so each thread
+	 * keeps its own.
+	 */
+	private static final ThreadLocal<Marshaller> marshaller = new ThreadLocal<>();
+	private static final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<>();
+
+	private static Marshaller marshaller() throws JAXBException {
+		Marshaller m = marshaller.get();
+		if (m == null) {
+			m = context.createMarshaller();
+			marshaller.set(m);
+		}
+		return m;
+	}
+
+	private static Unmarshaller unmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshaller.get();
+		if (u == null) {
+			u = context.createUnmarshaller();
+			unmarshaller.set(u);
+		}
+		return u;
+	}
 
 	public static JobUsageRecord unmarshal(String s) throws JAXBException {
-		return (JobUsageRecord) context.createUnmarshaller().unmarshal(
-				new StringReader(s));
+		return (JobUsageRecord) unmarshaller().unmarshal(new StringReader(s));
 	}
 
 	public static JobUsageRecord unmarshal(Element elem) throws JAXBException {
-		return context.createUnmarshaller()
+		return unmarshaller()
 				.unmarshal(new DOMSource(elem), JobUsageRecord.class)
 				.getValue();
 	}
@@ -330,8 +355,7 @@ public class JobUsageRecord extends UsageRecordType {
 
 	public String marshal() throws JAXBException {
 		StringWriter writer = new StringWriter();
-		JAXBContext.newInstance(getClass()).createMarshaller()
-				.marshal(this, writer);
+		marshaller().marshal(this, writer);
 		return writer.toString();
 	}
 
@@ -19,6 +19,12 @@ import static java.lang.Runtime.getRuntime;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -133,4 +139,34 @@ public class TestUR {
 		Assert.assertNotSame("", record);
 		//System.out.println(record);
 	}
+
+	@Test
+	public void testConcurrentRoundTrip() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int count = 0;
+						for (int j = 0; j < 200; j++) {
+							JobUsageRecord ur = new JobUsageRecord();
+							ur.setStatus("Completed");
+							ur.addWallDuration(j);
+							ur.addHost("localhost");
+							String record = ur.marshal();
+							Assert.assertEquals(record, JobUsageRecord
+									.unmarshal(record).marshal());
+							count++;
+						}
+						return count;
+					}
+				}));
+			for (Future<Integer> f : results)
+				Assert.assertEquals(200, (int) f.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
 }
@@ -26,9 +26,11 @@ import static org.apache.taverna.server.master.common.Uri.secure;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.ws.rs.core.UriBuilder;
@@ -36,6 +38,7 @@ import javax.ws.rs.core.UriInfo;
 
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Required;
+import org.apache.taverna.server.localworker.remote.OutputValue;
 import org.apache.taverna.server.master.exceptions.FilesystemAccessException;
 import org.apache.taverna.server.master.exceptions.NoDirectoryEntryException;
 import org.apache.taverna.server.master.interfaces.Directory;
@@ -229,6 +232,46 @@ public class ContentsDescriptorBuilder {
 		return new AbsentValue();
 	}
 
+	/**
+	 * Convert a value description computed by the worker.
+	 * 
+	 * @param value
+	 *            The description from the worker.
+	 * @param ub
+	 *            The factory for URIs.
+	 * @return A value descriptor.
+	 */
+	private AbstractValue convertValue(OutputValue value, UriBuilder ub) {
+		AbstractValue av;
+		switch (value.getType()) {
+		case LEAF:
+			LeafValue leaf = new LeafValue();
+			leaf.fileName = value.getPath();
+			leaf.byteLength = value.getByteLength();
+			leaf.contentType = value.getContentType();
+			av = leaf;
+			break;
+		case ERROR:
+			ErrorValue error = new ErrorValue();
+			error.fileName = value.getPath();
+			error.byteLength = value.getByteLength();
+			av = error;
+			break;
+		case LIST:
+			ListValue list = new ListValue();
+			list.length = value.getLength();
+			for (OutputValue v : value.getContents())
+				list.contents.add(convertValue(v, ub));
+			av = list;
+			break;
+		default:
+			return new AbsentValue();
+		}
+		String fullPath = value.getPath().replaceFirst("^/", "");
+		av.href = ub.clone().path(fullPath).build();
+		return av;
+	}
+
 	/**
 	 * Construct a description of the outputs of a workflow run.
 	 * 
@@ -250,6 +293,21 @@ public class ContentsDescriptorBuilder {
 			Workflow dataflow = fillInFromWorkflow(run, ub, descriptor);
 			Collection<DirectoryEntry> outs = null;
 			ub = ub.path("wd/{path}");
+			if (run.getOutputBaclavaFile() == null) {
+				// Have the run describe all the ports in one go if it can
+				List<String> names = new ArrayList<>();
+				for (OutputWorkflowPort output : dataflow.getOutputPorts())
+					names.add(output.getName());
+				List<OutputValue> values = run.getOutputManifest(names);
+				if (values != null) {
+					for (int i = 0; i < names.size(); i++) {
+						OutputPort p = descriptor.addPort(names.get(i));
+						p.output = convertValue(values.get(i), ub);
+						p.depth = computeDepth(p.output);
+					}
+					return descriptor;
+				}
+			}
 			for (OutputWorkflowPort output : dataflow.getOutputPorts()) {
 				OutputPort p = descriptor.addPort(output.getName());
 				if (run.getOutputBaclavaFile() == null) {
@@ -240,7 +240,7 @@ class DirectoryREST implements TavernaServerDirectoryREST, DirectoryBean {
 			if (wanted.getType().equals(APPLICATION_ZIP_TYPE.getType())
 					&& wanted.getSubtype().equals(
 							APPLICATION_ZIP_TYPE.getSubtype()))
-				result = d.getContentsAsZip();
+				result = d.getContentsAsZip(support.getZipCompressionLevel());
 			else
 				// XML or JSON; let CXF pick what to do
 				result = new DirectoryContents(ui, d.getContents());
@@ -16,8 +16,11 @@ package org.apache.taverna.server.master;
  * limitations under the License.
  */
 
+import static org.apache.commons.io.IOUtils.copy;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -69,8 +72,8 @@ public class FileConcatenation implements Iterable<File> {
 	public String get(String encoding) throws UnsupportedEncodingException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		for (File f : files)
-			try {
-				baos.write(f.getContents(0, -1));
+			try (InputStream from = f.getContentsAsStream(0, -1)) {
+				copy(from, baos);
 			} catch (FilesystemAccessException | IOException e) {
 				continue;
 			}
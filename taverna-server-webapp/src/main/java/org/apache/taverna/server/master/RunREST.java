@@ -30,16 +30,24 @@ import static org.apache.taverna.server.master.common.Roles.SELF;
 import static org.apache.taverna.server.master.common.Roles.USER;
 import static org.apache.taverna.server.master.common.Status.Initialized;
 import static org.apache.taverna.server.master.common.Status.Operating;
+import static org.apache.taverna.server.master.rest.TavernaServerRunREST.OutputHeaders.COMPLETE;
+import static org.apache.taverna.server.master.rest.TavernaServerRunREST.OutputHeaders.NEXT_OFFSET;
+import static org.apache.taverna.server.master.rest.TavernaServerRunREST.OutputHeaders.OFFSET;
+import static org.apache.taverna.server.master.rest.TavernaServerRunREST.OutputHeaders.TOTAL_LENGTH;
 import static org.apache.taverna.server.master.utils.RestUtils.opt;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.bind.JAXBException;
 
 import org.apache.commons.logging.Log;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
 import org.joda.time.DateTime;
 import org.apache.taverna.server.usagerecord.JobUsageRecord;
 import org.springframework.beans.factory.annotation.Required;
@@ -316,16 +324,64 @@ abstract class RunREST implements TavernaServerRunREST, RunBean {
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed(USER)
-	public String getStdout() throws NoListenerException {
-		return support.getProperty(run, "io", "stdout");
+	public Response getStdout(Long offset, int length)
+			throws NoListenerException, FilesystemAccessException {
+		return getOutput("stdout", offset, length);
 	}
 
 	@Override
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed(USER)
-	public String getStderr() throws NoListenerException {
-		return support.getProperty(run, "io", "stderr");
+	public Response getStderr(Long offset, int length)
+			throws NoListenerException, FilesystemAccessException {
+		return getOutput("stderr", offset, length);
+	}
+
+	private Response getOutput(String stream, Long offset, int length)
+			throws NoListenerException, FilesystemAccessException {
+		CapturedOutput section = (offset == null ? run.readOutput(stream, 0,
+				-1) : run.readOutput(stream, offset, length));
+		if (section == null)
+			return ok(support.getProperty(run, "io", stream), TEXT_PLAIN)
+					.build();
+		if (offset == null)
+			// No section asked for, so give all of it
+			return ok(wholeOutput(stream, section),
+					TEXT_PLAIN + ";charset=UTF-8").build();
+		return ok(section.getContents(), TEXT_PLAIN + ";charset=UTF-8")
+				.header(OFFSET, section.getOffset())
+				.header(NEXT_OFFSET, section.getNextOffset())
+				.header(TOTAL_LENGTH, section.getTotalLength())
+				.header(COMPLETE, section.isComplete()).build();
+	}
+
+	/**
+	 * Write out a stream of the run from the given section to whatever its
+	 * end is when we get there, reading it from the run a section at a time
+	 * so that it never has to be held in memory all at once.
+	 */
+	private StreamingOutput wholeOutput(final String stream,
+			final CapturedOutput first) {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				CapturedOutput section = first;
+				while (true) {
+					out.write(section.getContents());
+					if (section.getContents().length == 0
+							|| section.getNextOffset() >= section
+									.getTotalLength())
+						return;
+					try {
+						section = run.readOutput(stream,
+								section.getNextOffset(), -1);
+					} catch (FilesystemAccessException e) {
+						throw new IOException("failed to read " + stream, e);
+					}
+				}
+			}
+		};
 	}
 
 	@Override
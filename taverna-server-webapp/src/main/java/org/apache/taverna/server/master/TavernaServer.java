@@ -18,6 +18,7 @@ package org.apache.taverna.server.master;
  * limitations under the License.
  */
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.sort;
@@ -96,6 +97,7 @@ import org.apache.taverna.server.master.exceptions.OverloadedException;
 import org.apache.taverna.server.master.exceptions.UnknownRunException;
 import org.apache.taverna.server.master.factories.ListenerFactory;
 import org.apache.taverna.server.master.interfaces.Directory;
+import org.apache.taverna.server.master.interfaces.Directory.ZipStream;
 import org.apache.taverna.server.master.interfaces.DirectoryEntry;
 import org.apache.taverna.server.master.interfaces.File;
 import org.apache.taverna.server.master.interfaces.Input;
@@ -260,9 +262,10 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed(USER)
-	public RunList listUsersRuns(UriInfo ui) {
+	public RunList listUsersRuns(UriInfo ui, int offset, int limit) {
 		jaxrsUriInfo.set(new WeakReference<>(ui));
-		return new RunList(runs(), secure(ui).path("{name}"));
+		return new RunList(runStore.listRuns(support.getPrincipal(), policy,
+				max(offset, 0), limit), secure(ui).path("{name}"));
 	}
 
 	@Override
@@ -910,9 +913,11 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 	public byte[] getRunDirectoryAsZip(String runName, DirEntry d)
 			throws UnknownRunException, FilesystemAccessException,
 			NoDirectoryEntryException {
-		try {
-			return toByteArray(fileUtils.getDirectory(support.getRun(runName),
-					convert(d)).getContentsAsZip());
+		Directory dir = fileUtils.getDirectory(support.getRun(runName),
+				convert(d));
+		try (ZipStream zs = dir.getContentsAsZip(support
+				.getZipCompressionLevel())) {
+			return toByteArray(zs);
 		} catch (IOException e) {
 			throw new FilesystemAccessException("problem serializing ZIP data",
 					e);
@@ -927,7 +932,8 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 			throws UnknownRunException, FilesystemAccessException,
 			NoDirectoryEntryException {
 		return new ZippedDirectory(fileUtils.getDirectory(
-				support.getRun(runName), convert(d)));
+				support.getRun(runName), convert(d)),
+				support.getZipCompressionLevel());
 	}
 
 	@Override
@@ -32,6 +32,7 @@ import static org.apache.taverna.server.master.rest.handler.T2FlowDocumentHandle
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URLConnection;
@@ -132,6 +133,8 @@ public class TavernaServerSupport {
 	 */
 	private boolean logGetPrincipalFailures = true;
 	private Map<String, String> contentTypeMap;
+	/** How hard to compress directories delivered as ZIP archives. */
+	private int zipCompressionLevel = -1;
 	/** Number of bytes to read when guessing the MIME type. */
 	private static final int SAMPLE_SIZE = 1024;
 	/** Number of bytes to ask for when copying a stream to a file. */
@@ -155,7 +158,7 @@ public class TavernaServerSupport {
 	 */
 	@ManagedMetric(description = "Current number of runs.", metricType = GAUGE, category = "utilization")
 	public int getCurrentRunCount() {
-		return runStore.listRuns(null, policy).size();
+		return runStore.countRuns();
 	}
 
 	/**
@@ -236,6 +239,30 @@ public class TavernaServerSupport {
 			policy.setPermittedWorkflowURIs(null, Arrays.asList(pw));
 	}
 
+	/**
+	 * @return How hard to compress directories delivered as ZIP archives: -1
+	 *         for the default level, 0 for no compression at all, or from 1
+	 *         (fastest) to 9 (smallest).
+	 */
+	@ManagedAttribute(description = "How hard to compress directories delivered as ZIP archives; -1 for the default, 0 to store without compression, 1 (fastest) to 9 (smallest).")
+	public int getZipCompressionLevel() {
+		return zipCompressionLevel;
+	}
+
+	/**
+	 * @param level
+	 *            How hard to compress directories delivered as ZIP archives: -1
+	 *            for the default level, 0 for no compression at all, or from 1
+	 *            (fastest) to 9 (smallest).
+	 */
+	@ManagedAttribute(description = "How hard to compress directories delivered as ZIP archives; -1 for the default, 0 to store without compression, 1 (fastest) to 9 (smallest).")
+	public void setZipCompressionLevel(int level) {
+		if (level < -1 || level > 9)
+			throw new IllegalArgumentException(
+					"compression level must be in range -1 to 9");
+		zipCompressionLevel = level;
+	}
+
 	public int getMaxSimultaneousRuns() {
 		Integer limit = policy.getMaxRuns(getPrincipal());
 		if (limit == null)
@@ -875,36 +902,21 @@ public class TavernaServerSupport {
 			throws FilesystemAccessException {
 		String name = file.getFullName();
 		long total = 0;
-		try {
+		try (OutputStream os = file.getContentsOutputStream(false)) {
 			byte[] buffer = new byte[TRANSFER_SIZE];
-			boolean first = true;
 			while (true) {
 				int len = stream.read(buffer);
 				if (len < 0)
 					break;
+				os.write(buffer, 0, len);
 				total += len;
-				if (log.isDebugEnabled())
-					log.debug("read " + len
-							+ " bytes from source stream (total: " + total
-							+ ") bound for " + name);
-				if (len == buffer.length) {
-					if (first)
-						file.setContents(buffer);
-					else
-						file.appendContents(buffer);
-				} else {
-					byte[] newBuf = new byte[len];
-					System.arraycopy(buffer, 0, newBuf, 0, len);
-					if (first)
-						file.setContents(newBuf);
-					else
-						file.appendContents(newBuf);
-				}
-				first = false;
 			}
 		} catch (IOException exn) {
 			throw new FilesystemAccessException("failed to transfer bytes", exn);
 		}
+		if (log.isDebugEnabled())
+			log.debug("transferred " + total + " bytes from source stream to "
+					+ name);
 	}
 
 	/**
@@ -23,6 +23,7 @@ import static org.apache.taverna.server.master.admin.Paths.ARGS;
 import static org.apache.taverna.server.master.admin.Paths.EXEC_WF;
 import static org.apache.taverna.server.master.admin.Paths.EXITCODE;
 import static org.apache.taverna.server.master.admin.Paths.FACTORIES;
+import static org.apache.taverna.server.master.admin.Paths.FACTORY_DETAILS;
 import static org.apache.taverna.server.master.admin.Paths.GEN_PROV;
 import static org.apache.taverna.server.master.admin.Paths.INVOKES;
 import static org.apache.taverna.server.master.admin.Paths.JAR_FORKER;
@@ -831,6 +832,23 @@ public interface Admin {
 	@Description("What is the mapping of local usernames to factory process RMI IDs?")
 	Response optionsFactoryProcessMapping();
 
+	/**
+	 * The property for the description of each factory process.
+	 * 
+	 * @return The property value (read-only).
+	 */
+	@GET
+	@Path(FACTORY_DETAILS)
+	@Produces({ XML, JSON })
+	@Description("What factory processes are running, and how much memory, how many runs and how long has each got?")
+	StringList factoryDetails();
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(FACTORY_DETAILS)
+	@Description("What factory processes are running, and how much memory, how many runs and how long has each got?")
+	Response optionsFactoryDetails();
+
 	/**
 	 * The property for the list of usage records collected.
 	 * 
@@ -978,6 +996,7 @@ public interface Admin {
 		public Uri startupTime;
 		public Uri lastExitCode;
 		public Uri factoryProcessMapping;
+		public Uri factoryDetails;
 		public Uri usageRecords;
 		public Uri users;
 		public Uri operatingLimit;
@@ -1011,6 +1030,7 @@ public interface Admin {
 			startupTime = new Uri(ui, STARTUP);
 			lastExitCode = new Uri(ui, EXITCODE);
 			factoryProcessMapping = new Uri(ui, FACTORIES);
+			factoryDetails = new Uri(ui, FACTORY_DETAILS);
 			usageRecords = new Uri(ui, URS);
 			users = new Uri(ui, USERS);
 			operatingLimit = new Uri(ui, OP_LIMIT);
@@ -1099,6 +1119,7 @@ interface Paths {
 	static final String STARTUP = "startupTime";
 	static final String EXITCODE = "lastExitCode";
 	static final String FACTORIES = "factoryProcessMapping";
+	static final String FACTORY_DETAILS = "factoryDetails";
 	static final String URS = "usageRecords";
 	static final String PERM_WF = "permittedWorkflowURIs";
 	static final String GEN_PROV = "generateProvenance";
@@ -613,6 +613,22 @@ public class AdminBean implements Admin {
 
 	// /////////////////////////////////////////////////////
 
+	@RolesAllowed(ADMIN)
+	@Override
+	public StringList factoryDetails() {
+		StringList result = new StringList();
+		result.string = asList(factory.getFactoryDetails());
+		return result;
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsFactoryDetails() {
+		return opt();
+	}
+
+	// /////////////////////////////////////////////////////
+
 	@RolesAllowed(ADMIN)
 	@Override
 	public URList usageRecords() {
@@ -39,7 +39,10 @@ import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.math.BigInteger;
 import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -85,18 +88,28 @@ public class Workflow implements Serializable, Externalizable {
 	/** Which came first, the bundle or the t2flow document. */
 	@XmlTransient
 	private boolean isBundleFirst;
+	/*
+	 * The caches are volatile because a workflow may be shared between request
+	 * threads (see WorkflowStore). Each is filled in with a complete value in
+	 * one write; at worst two threads compute the same value.
+	 */
+	/** Cached digest of the content. */
+	@XmlTransient
+	private transient volatile String digest;
+	/** Cached serialized SCUFL2 bundle. Never modified once set. */
+	@XmlTransient
+	private transient volatile byte[] scufl2Bytes;
 
-	private static Marshaller marshaller;
-	private static Unmarshaller unmarshaller;
+	private static JAXBContext context;
+	/** Neither of these may be shared between threads. */
+	private static final ThreadLocal<Marshaller> marshaller = new ThreadLocal<>();
+	private static final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<>();
 	private final static String ENCODING = "UTF-8";
+	private final static String DIGEST_ALGORITHM = "SHA-256";
 	private final static WorkflowBundleIO io;
 	static {
 		try {
-			JAXBContext context = JAXBContext.newInstance(Workflow.class);
-			marshaller = context.createMarshaller();
-			unmarshaller = context.createUnmarshaller();
-			marshaller.setProperty(JAXB_ENCODING, ENCODING);
-			marshaller.setProperty(JAXB_FORMATTED_OUTPUT, false);
+			context = JAXBContext.newInstance(Workflow.class);
 		} catch (JAXBException e) {
 			getLog("Taverna.Server.Webapp").fatal(
 					"failed to build JAXB context for working with "
@@ -105,6 +118,26 @@ public class Workflow implements Serializable, Externalizable {
 		io = new WorkflowBundleIO();
 	}
 
+	private static Marshaller marshaller() throws JAXBException {
+		Marshaller m = marshaller.get();
+		if (m == null) {
+			m = context.createMarshaller();
+			m.setProperty(JAXB_ENCODING, ENCODING);
+			m.setProperty(JAXB_FORMATTED_OUTPUT, false);
+			marshaller.set(m);
+		}
+		return m;
+	}
+
+	private static Unmarshaller unmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshaller.get();
+		if (u == null) {
+			u = context.createUnmarshaller();
+			unmarshaller.set(u);
+		}
+		return u;
+	}
+
 	public enum ContentType {
 		T2FLOW(T2FlowDocumentHandler.T2FLOW), SCUFL2(
 				Scufl2DocumentHandler.SCUFL2);
@@ -176,9 +209,38 @@ public class Workflow implements Serializable, Externalizable {
 	 *             If conversion fails.
 	 */
 	public byte[] getScufl2Bytes() throws IOException, WriterException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		io.writeBundle(getScufl2Workflow(), baos, SCUFL2);
-		return baos.toByteArray();
+		byte[] bytes = scufl2Bytes;
+		if (bytes == null) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			io.writeBundle(getScufl2Workflow(), baos, SCUFL2);
+			scufl2Bytes = bytes = baos.toByteArray();
+		}
+		return bytes.clone();
+	}
+
+	/**
+	 * Get a digest of the content of the workflow, suitable for identifying
+	 * workflows that are the same. It is computed over the document in the
+	 * form in which it was submitted, so no conversion is done.
+	 * 
+	 * @return The SHA-256 digest, in hexadecimal.
+	 * @throws IOException
+	 *             If serialization fails.
+	 */
+	public String getDigest() throws IOException {
+		String d = digest;
+		if (d == null)
+			try {
+				MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+				md.update(isBundleFirst || content == null ? getAsScufl2()
+						: getAsT2Flow());
+				digest = d = String.format("%064x",
+						new BigInteger(1, md.digest()));
+			} catch (GeneralSecurityException | JAXBException
+					| WriterException e) {
+				throw new IOException("failed to compute workflow digest", e);
+			}
+		return d;
 	}
 
 	/**
@@ -250,7 +312,7 @@ public class Workflow implements Serializable, Externalizable {
 	public static Workflow unmarshal(String representation)
 			throws JAXBException {
 		StringReader sr = new StringReader(representation);
-		return (Workflow) unmarshaller.unmarshal(sr);
+		return (Workflow) unmarshaller().unmarshal(sr);
 	}
 
 	/**
@@ -258,7 +320,7 @@ public class Workflow implements Serializable, Externalizable {
 	 */
 	public String marshal() throws JAXBException {
 		StringWriter sw = new StringWriter();
-		marshaller.marshal(this, sw);
+		marshaller().marshal(this, sw);
 		return sw.toString();
 	}
 
@@ -269,7 +331,7 @@ public class Workflow implements Serializable, Externalizable {
 			ByteArrayInputStream bytes = readbytes(in);
 			if (bytes != null)
 				try (Reader r = new InputStreamReader(bytes, ENCODING)) {
-					content = ((Workflow) unmarshaller.unmarshal(r)).content;
+					content = ((Workflow) unmarshaller().unmarshal(r)).content;
 				}
 			bytes = readbytes(in);
 			if (bytes != null)
@@ -288,16 +350,24 @@ public class Workflow implements Serializable, Externalizable {
 	private byte[] getAsT2Flow() throws IOException, JAXBException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		OutputStreamWriter w = new OutputStreamWriter(baos, ENCODING);
-		marshaller.marshal(this, w);
+		marshaller().marshal(this, w);
 		w.close();
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Get the serialized SCUFL2 bundle. This returns the cached array itself,
+	 * not a copy, so it is only for callers here that just read it (the digest
+	 * and serialization); anything public must use {@link #getScufl2Bytes()}.
+	 */
 	private byte[] getAsScufl2() throws IOException, WriterException {
+		byte[] bytes = scufl2Bytes;
+		if (bytes != null)
+			return bytes;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		io.writeBundle(bundle, baos, SCUFL2);
 		baos.close();
-		return baos.toByteArray();
+		return scufl2Bytes = baos.toByteArray();
 	}
 
 	@Override
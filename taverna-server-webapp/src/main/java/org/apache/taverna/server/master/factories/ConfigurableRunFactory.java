@@ -120,6 +120,9 @@ public interface ConfigurableRunFactory extends RunFactory {
 	/** What factory process to use for a particular user? */
 	String[] getFactoryProcessMapping();
 
+	/** How big, busy and old is each factory process? */
+	String[] getFactoryDetails();
+
 	/** How many runs can be operating at once? Setter */
 	void setOperatingLimit(int operatingLimit);
 
@@ -18,11 +18,13 @@ package org.apache.taverna.server.master.interfaces;
  * limitations under the License.
  */
 
-import java.io.PipedInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
 import java.security.Principal;
 import java.util.Collection;
 
 import org.apache.taverna.server.master.exceptions.FilesystemAccessException;
+import org.apache.taverna.server.master.exceptions.NoDirectoryEntryException;
 
 /**
  * Represents a directory that is the working directory of a workflow run, or a
@@ -49,11 +51,32 @@ public interface Directory extends DirectoryEntry {
 			throws FilesystemAccessException;
 
 	/**
+	 * Look up an entry somewhere below this directory.
+	 * 
+	 * @param path
+	 *            The name of the entry relative to this directory, with
+	 *            "<tt>/</tt>" separating the parts.
+	 * @return The entry.
+	 * @throws NoDirectoryEntryException
+	 *             If there is no such entry.
+	 * @throws FilesystemAccessException
+	 *             If the path is not legal, or passes through a file, or if
+	 *             something else goes wrong.
+	 */
+	DirectoryEntry getEntry(String path) throws FilesystemAccessException,
+			NoDirectoryEntryException;
+
+	/**
+	 * @param compressionLevel
+	 *            How hard to compress the contents, from 1 (fastest) to 9
+	 *            (smallest), or -1 for the default. A level of 0 stores the
+	 *            contents without compressing them.
 	 * @return The contents of the directory (and its sub-directories) as a zip.
 	 * @throws FilesystemAccessException
 	 *             If things go wrong.
 	 */
-	ZipStream getContentsAsZip() throws FilesystemAccessException;
+	ZipStream getContentsAsZip(int compressionLevel)
+			throws FilesystemAccessException;
 
 	/**
 	 * Creates a sub-directory of this directory.
@@ -86,10 +109,13 @@ public interface Directory extends DirectoryEntry {
 			throws FilesystemAccessException;
 
 	/**
-	 * A simple pipe that produces the zipped contents of a directory.
+	 * A simple stream that produces the zipped contents of a directory.
 	 * 
 	 * @author Donal Fellows
 	 */
-	public static class ZipStream extends PipedInputStream {
+	public static class ZipStream extends FilterInputStream {
+		public ZipStream(InputStream in) {
+			super(in);
+		}
 	}
 }
@@ -18,6 +18,9 @@ package org.apache.taverna.server.master.interfaces;
  * limitations under the License.
  */
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.apache.taverna.server.master.exceptions.FilesystemAccessException;
 
 /**
@@ -42,6 +45,22 @@ public interface File extends DirectoryEntry {
 	public byte[] getContents(int offset, int length)
 			throws FilesystemAccessException;
 
+	/**
+	 * Stream (a section of) the contents of the file. This is the preferred way
+	 * of reading anything that is not known to be small.
+	 * 
+	 * @param offset
+	 *            Where in the file to start reading.
+	 * @param length
+	 *            The length of file to read, or -1 to read to the end of the
+	 *            file.
+	 * @return A stream of the bytes of the file. The caller must close it.
+	 * @throws FilesystemAccessException
+	 *             If the read of the file cannot be started.
+	 */
+	public InputStream getContentsAsStream(long offset, long length)
+			throws FilesystemAccessException;
+
 	/**
 	 * Write the data to the file, totally replacing what was there before.
 	 * 
@@ -63,6 +82,22 @@ public interface File extends DirectoryEntry {
 	 */
 	public void appendContents(byte[] data) throws FilesystemAccessException;
 
+	/**
+	 * Stream data into the file. This is the preferred way of writing anything
+	 * that is not known to be small.
+	 * 
+	 * @param append
+	 *            Whether the data will be added on to the end of the file, or
+	 *            will totally replace what was there before.
+	 * @return A stream to write the bytes to. The caller must close it; the
+	 *         close only completes successfully once the data is safely
+	 *         written.
+	 * @throws FilesystemAccessException
+	 *             If the write to the file cannot be started.
+	 */
+	public OutputStream getContentsOutputStream(boolean append)
+			throws FilesystemAccessException;
+
 	/**
 	 * @return The length of the file, in bytes.
 	 * @throws FilesystemAccessException
@@ -73,6 +73,34 @@ public interface RunStore {
 	 */
 	Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p);
 
+	/**
+	 * List a page of the runs that a particular user may access. The runs are
+	 * listed in a stable order (oldest first) so that successive pages do not
+	 * overlap.
+	 * 
+	 * @param user
+	 *            Who wants to do the lookup, or <code>null</code> if it is
+	 *            being done "by the system" when the full mapping should be
+	 *            returned.
+	 * @param p
+	 *            The general policy system context.
+	 * @param offset
+	 *            How many runs to skip over.
+	 * @param limit
+	 *            The maximum number of runs to list, or -1 for no limit. Fewer
+	 *            may be listed even when more remain.
+	 * @return An ordered mapping from run names to run instances.
+	 */
+	Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p,
+			int offset, int limit);
+
+	/**
+	 * Count the runs in the store without loading them.
+	 * 
+	 * @return The number of runs known to the store.
+	 */
+	int countRuns();
+
 	/**
 	 * Adds a workflow instance run to the store. Note that this operation is
 	 * <i>not</i> expected to be security-checked; that is the callers'
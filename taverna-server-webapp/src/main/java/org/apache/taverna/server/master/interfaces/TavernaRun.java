@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
+import org.apache.taverna.server.localworker.remote.OutputValue;
 import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.common.Status;
 import org.apache.taverna.server.master.exceptions.BadStateChangeException;
@@ -229,4 +231,38 @@ public interface TavernaRun extends Serializable {
 	 *            whether the run generates provenance data
 	 */
 	void setGenerateProvenance(boolean generateProvenance);
+
+	/**
+	 * Describe the values on some output ports of the run in one go.
+	 * 
+	 * @param ports
+	 *            The names of the output ports.
+	 * @return The descriptions of the values, in the same order as the ports,
+	 *         or <tt>null</tt> if the run cannot do this itself and the values
+	 *         must be worked out by looking at its <tt>out</tt> directory.
+	 * @throws FilesystemAccessException
+	 *             If the output directory cannot be read.
+	 */
+	List<OutputValue> getOutputManifest(List<String> ports)
+			throws FilesystemAccessException;
+
+	/**
+	 * Read a section of what the run has written to its stdout or stderr.
+	 * 
+	 * @param stream
+	 *            Which stream to read; <tt>stdout</tt> or <tt>stderr</tt>.
+	 * @param offset
+	 *            Where to start reading, in bytes; if negative, counts back
+	 *            from the end of what has been written so far.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as can
+	 *            be given at once.
+	 * @return The section of the stream, or <tt>null</tt> if the run cannot
+	 *         read its streams in sections and only the <tt>stdout</tt> and
+	 *         <tt>stderr</tt> properties of its default listener are available.
+	 * @throws FilesystemAccessException
+	 *             If the stream cannot be read.
+	 */
+	CapturedOutput readOutput(String stream, long offset, int length)
+			throws FilesystemAccessException;
 }
@@ -18,6 +18,7 @@ package org.apache.taverna.server.master.localworker;
  * limitations under the License.
  */
 
+import static java.lang.System.currentTimeMillis;
 import static java.lang.System.getSecurityManager;
 import static java.lang.System.setProperty;
 import static java.lang.System.setSecurityManager;
@@ -38,9 +39,16 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -50,9 +58,12 @@ import javax.xml.bind.JAXBException;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
 import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.localworker.remote.RemoteStatus;
+import org.apache.taverna.server.localworker.server.RunCompletionReceiver;
 import org.apache.taverna.server.localworker.server.UsageRecordReceiver;
 import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.exceptions.NoCreateException;
@@ -66,10 +77,13 @@ import org.apache.taverna.server.master.interfaces.TavernaRun;
 import org.apache.taverna.server.master.interfaces.UriBuilderFactory;
 import org.apache.taverna.server.master.notification.atom.EventDAO;
 import org.apache.taverna.server.master.usage.UsageRecordRecorder;
+import org.apache.taverna.server.master.utils.BoundedExecutor;
 import org.apache.taverna.server.master.utils.UsernamePrincipal;
 import org.apache.taverna.server.master.worker.FactoryBean;
 import org.apache.taverna.server.master.worker.RemoteRunDelegate;
 import org.apache.taverna.server.master.worker.RunFactoryConfiguration;
+import org.apache.taverna.server.master.worker.RunStatusCache;
+import org.apache.taverna.server.master.worker.WorkflowStore;
 
 import org.apache.taverna.scufl2.api.io.WriterException;
 
@@ -267,6 +281,10 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	private SecurityContextFactory securityFactory;
 	UsageRecordRecorder usageRecordSink;
 	private EventDAO masterEventFeed;
+	/** Where to run background tasks, such as relaying subprocess output. */
+	BoundedExecutor executor;
+	private WorkflowStore workflowStore;
+	private RunStatusCache statusCache;
 
 	@Autowired(required = true)
 	void setSecurityContextFactory(SecurityContextFactory factory) {
@@ -283,6 +301,21 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 		this.usageRecordSink = usageRecordSink;
 	}
 
+	@Autowired(required = true)
+	void setExecutor(BoundedExecutor executor) {
+		this.executor = executor;
+	}
+
+	@Autowired(required = true)
+	void setWorkflowStore(WorkflowStore workflowStore) {
+		this.workflowStore = workflowStore;
+	}
+
+	@Autowired(required = true)
+	void setStatusCache(RunStatusCache statusCache) {
+		this.statusCache = statusCache;
+	}
+
 	/**
 	 * Configures the Java security model. Not currently used, as it is
 	 * viciously difficult to get right!
@@ -351,6 +384,8 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 		try {
 			Date now = new Date();
 			UUID id = randomUUID();
+			// Share the conversions already done for this workflow, if any
+			workflow = workflowStore.intern(workflow);
 			RemoteSingleRun rsr = getRealRun(creator, workflow, id);
 			RemoteRunDelegate run = new RemoteRunDelegate(now, workflow, rsr,
 					state.getDefaultLifetime(), runDB, id,
@@ -414,21 +449,43 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	private void acceptUsageRecord(String usageRecord) {
 		if (usageRecordSink != null)
 			usageRecordSink.storeUsageRecord(usageRecord);
-		runDB.checkForFinishNow();
+	}
+
+	private void runCompleted(final String runId) {
+		statusCache.invalidate(runId);
+		/*
+		 * Don't hold up the worker while we send out notifications; if we've no
+		 * capacity to do it now, the periodic sweep will pick it up later.
+		 */
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runDB.checkForFinishNow(runId);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("deferring completion handling of " + runId
+					+ " to next sweep");
+		}
 	}
 
 	/**
-	 * Make a Remote object that can act as a consumer for usage records.
+	 * Make a Remote object that can act as a consumer for usage records and
+	 * which the run can use to announce its completion.
 	 * 
 	 * @param creator
-	 * 
+	 *            Who is creating the workflow run.
+	 * @param id
+	 *            The identity token for the run.
 	 * @return The receiver, or <tt>null</tt> if the construction fails.
 	 */
-	protected UsageRecordReceiver makeURReciver(UsernamePrincipal creator) {
+	protected UsageRecordReceiver makeURReciver(UsernamePrincipal creator,
+			final UUID id) {
 		try {
 			@SuppressWarnings("serial")
 			class URReceiver extends UnicastRemoteObject implements
-					UsageRecordReceiver {
+					UsageRecordReceiver, RunCompletionReceiver {
 				public URReceiver() throws RemoteException {
 					super();
 				}
@@ -437,6 +494,11 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 				public void acceptUsageRecord(String usageRecord) {
 					AbstractRemoteRunFactory.this.acceptUsageRecord(usageRecord);
 				}
+
+				@Override
+				public void runCompleted(int exitCode) {
+					AbstractRemoteRunFactory.this.runCompleted(id.toString());
+				}
 			}
 			return new URReceiver();
 		} catch (RemoteException e) {
@@ -449,4 +511,133 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	public EventDAO getMasterEventFeed() {
 		return masterEventFeed;
 	}
+
+	@Override
+	public RunStatusCache getStatusCache() {
+		return statusCache;
+	}
+
+	/**
+	 * @return The handles of the factory processes that are currently running,
+	 *         so that operations on many runs can go to each process once.
+	 */
+	@Nonnull
+	protected abstract Collection<RemoteRunFactory> getFactories();
+
+	@Override
+	public Map<String, RemoteStatus> getRunStates(Collection<String> ids) {
+		Map<String, RemoteStatus> states = new HashMap<>();
+		List<String> wanted = new ArrayList<>(ids);
+		for (RemoteRunFactory rrf : getFactories()) {
+			if (wanted.isEmpty())
+				break;
+			try {
+				Map<String, RemoteStatus> found = rrf.getRunStates(wanted);
+				states.putAll(found);
+				wanted.removeAll(found.keySet());
+			} catch (RemoteException e) {
+				log.warn("failed to get run states from factory", e);
+			}
+		}
+		statusCache.putAll(states);
+		return states;
+	}
+
+	@Override
+	public Set<String> destroyRuns(Collection<String> ids) {
+		Set<String> destroyed = new HashSet<>();
+		List<String> wanted = new ArrayList<>(ids);
+		for (RemoteRunFactory rrf : getFactories()) {
+			if (wanted.isEmpty())
+				break;
+			try {
+				Set<String> done = rrf.destroyRuns(wanted);
+				destroyed.addAll(done);
+				wanted.removeAll(done);
+			} catch (RemoteException e) {
+				log.warn("failed to destroy runs in factory", e);
+			}
+		}
+		for (String id : destroyed)
+			statusCache.invalidate(id);
+		return destroyed;
+	}
+
+	/**
+	 * @return How many runs the factory processes know about in each state.
+	 *         Factory processes that cannot be asked are left out.
+	 */
+	@ManagedAttribute(description = "How many runs the factory processes know about in each state.", currencyTimeLimit = 10)
+	public String[] getRunStateCounts() {
+		Map<RemoteStatus, Integer> total = new EnumMap<>(RemoteStatus.class);
+		for (RemoteRunFactory rrf : getFactories()) {
+			Map<RemoteStatus, Integer> counts;
+			try {
+				counts = rrf.countRunsByState();
+			} catch (RemoteException e) {
+				log.warn("failed to count runs in factory", e);
+				continue;
+			}
+			for (Map.Entry<RemoteStatus, Integer> e : counts.entrySet()) {
+				Integer count = total.get(e.getKey());
+				total.put(e.getKey(), (count == null ? 0 : count)
+						+ e.getValue());
+			}
+		}
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<RemoteStatus, Integer> e : total.entrySet())
+			result.add(e.getKey() + ": " + e.getValue());
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Look after the factory processes, shutting down those that are no
+	 * longer wanted and starting those that soon will be. Called
+	 * periodically; by default, does nothing.
+	 */
+	public void tidyFactories() {
+	}
+
+	/**
+	 * @param factory
+	 *            The factory process to ask.
+	 * @return How many runs the factory process has that have not yet been
+	 *         destroyed, whatever state they are in.
+	 * @throws RemoteException
+	 *             If the factory process cannot be asked.
+	 */
+	protected static int countLiveRuns(@Nonnull RemoteRunFactory factory)
+			throws RemoteException {
+		int count = 0;
+		for (Integer n : factory.countRunsByState().values())
+			count += n;
+		return count;
+	}
+
+	/**
+	 * Describe a factory process for the administrator.
+	 * 
+	 * @param name
+	 *            What the factory process is registered as.
+	 * @param factory
+	 *            The factory process.
+	 * @param started
+	 *            When the factory process was started.
+	 * @return The description.
+	 */
+	@Nonnull
+	protected static String describeFactory(@Nonnull String name,
+			@Nonnull RemoteRunFactory factory, long started) {
+		StringBuilder sb = new StringBuilder(name);
+		try {
+			long memory = factory.getMemoryUsed();
+			sb.append(" memory=").append(memory).append(" runs=")
+					.append(countLiveRuns(factory));
+		} catch (RemoteException e) {
+			sb.append(" unreachable");
+		}
+		sb.append(" age=").append((currentTimeMillis() - started) / 1000)
+				.append("s");
+		return sb.toString();
+	}
 }
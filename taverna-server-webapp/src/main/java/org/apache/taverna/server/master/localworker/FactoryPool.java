@@ -0,0 +1,600 @@
+package org.apache.taverna.server.master.localworker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Thread.interrupted;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.apache.taverna.server.localworker.remote.RemoteRunFactory.READY_ANNOUNCEMENT;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
+
+/**
+ * A pool of factory subprocesses that are started before they are needed, so
+ * that making a run does not have to wait for a JVM to start. Each member
+ * announces on its standard output when it has registered itself and is ready,
+ * so there is no need to poll the registry. A member whose output ends has
+ * died; it is dropped from the pool and replaced in the background. Runs are
+ * made by the ready member with the fewest operating runs. A member that is
+ * merely slow to answer is passed over for a while rather than killed, as it
+ * may well have runs in progress.
+ * <p>
+ * Each member's output is read by a thread of its own, and new members are
+ * started one at a time by a single thread of the pool's own, so that neither
+ * competes with anything else for threads.
+ * 
+ * @author Donal Fellows
+ */
+class FactoryPool {
+	/** How long to wait for a member to exit after asking it to. */
+	private static final long SHUTDOWN_GRACE = 700;
+	/** How long to pass over a member that did not answer, in milliseconds. */
+	private static final long UNRESPONSIVE_DELAY = 5000;
+
+	/**
+	 * How the members of the pool are started and connected to.
+	 */
+	interface Launcher {
+		/**
+		 * Start a factory subprocess. Its standard error should be redirected
+		 * to its standard output, which the pool reads.
+		 * 
+		 * @param name
+		 *            The name the subprocess is to register itself under.
+		 * @return The subprocess.
+		 * @throws IOException
+		 *             If the subprocess cannot be started.
+		 */
+		@Nonnull
+		Process launch(@Nonnull String name) throws IOException;
+
+		/**
+		 * Look up a factory that has announced that it is registered.
+		 * 
+		 * @param name
+		 *            The name it registered under.
+		 * @return The handle to the factory.
+		 * @throws RemoteException
+		 *             If the registry cannot be contacted.
+		 * @throws NotBoundException
+		 *             If the factory is not registered after all.
+		 */
+		@Nonnull
+		RemoteRunFactory lookup(@Nonnull String name) throws RemoteException,
+				NotBoundException;
+
+		/**
+		 * Configure a factory before any runs are made with it.
+		 * 
+		 * @param factory
+		 *            The factory.
+		 * @throws RemoteException
+		 *             If the factory cannot be contacted.
+		 */
+		void prepare(@Nonnull RemoteRunFactory factory) throws RemoteException;
+	}
+
+	private final Log log = getLog("Taverna.Server.LocalWorker");
+	private final Log output = getLog("Taverna.Server.LocalWorker.FactoryStdout");
+	private final String namePrefix;
+	private final Launcher launcher;
+	private final ExecutorService replenisher;
+	private final List<Member> members = new ArrayList<>();
+	private final AtomicInteger replaced = new AtomicInteger();
+	private final AtomicInteger failedStarts = new AtomicInteger();
+	private final AtomicInteger attempts = new AtomicInteger();
+	private volatile int lastStartAttempts;
+	private volatile int size = 1;
+	private volatile long startupTimeout = 60000;
+	private volatile String lastName;
+	private volatile Integer lastExitCode;
+	private volatile long lastStartupTime = -1;
+	/** How many members are to be started in the background but are not yet. */
+	private int pendingStarts;
+	private boolean closed;
+
+	/**
+	 * @param namePrefix
+	 *            The prefix of the names the members register under.
+	 * @param launcher
+	 *            How to start and connect to members.
+	 */
+	FactoryPool(@Nonnull final String namePrefix, @Nonnull Launcher launcher) {
+		this.namePrefix = namePrefix;
+		this.launcher = launcher;
+		this.replenisher = newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "factory pool starter (" + namePrefix
+						+ ")");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param size
+	 *            How many members to keep started. At least one.
+	 */
+	void setSize(int size) {
+		this.size = Math.max(size, 1);
+		replenish();
+	}
+
+	/** @return How many members are kept started. */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param timeout
+	 *            How long to wait for a member to announce that it is ready,
+	 *            in milliseconds.
+	 */
+	void setStartupTimeout(long timeout) {
+		startupTimeout = timeout;
+	}
+
+	/** A factory subprocess in the pool. */
+	class Member implements Runnable {
+		final String name;
+		final Process process;
+		final long started = currentTimeMillis();
+		/** Released when the member announces itself, or dies first. */
+		final CountDownLatch announced = new CountDownLatch(1);
+		/** Released when the member's output ends. */
+		final CountDownLatch ended = new CountDownLatch(1);
+		volatile RemoteRunFactory factory;
+		/** When to next offer the member for making runs, if it is ready. */
+		volatile long unresponsiveUntil;
+
+		Member(String name, Process process) {
+			this.name = name;
+			this.process = process;
+		}
+
+		boolean isReady() {
+			return factory != null && ended.getCount() > 0;
+		}
+
+		/** @return Whether the member is ready and not being passed over. */
+		boolean isUsable() {
+			return isReady() && currentTimeMillis() >= unresponsiveUntil;
+		}
+
+		/** @return Whether the subprocess is still running. */
+		boolean isAlive() {
+			try {
+				process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		/** Start relaying the member's output, on a thread of its own. */
+		void startReader() {
+			Thread t = new Thread(this, "factory output reader (" + name + ")");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/** Relays the member's output to the log until it ends. */
+		@Override
+		public void run() {
+			String announcement = READY_ANNOUNCEMENT + name;
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(
+					process.getInputStream()))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.isEmpty())
+						continue;
+					output.info(line);
+					if (line.equals(announcement))
+						announced.countDown();
+				}
+			} catch (IOException e) {
+				// Stream closed; the member is finished with
+			} catch (Exception e) {
+				log.warn("failure in reading from " + name, e);
+			} finally {
+				ended.countDown();
+				announced.countDown();
+				lost(this);
+			}
+		}
+
+		/** Kill off the subprocess, recording how it exited. */
+		void kill() {
+			try {
+				lastExitCode = process.exitValue();
+				return;
+			} catch (IllegalThreadStateException e) {
+				// Still running
+			}
+			log.info("trying to force death of " + name);
+			process.destroy();
+			try {
+				if (ended.await(SHUTDOWN_GRACE, MILLISECONDS))
+					lastExitCode = process.exitValue();
+			} catch (InterruptedException | IllegalThreadStateException e) {
+				log.warn(name + " not yet dead");
+			}
+		}
+	}
+
+	/**
+	 * Start a new member and wait for it to be ready.
+	 * 
+	 * @param background
+	 *            Whether this start was counted as pending by
+	 *            {@link #replenish()}.
+	 * @return The ready member.
+	 * @throws Exception
+	 *             If the member cannot be started or does not become ready in
+	 *             time; it will have been killed off.
+	 */
+	private Member start(boolean background) throws Exception {
+		String name = namePrefix + randomUUID();
+		lastName = name;
+		attempts.incrementAndGet();
+		log.info("about to create factory subprocess " + name);
+		Process process = null;
+		Member m = null;
+		try {
+			process = launcher.launch(name);
+		} finally {
+			synchronized (this) {
+				if (background)
+					pendingStarts--;
+				if (process != null && !closed)
+					members.add(m = new Member(name, process));
+				notifyAll();
+			}
+		}
+		if (m == null) {
+			process.destroy();
+			throw new IllegalStateException("factory pool shut down");
+		}
+		try {
+			m.startReader();
+		} catch (RuntimeException | Error e) {
+			discard(m);
+			throw e;
+		}
+		try {
+			if (!m.announced.await(startupTimeout, MILLISECONDS))
+				throw new RemoteException("factory " + name
+						+ " did not become ready in time");
+			if (m.ended.getCount() == 0)
+				throw new RemoteException("factory " + name
+						+ " exited during startup");
+			RemoteRunFactory f = launcher.lookup(name);
+			launcher.prepare(f);
+			m.factory = f;
+		} catch (Exception e) {
+			failedStarts.incrementAndGet();
+			discard(m);
+			throw e;
+		}
+		lastStartupTime = currentTimeMillis() - m.started;
+		lastStartAttempts = attempts.getAndSet(0);
+		log.info("factory " + name + " ready after " + lastStartupTime + "ms");
+		synchronized (this) {
+			notifyAll();
+		}
+		return m;
+	}
+
+	private void discard(Member m) {
+		synchronized (this) {
+			members.remove(m);
+			notifyAll();
+		}
+		m.kill();
+	}
+
+	/** Called when a member's output ends, which is when it dies. */
+	private void lost(Member m) {
+		boolean replace;
+		synchronized (this) {
+			replace = members.remove(m) && m.factory != null && !closed;
+			notifyAll();
+		}
+		if (replace) {
+			log.warn("factory " + m.name + " has died; replacing it");
+			m.kill();
+			replaced.incrementAndGet();
+			replenish();
+		}
+	}
+
+	/**
+	 * Start enough new members, in the background, to bring the pool up to
+	 * size. They are started one after another on the pool's own thread.
+	 */
+	void replenish() {
+		int needed;
+		synchronized (this) {
+			if (closed)
+				return;
+			needed = size - members.size() - pendingStarts;
+			if (needed <= 0)
+				return;
+			pendingStarts += needed;
+		}
+		for (int i = 0; i < needed; i++)
+			try {
+				replenisher.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start(true);
+						} catch (Exception e) {
+							log.warn("failed to start factory in background", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				log.warn("no capacity to start factory in background");
+				synchronized (this) {
+					pendingStarts -= needed - i;
+					notifyAll();
+				}
+				return;
+			}
+	}
+
+	/**
+	 * Pick the ready member best able to make a run, which is the one with
+	 * fewest operating runs. Members that are gone are discarded; members that
+	 * fail to answer for some other reason, such as a timeout, are passed over
+	 * for a while.
+	 * 
+	 * @return The member, or <tt>null</tt> if none is ready.
+	 */
+	@Nullable
+	private Member healthiest() {
+		List<Member> ready = new ArrayList<>();
+		synchronized (this) {
+			for (Member m : members)
+				if (m.isUsable())
+					ready.add(m);
+		}
+		Member best = null;
+		int bestCount = Integer.MAX_VALUE;
+		boolean discarded = false;
+		for (Member m : ready)
+			try {
+				int count = m.factory.countOperatingRuns();
+				if (count < bestCount) {
+					best = m;
+					bestCount = count;
+				}
+			} catch (ConnectException | NoSuchObjectException e) {
+				log.warn("factory " + m.name + " has gone; replacing it", e);
+				discard(m);
+				replaced.incrementAndGet();
+				discarded = true;
+			} catch (RemoteException e) {
+				if (!m.isAlive()) {
+					log.warn("factory " + m.name + " has died; replacing it", e);
+					discard(m);
+					replaced.incrementAndGet();
+					discarded = true;
+					continue;
+				}
+				log.warn("factory " + m.name + " is not responding; "
+						+ "passing it over for now", e);
+				m.unresponsiveUntil = currentTimeMillis() + UNRESPONSIVE_DELAY;
+			}
+		if (best == null || discarded)
+			replenish();
+		return best;
+	}
+
+	/**
+	 * Get a factory to make a run with. If no member is ready, this waits for
+	 * one that is starting, or starts one if there are none.
+	 * 
+	 * @return The factory.
+	 * @throws Exception
+	 *             If no factory can be made ready.
+	 */
+	@Nonnull
+	RemoteRunFactory acquire() throws Exception {
+		long deadline = currentTimeMillis() + startupTimeout;
+		while (true) {
+			Member m = healthiest();
+			if (m != null)
+				return m.factory;
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("factory pool shut down");
+				boolean starting = pendingStarts > 0;
+				for (Member member : members)
+					starting |= (member.factory == null);
+				long delay = deadline - currentTimeMillis();
+				if (!starting || delay <= 0)
+					break;
+				wait(delay);
+			}
+		}
+		return start(false).factory;
+	}
+
+	/**
+	 * Drop a factory that has been found not to work, replacing it.
+	 * 
+	 * @param factory
+	 *            The factory.
+	 */
+	void failed(@Nonnull RemoteRunFactory factory) {
+		Member victim = null;
+		synchronized (this) {
+			for (Member m : members)
+				if (m.factory == factory)
+					victim = m;
+		}
+		if (victim != null) {
+			log.warn("discarding failed factory " + victim.name);
+			discard(victim);
+			replaced.incrementAndGet();
+			replenish();
+		}
+	}
+
+	/** @return The factories that are ready. */
+	@Nonnull
+	List<RemoteRunFactory> getFactories() {
+		List<RemoteRunFactory> result = new ArrayList<>();
+		synchronized (this) {
+			for (Member m : members)
+				if (m.isReady())
+					result.add(m.factory);
+		}
+		return result;
+	}
+
+	/** @return The members that are ready. */
+	@Nonnull
+	synchronized List<Member> getReadyMembers() {
+		List<Member> result = new ArrayList<>();
+		for (Member m : members)
+			if (m.isReady())
+				result.add(m);
+		return result;
+	}
+
+	/** @return How many members are ready. */
+	synchronized int getReadyCount() {
+		int count = 0;
+		for (Member m : members)
+			if (m.isReady())
+				count++;
+		return count;
+	}
+
+	/** @return How many members are starting up. */
+	synchronized int getStartingCount() {
+		return members.size() - getReadyCount() + pendingStarts;
+	}
+
+	/** @return How many members have died or been discarded and replaced. */
+	int getReplacedCount() {
+		return replaced.get();
+	}
+
+	/** @return How many members failed to start. */
+	int getFailedStartCount() {
+		return failedStarts.get();
+	}
+
+	/**
+	 * @return How many attempts to start a member were made before the most
+	 *         recent one to become ready, including that one.
+	 */
+	int getLastStartAttempts() {
+		return lastStartAttempts;
+	}
+
+	/** @return How long the last successful start took, in milliseconds. */
+	long getLastStartupTime() {
+		return lastStartupTime;
+	}
+
+	/** @return The name of the most recently started member. */
+	String getLastName() {
+		return lastName;
+	}
+
+	/** @return The exit code of the most recent member to be killed off. */
+	Integer getLastExitCode() {
+		return lastExitCode;
+	}
+
+	/**
+	 * Kill off all the members. If the pool is still open, new members are
+	 * started in their place, which is how changes to the configuration are
+	 * picked up.
+	 */
+	void recycle() {
+		for (Member m : snapshot())
+			stop(m);
+		replenish();
+	}
+
+	/** Kill off all the members, and start no more. */
+	void shutdown() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		replenisher.shutdownNow();
+		for (Member m : snapshot())
+			stop(m);
+	}
+
+	private synchronized List<Member> snapshot() {
+		return new ArrayList<>(members);
+	}
+
+	/** Ask a member to shut down, and force it if it does not. */
+	private void stop(Member m) {
+		synchronized (this) {
+			members.remove(m);
+		}
+		if (m.factory != null) {
+			log.info("requesting shutdown of " + m.name);
+			try {
+				m.factory.shutdown();
+				m.ended.await(SHUTDOWN_GRACE, MILLISECONDS);
+			} catch (RemoteException e) {
+				log.warn(m.name + " failed to shut down nicely", e);
+			} catch (InterruptedException e) {
+				if (log.isDebugEnabled())
+					log.debug("interrupted during wait after asking " + m.name
+							+ " to shut down", e);
+			}
+		}
+		m.kill();
+	}
+}
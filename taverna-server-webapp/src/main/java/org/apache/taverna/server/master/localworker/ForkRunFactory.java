@@ -19,18 +19,22 @@ package org.apache.taverna.server.master.localworker;
  */
 
 import static java.lang.System.getProperty;
-import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
-import static java.util.Calendar.SECOND;
-import static java.util.UUID.randomUUID;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
 
 import java.io.File;
+import java.io.IOException;
 import java.rmi.ConnectException;
 import java.rmi.ConnectIOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
@@ -38,7 +42,9 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.xml.bind.JAXBException;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
 import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
@@ -48,18 +54,18 @@ import org.apache.taverna.server.master.factories.ConfigurableRunFactory;
 import org.apache.taverna.server.master.utils.UsernamePrincipal;
 
 /**
- * A simple factory for workflow runs that forks runs from a subprocess.
+ * A simple factory for workflow runs that forks runs from a subprocess. A
+ * small pool of such subprocesses is kept started, so that runs can be made
+ * without waiting for one to start, and so that one dying does not stop runs
+ * being made.
  * 
  * @author Donal Fellows
  */
 @ManagedResource(objectName = JMX_ROOT + "RunFactory", description = "The factory for simple singleton forked run.")
 public class ForkRunFactory extends AbstractRemoteRunFactory implements
 		ConfigurableRunFactory {
-	private int lastStartupCheckCount;
-	private Integer lastExitCode;
-	private RemoteRunFactory factory;
-	private Process factoryProcess;
-	private String factoryProcessName;
+	private int poolSize = 1;
+	private FactoryPool pool;
 
 	/**
 	 * Create a factory for remote runs that works by forking off a subprocess.
@@ -70,43 +76,70 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 	public ForkRunFactory() throws JAXBException {
 	}
 
+	/**
+	 * @param poolSize
+	 *            How many factory subprocesses to keep started.
+	 */
+	@Value("${factory.poolSize}")
+	void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+		if (pool != null)
+			pool.setSize(poolSize);
+	}
+
 	@PostConstruct
 	protected void initRegistry() {
 		log.info("waiting for availability of default RMI registry");
 		getTheRegistry();
+		pool = new FactoryPool(state.getFactoryProcessNamePrefix(),
+				new FactoryPool.Launcher() {
+					@Override
+					public Process launch(String name) throws IOException {
+						return launchFactory(name);
+					}
+
+					@Override
+					public RemoteRunFactory lookup(String name)
+							throws RemoteException, NotBoundException {
+						return getRemoteFactoryHandle(name);
+					}
+
+					@Override
+					public void prepare(RemoteRunFactory factory)
+							throws RemoteException {
+						initInteractionDetails(factory);
+					}
+				});
+		pool.setStartupTimeout(SECONDS.toMillis(state.getWaitSeconds()));
+		pool.setSize(poolSize);
 	}
 
 	@Override
 	protected void reinitFactory() {
-		boolean makeFactory = factory != null;
-		killFactory();
-		try {
-			if (makeFactory)
-				initFactory();
-		} catch (Exception e) {
-			log.fatal("failed to make connection to remote run factory", e);
-		}
+		if (pool == null)
+			return;
+		pool.setStartupTimeout(SECONDS.toMillis(state.getWaitSeconds()));
+		pool.recycle();
 	}
 
 	private RemoteRunFactory getFactory() throws RemoteException {
 		try {
-			initFactory();
+			return pool.acquire();
 		} catch (RemoteException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new RemoteException("problem constructing factory", e);
 		}
-		return factory;
 	}
 
 	/**
-	 * @return How many checks were done for the worker process the last time a
-	 *         spawn was tried.
+	 * @return How many attempts were made to start a factory subprocess before
+	 *         the most recent one to become ready, including that one.
 	 */
-	@ManagedAttribute(description = "How many checks were done for the worker process the last time a spawn was tried.", currencyTimeLimit = 60)
+	@ManagedAttribute(description = "How many attempts were made to start a factory subprocess before the most recent one to become ready.", currencyTimeLimit = 60)
 	@Override
 	public int getLastStartupCheckCount() {
-		return lastStartupCheckCount;
+		return pool == null ? 0 : pool.getLastStartAttempts();
 	}
 
 	/**
@@ -116,30 +149,65 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 	@ManagedAttribute(description = "What was the exit code from the last time the factory subprocess was killed?")
 	@Override
 	public Integer getLastExitCode() {
-		return lastExitCode;
+		return pool == null ? null : pool.getLastExitCode();
 	}
 
 	/**
 	 * @return What the factory subprocess's main RMI interface is registered
 	 *         as.
 	 */
-	@ManagedAttribute(description = "What the factory subprocess's main RMI interface is registered as.", currencyTimeLimit = 60)
+	@ManagedAttribute(description = "What the most recently started factory subprocess's main RMI interface is registered as.", currencyTimeLimit = 60)
 	@Override
 	public String getFactoryProcessName() {
-		return factoryProcessName;
+		return pool == null ? null : pool.getLastName();
+	}
+
+	@ManagedAttribute(description = "How many factory subprocesses to keep started.")
+	public int getFactoryPoolSize() {
+		return poolSize;
+	}
+
+	@ManagedAttribute(description = "How many factory subprocesses to keep started.")
+	public void setFactoryPoolSize(int size) {
+		setPoolSize(size);
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses ready to make runs.", metricType = GAUGE, category = "utilization")
+	public int getReadyFactoryCount() {
+		return pool == null ? 0 : pool.getReadyCount();
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses starting up.", metricType = GAUGE, category = "utilization")
+	public int getStartingFactoryCount() {
+		return pool == null ? 0 : pool.getStartingCount();
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses that died or stopped responding and were replaced.", metricType = COUNTER, category = "throughput")
+	public int getReplacedFactoryCount() {
+		return pool == null ? 0 : pool.getReplacedCount();
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses that failed to start.", metricType = COUNTER, category = "throughput")
+	public int getFailedFactoryStartCount() {
+		return pool == null ? 0 : pool.getFailedStartCount();
+	}
+
+	@ManagedAttribute(description = "How long the last factory subprocess took to become ready, in milliseconds.")
+	public long getLastFactoryStartupTime() {
+		return pool == null ? -1 : pool.getLastStartupTime();
 	}
 
 	/**
-	 * Makes the subprocess that manufactures runs.
+	 * Starts a subprocess that manufactures runs.
 	 * 
-	 * @throws Exception
-	 *             If anything goes wrong.
+	 * @param name
+	 *            The name the subprocess is to register itself under.
+	 * @return The subprocess.
+	 * @throws IOException
+	 *             If the subprocess cannot be started.
 	 */
-	public void initFactory() throws Exception {
-		if (factory != null)
-			return;
+	private Process launchFactory(String name) throws IOException {
 		// Generate the arguments to use when spawning the subprocess
-		factoryProcessName = state.getFactoryProcessNamePrefix() + randomUUID();
 		ProcessBuilder p = new ProcessBuilder(getJavaBinary());
 		p.command().add("-jar");
 		p.command().add(getServerWorkerJar());
@@ -147,74 +215,14 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 			log.fatal("no execute workflow script");
 		p.command().add(getExecuteWorkflowScript());
 		p.command().addAll(asList(getExtraArguments()));
-		p.command().add(factoryProcessName);
+		p.command().add(name);
 		p.redirectErrorStream(true);
 		p.directory(new File(getProperty("javax.servlet.context.tempdir",
 				getProperty("java.io.tmpdir"))));
 
 		// Spawn the subprocess
 		log.info("about to create subprocess: " + p.command());
-		
-		factoryProcess = launchSubprocess(p);
-		outlog = new StreamLogger("FactoryStdout", factoryProcess.getInputStream()) {
-			@Override
-			protected void write(String msg) {
-				log.info(msg);
-			}
-		};
-		errlog = new StreamLogger("FactoryStderr", factoryProcess.getErrorStream()) {
-			@Override
-			protected void write(String msg) {
-				log.info(msg);
-			}
-		};
-
-		// Wait for the subprocess to register itself in the RMI registry
-		Calendar deadline = Calendar.getInstance();
-		deadline.add(SECOND, state.getWaitSeconds());
-		Exception lastException = null;
-		lastStartupCheckCount = 0;
-		while (deadline.after(Calendar.getInstance())) {
-			try {
-				sleep(state.getSleepMS());
-				lastStartupCheckCount++;
-				factory = getRemoteFactoryHandle(factoryProcessName);
-				initInteractionDetails(factory);
-				return;
-			} catch (InterruptedException ie) {
-				continue;
-			} catch (NotBoundException nbe) {
-				lastException = nbe;
-				log.info("resource \"" + factoryProcessName
-						+ "\" not yet registered...");
-				continue;
-			} catch (RemoteException re) {
-				// Unpack a remote exception if we can
-				lastException = re;
-				try {
-					if (re.getCause() != null)
-						lastException = (Exception) re.getCause();
-				} catch (Throwable t) {
-					// Ignore!
-				}
-			} catch (RuntimeException e) {
-				lastException = e;
-			}
-		}
-		if (lastException == null)
-			lastException = new InterruptedException();
-		throw lastException;
-	}
-
-	private StreamLogger outlog, errlog;
-
-	private void stopLoggers() {
-		if (outlog != null)
-			outlog.stop();
-		outlog = null;
-		if (errlog != null)
-			errlog.stop();
-		errlog = null;
+		return launchSubprocess(p);
 	}
 
 	private RemoteRunFactory getRemoteFactoryHandle(String name)
@@ -227,65 +235,25 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 			log.warn("connection problems with registry", e);
 		}
 		RemoteRunFactory rrf = (RemoteRunFactory) getTheRegistry().lookup(name);
-		log.info("successfully connected to factory subprocess "
-				+ factoryProcessName);
+		log.info("successfully connected to factory subprocess " + name);
 		return rrf;
 	}
 
 	/**
-	 * Destroys the subprocess that manufactures runs.
+	 * Destroys the subprocesses that manufacture runs.
 	 */
 	@PreDestroy
 	public void killFactory() {
-		if (factory != null) {
-			log.info("requesting shutdown of " + factoryProcessName);
-			try {
-				factory.shutdown();
-				sleep(700);
-			} catch (RemoteException e) {
-				log.warn(factoryProcessName + " failed to shut down nicely", e);
-			} catch (InterruptedException e) {
-				if (log.isDebugEnabled())
-					log.debug("interrupted during wait after asking "
-							+ factoryProcessName + " to shut down", e);
-			} finally {
-				factory = null;
-			}
-		}
-
-		if (factoryProcess != null) {
-			int code = -1;
-			try {
-				lastExitCode = code = factoryProcess.exitValue();
-				log.info(factoryProcessName + " already dead?");
-			} catch (RuntimeException e) {
-				log.info("trying to force death of " + factoryProcessName);
-				try {
-					factoryProcess.destroy();
-					sleep(350); // takes a little time, even normally
-					lastExitCode = code = factoryProcess.exitValue();
-				} catch (Exception e2) {
-					code = -1;
-				}
-			} finally {
-				factoryProcess = null;
-				stopLoggers();
-			}
-			if (code > 128) {
-				log.info(factoryProcessName + " died with signal="
-						+ (code - 128));
-			} else if (code >= 0) {
-				log.info(factoryProcessName + " process killed: code=" + code);
-			} else {
-				log.warn(factoryProcessName + " not yet dead");
-			}
-		}
+		if (pool != null)
+			pool.shutdown();
 	}
 
 	/**
 	 * The real core of the run builder, factored out from its reliability
 	 * support.
 	 * 
+	 * @param factory
+	 *            The factory to make the run with.
 	 * @param creator
 	 *            Who created this workflow?
 	 * @param wf
@@ -294,14 +262,15 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 	 * @throws RemoteException
 	 *             If anything fails (communications error, etc.)
 	 */
-	private RemoteSingleRun getRealRun(@Nonnull UsernamePrincipal creator,
-			@Nonnull byte[] wf, UUID id) throws RemoteException {
+	private RemoteSingleRun getRealRun(@Nonnull RemoteRunFactory factory,
+			@Nonnull UsernamePrincipal creator, @Nonnull byte[] wf, UUID id)
+			throws RemoteException {
 		@Nonnull
 		String globaluser = "Unknown Person";
 		if (creator != null)
 			globaluser = creator.getName();
-		RemoteSingleRun rsr = getFactory().make(wf, globaluser,
-				makeURReciver(creator), id);
+		RemoteSingleRun rsr = factory.make(wf, globaluser,
+				makeURReciver(creator, id), id);
 		incrementRunCount();
 		return rsr;
 	}
@@ -312,16 +281,16 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 		@Nonnull
 		byte[] wf = serializeWorkflow(workflow);
 		for (int i = 0; i < 3; i++) {
-			initFactory();
+			RemoteRunFactory factory = getFactory();
 			try {
-				return getRealRun(creator, wf, id);
+				return getRealRun(factory, creator, wf, id);
 			} catch (ConnectException | ConnectIOException e) {
-				// factory was lost; try to recreate
+				// factory was lost; try another
+				pool.failed(factory);
 			}
-			killFactory();
 		}
 		throw new NoCreateException("total failure to connect to factory "
-				+ factoryProcessName + "despite attempting restart");
+				+ "despite attempting restart");
 	}
 
 	@Override
@@ -329,8 +298,30 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 		return new String[0];
 	}
 
+	@Override
+	public String[] getFactoryDetails() {
+		if (pool == null)
+			return new String[0];
+		List<String> details = new ArrayList<>();
+		for (FactoryPool.Member m : pool.getReadyMembers())
+			details.add(describeFactory(m.name, m.factory, m.started));
+		return details.toArray(new String[details.size()]);
+	}
+
 	@Override
 	protected int operatingCount() throws Exception {
-		return getFactory().countOperatingRuns();
+		if (pool == null)
+			return 0;
+		int count = 0;
+		for (RemoteRunFactory f : pool.getFactories())
+			count += f.countOperatingRuns();
+		return count;
+	}
+
+	@Override
+	protected Collection<RemoteRunFactory> getFactories() {
+		if (pool == null)
+			return emptyList();
+		return pool.getFactories();
 	}
 }
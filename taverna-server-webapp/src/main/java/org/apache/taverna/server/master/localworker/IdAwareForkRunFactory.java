@@ -18,13 +18,21 @@ package org.apache.taverna.server.master.localworker;
  * limitations under the License.
  */
 
+import static java.lang.System.currentTimeMillis;
 import static java.lang.System.getProperty;
 import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
 import static java.util.Calendar.SECOND;
+import static java.util.Collections.sort;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.taverna.server.localworker.remote.RemoteRunFactory.READY_ANNOUNCEMENT;
 import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
 import static org.apache.taverna.server.master.localworker.AbstractRemoteRunFactory.launchSubprocess;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -33,16 +41,27 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.rmi.ConnectException;
 import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
@@ -54,6 +73,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.annotation.Order;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
 import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
@@ -64,16 +84,79 @@ import org.apache.taverna.server.master.interfaces.LocalIdentityMapper;
 import org.apache.taverna.server.master.utils.UsernamePrincipal;
 
 /**
- * A simple factory for workflow runs that forks runs from a subprocess.
+ * A factory for workflow runs that forks runs from a subprocess belonging to
+ * the user that the run is to execute as. Each user's factory subprocess is
+ * started (through the secure fork process) when it is first needed, and is
+ * shut down once it has had no runs for a while. The total number of factory
+ * subprocesses is capped; when the cap is reached, the least recently used
+ * factory that has no runs is shut down to make room. Optionally, the
+ * factories of users who have recently submitted runs are kept going, and are
+ * restarted in the background if they are lost, on the grounds that those
+ * users are likely to submit more.
  * 
  * @author Donal Fellows
  */
 @ManagedResource(objectName = JMX_ROOT + "RunFactory", description = "The factory for a user-specific forked run.")
 public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 		ConfigurableRunFactory {
+	/** How long to wait for factories to exit after asking them to. */
+	private static final long SHUTDOWN_GRACE = 2000;
+	/** How often to check whether factories have exited. */
+	private static final long SHUTDOWN_POLL = 50;
 	private MetaFactory forker;
-	private Map<String, RemoteRunFactory> factory;
-	private Map<String, String> factoryProcessName;
+	/** The factories, by user name. Guarded by itself. */
+	private final Map<String, UserFactory> factory = new HashMap<>();
+	/** The users whose factories are being started. Guarded by factory. */
+	private final Set<String> starting = new HashSet<>();
+	/** When each user last submitted a run. Guarded by itself. */
+	private final Map<String, Long> lastSubmission = new HashMap<>();
+	private long idleTimeout = 1800000;
+	private int maxProcesses = 100;
+	private long prewarmWindow;
+	private final AtomicInteger reaped = new AtomicInteger();
+	private final AtomicInteger evicted = new AtomicInteger();
+	private final AtomicInteger prewarmed = new AtomicInteger();
+	/**
+	 * Where factories are started in advance. They are started one at a time,
+	 * as each start waits for the factory to be ready.
+	 */
+	private final ExecutorService prewarmer = newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "factory prewarmer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * A factory subprocess belonging to a particular user.
+	 */
+	static class UserFactory {
+		final String username;
+		final String name;
+		final RemoteRunFactory handle;
+		final long started = currentTimeMillis();
+		/** How many runs are being made with it. Guarded by the map. */
+		int users;
+		/** When a run was last made with it. Guarded by the map. */
+		long lastUsed = started;
+
+		UserFactory(String username, String name, RemoteRunFactory handle) {
+			this.username = username;
+			this.name = name;
+			this.handle = handle;
+		}
+
+		boolean isAlive() {
+			try {
+				handle.countOperatingRuns();
+				return true;
+			} catch (RemoteException e) {
+				return false;
+			}
+		}
+	}
 
 	/**
 	 * Create a factory for remote runs that works by forking off a subprocess.
@@ -82,8 +165,38 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 	 *             Shouldn't happen.
 	 */
 	public IdAwareForkRunFactory() throws JAXBException {
-		factory = new HashMap<>();
-		factoryProcessName = new HashMap<>();
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            How long (in seconds) a factory subprocess with no runs is
+	 *            kept before it is shut down. Zero or less to keep them
+	 *            forever.
+	 */
+	@Value("${factory.idleTimeout}")
+	void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = SECONDS.toMillis(idleTimeout);
+	}
+
+	/**
+	 * @param maxProcesses
+	 *            The maximum number of factory subprocesses that may be
+	 *            running at once.
+	 */
+	@Value("${factory.maxProcesses}")
+	void setMaxProcesses(int maxProcesses) {
+		this.maxProcesses = maxProcesses;
+	}
+
+	/**
+	 * @param prewarmWindow
+	 *            How long (in seconds) after a user last submitted a run to
+	 *            keep their factory subprocess going for them. Zero to not do
+	 *            so.
+	 */
+	@Value("${factory.prewarmWindow}")
+	void setPrewarmWindow(int prewarmWindow) {
+		this.prewarmWindow = SECONDS.toMillis(prewarmWindow);
 	}
 
 	@Override
@@ -129,16 +242,94 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 	@ManagedAttribute(description = "The mapping of user names to RMI factory IDs.", currencyTimeLimit = 60)
 	public String[] getFactoryProcessMapping() {
 		ArrayList<String> result = new ArrayList<>();
-		ArrayList<String> keys = new ArrayList<>(factoryProcessName.keySet());
-		String[] ks = keys.toArray(new String[keys.size()]);
-		Arrays.sort(ks);
-		for (String k : ks) {
-			result.add(k);
-			result.add(factoryProcessName.get(k));
+		for (UserFactory uf : sortedFactories()) {
+			result.add(uf.username);
+			result.add(uf.name);
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	@Override
+	public String[] getFactoryDetails() {
+		long now = currentTimeMillis();
+		ArrayList<String> result = new ArrayList<>();
+		for (UserFactory uf : sortedFactories()) {
+			long idle;
+			synchronized (factory) {
+				idle = (uf.users > 0 ? 0 : now - uf.lastUsed) / 1000;
+			}
+			result.add(uf.username + ": "
+					+ describeFactory(uf.name, uf.handle, uf.started)
+					+ " idle=" + idle + "s");
 		}
 		return result.toArray(new String[result.size()]);
 	}
 
+	private List<UserFactory> sortedFactories() {
+		synchronized (factory) {
+			return new ArrayList<>(new TreeMap<>(factory).values());
+		}
+	}
+
+	@ManagedAttribute(description = "How long (in seconds) a factory subprocess with no runs is kept before being shut down.")
+	public int getFactoryIdleTimeout() {
+		return (int) MILLISECONDS.toSeconds(idleTimeout);
+	}
+
+	@ManagedAttribute(description = "How long (in seconds) a factory subprocess with no runs is kept before being shut down.")
+	public void setFactoryIdleTimeout(int idleTimeout) {
+		setIdleTimeout(idleTimeout);
+	}
+
+	@ManagedAttribute(description = "The maximum number of factory subprocesses that may be running at once.")
+	public int getMaxFactoryProcesses() {
+		return maxProcesses;
+	}
+
+	@ManagedAttribute(description = "The maximum number of factory subprocesses that may be running at once.")
+	public void setMaxFactoryProcesses(int maxProcesses) {
+		setMaxProcesses(maxProcesses);
+	}
+
+	@ManagedAttribute(description = "How long (in seconds) after a user last submitted a run to keep their factory subprocess going; zero if not done.")
+	public int getFactoryPrewarmWindow() {
+		return (int) MILLISECONDS.toSeconds(prewarmWindow);
+	}
+
+	@ManagedAttribute(description = "How long (in seconds) after a user last submitted a run to keep their factory subprocess going; zero if not done.")
+	public void setFactoryPrewarmWindow(int prewarmWindow) {
+		setPrewarmWindow(prewarmWindow);
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses running.", metricType = GAUGE, category = "utilization")
+	public int getFactoryCount() {
+		synchronized (factory) {
+			return factory.size();
+		}
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses starting up.", metricType = GAUGE, category = "utilization")
+	public int getStartingFactoryCount() {
+		synchronized (factory) {
+			return starting.size();
+		}
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses shut down for being idle.", metricType = COUNTER, category = "throughput")
+	public int getReapedFactoryCount() {
+		return reaped.get();
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses shut down to make room for another.", metricType = COUNTER, category = "throughput")
+	public int getEvictedFactoryCount() {
+		return evicted.get();
+	}
+
+	@ManagedMetric(description = "Number of factory subprocesses started in advance for users who submitted runs recently.", metricType = COUNTER, category = "throughput")
+	public int getPrewarmedFactoryCount() {
+		return prewarmed.get();
+	}
+
 	/**
 	 * How construction of factories is actually done.
 	 * 
@@ -169,14 +360,27 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 		 */
 		void close() throws IOException, InterruptedException;
 
+		/**
+		 * Kill off a factory made by the meta-factory, whether or not it can
+		 * still be talked to.
+		 * 
+		 * @param name
+		 *            The name the factory was made to register under.
+		 * @throws IOException
+		 *             If something goes wrong when communicating with the
+		 *             meta-factory.
+		 */
+		void kill(String name) throws IOException;
+
 		int lastStartupCheckCount();
 
 		Integer lastExitCode();
 	}
 
 	void registerFactory(String username, String fpn, RemoteRunFactory f) {
-		factoryProcessName.put(username, fpn);
-		factory.put(username, f);
+		synchronized (factory) {
+			factory.put(username, new UserFactory(username, fpn, f));
+		}
 	}
 
 	/**
@@ -186,14 +390,15 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 	 *             If the connection fails.
 	 */
 	@PostConstruct
-	void initMetaFactory() throws IOException {
+	synchronized void initMetaFactory() throws IOException {
 		log.info("waiting for availability of default RMI registry");
 		getTheRegistry();
 		log.info("constructing secure fork subprocess");
 		forker = new SecureFork(this, state, log);
 	}
 
-	private void killForker() throws IOException, InterruptedException {
+	private synchronized void killForker() throws IOException,
+			InterruptedException {
 		try {
 			if (forker != null)
 				forker.close();
@@ -202,49 +407,316 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 		}
 	}
 
+	private synchronized MetaFactory getForker() throws IOException {
+		if (forker == null)
+			initMetaFactory();
+		return forker;
+	}
+
 	/**
-	 * Makes the subprocess that manufactures runs.
+	 * Get the factory for a user, starting it if necessary, and mark it as
+	 * being in use. Must be paired with a call to {@link #release(UserFactory)}.
 	 * 
+	 * @param username
+	 *            Whose factory to get.
+	 * @return The factory.
 	 * @throws Exception
-	 *             If anything goes wrong.
+	 *             If anything goes wrong with starting the factory.
 	 */
-	private void initFactory(String username) throws Exception {
-		if (factory.containsKey(username))
+	private UserFactory acquire(String username) throws Exception {
+		synchronized (factory) {
+			UserFactory uf;
+			while ((uf = factory.get(username)) == null
+					&& starting.contains(username))
+				factory.wait();
+			if (uf != null) {
+				uf.users++;
+				uf.lastUsed = currentTimeMillis();
+				return uf;
+			}
+			starting.add(username);
+		}
+		try {
+			makeRoom();
+			getForker().make(username);
+		} finally {
+			synchronized (factory) {
+				starting.remove(username);
+				factory.notifyAll();
+			}
+		}
+		synchronized (factory) {
+			UserFactory uf = factory.get(username);
+			if (uf == null)
+				throw new NoCreateException("factory for " + username
+						+ " was lost as soon as it was made");
+			uf.users++;
+			uf.lastUsed = currentTimeMillis();
+			return uf;
+		}
+	}
+
+	private void release(UserFactory uf) {
+		synchronized (factory) {
+			uf.users--;
+			uf.lastUsed = currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Forget about a factory that cannot be talked to any more, and make sure
+	 * its process is gone.
+	 * 
+	 * @return Whether the factory was still known about.
+	 */
+	private boolean discard(UserFactory uf) {
+		synchronized (factory) {
+			if (factory.get(uf.username) != uf)
+				return false;
+			factory.remove(uf.username);
+		}
+		log.info("discarded factory " + uf.name + " for " + uf.username);
+		kill(uf);
+		return true;
+	}
+
+	/** Kill off the process of a factory, through the meta-factory. */
+	private void kill(UserFactory uf) {
+		MetaFactory mf;
+		synchronized (this) {
+			mf = forker;
+		}
+		if (mf == null)
 			return;
-		if (forker == null)
-			initMetaFactory();
-		forker.make(username);
+		try {
+			mf.kill(uf.name);
+		} catch (IOException e) {
+			log.warn("failed to request death of " + uf.name, e);
+		}
 	}
 
 	/**
-	 * Destroys the subprocess that manufactures runs.
+	 * Shut down a factory, provided nobody has used it since a given time.
+	 * 
+	 * @param uf
+	 *            The factory to shut down.
+	 * @param since
+	 *            When the factory was found to have no runs.
+	 * @return Whether the factory was shut down.
 	 */
-	@PreDestroy
-	public void killFactories() {
-		if (!factory.isEmpty()) {
-			Iterator<String> keys = factory.keySet().iterator();
-			while (keys.hasNext()) {
-				String key = keys.next();
-				log.info("requesting shutdown of "
-						+ factoryProcessName.get(key));
-				try {
-					factory.get(key).shutdown();
-				} catch (RemoteException e) {
-					log.warn(factoryProcessName.get(key)
-							+ " failed to shut down nicely", e);
-				} finally {
-					keys.remove();
-					factoryProcessName.remove(key);
+	private boolean retire(UserFactory uf, long since) {
+		synchronized (factory) {
+			if (uf.users > 0 || uf.lastUsed >= since
+					|| factory.get(uf.username) != uf)
+				return false;
+			factory.remove(uf.username);
+		}
+		log.info("requesting shutdown of " + uf.name);
+		try {
+			uf.handle.shutdown();
+		} catch (RemoteException e) {
+			log.warn(uf.name + " failed to shut down nicely", e);
+			kill(uf);
+		}
+		return true;
+	}
+
+	/**
+	 * If starting another factory would go over the cap, shut down the least
+	 * recently used factory that has no runs.
+	 * 
+	 * @throws NoCreateException
+	 *             If there is no factory that can be shut down.
+	 */
+	private void makeRoom() throws NoCreateException {
+		while (true) {
+			List<UserFactory> candidates;
+			synchronized (factory) {
+				// The factory we are about to start is counted as starting
+				if (factory.size() + starting.size() <= maxProcesses)
+					return;
+				candidates = new ArrayList<>(factory.values());
+				sort(candidates, new Comparator<UserFactory>() {
+					@Override
+					public int compare(UserFactory a, UserFactory b) {
+						return Long.compare(a.lastUsed, b.lastUsed);
+					}
+				});
+			}
+			if (!evictOne(candidates))
+				throw new NoCreateException("already " + maxProcesses
+						+ " factory processes, all of which are in use");
+		}
+	}
+
+	/**
+	 * Shut down the first factory in a list that has no runs. A factory that
+	 * has gone is discarded instead; one that does not answer for some other
+	 * reason is assumed to be busy, and is left alone.
+	 * 
+	 * @return Whether a factory was removed.
+	 */
+	private boolean evictOne(List<UserFactory> candidates) {
+		for (UserFactory uf : candidates) {
+			long since = currentTimeMillis();
+			try {
+				if (countLiveRuns(uf.handle) > 0)
+					continue;
+			} catch (ConnectException | NoSuchObjectException e) {
+				if (discard(uf))
+					return true;
+				continue;
+			} catch (RemoteException e) {
+				log.info("factory " + uf.name + " did not answer; "
+						+ "assuming it is busy", e);
+				continue;
+			}
+			if (retire(uf, since)) {
+				log.info("shut down least recently used factory of "
+						+ uf.username + " to make room");
+				evicted.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Shut down the factories that have had no runs for long enough, forget
+	 * those that have died, and start factories for users who have submitted
+	 * runs recently but have none.
+	 */
+	@Override
+	public void tidyFactories() {
+		List<UserFactory> current;
+		synchronized (factory) {
+			current = new ArrayList<>(factory.values());
+		}
+		Set<String> recent = recentSubmitters();
+		for (UserFactory uf : current) {
+			long since = currentTimeMillis();
+			int live;
+			try {
+				live = countLiveRuns(uf.handle);
+			} catch (ConnectException | NoSuchObjectException e) {
+				discard(uf);
+				continue;
+			} catch (RemoteException e) {
+				// Busy, probably; look again next time
+				continue;
+			}
+			if (live > 0 || idleTimeout <= 0 || recent.contains(uf.username))
+				continue;
+			boolean idle;
+			synchronized (factory) {
+				idle = since - uf.lastUsed > idleTimeout;
+			}
+			if (idle && retire(uf, since)) {
+				log.info("shut down idle factory of " + uf.username);
+				reaped.incrementAndGet();
+			}
+		}
+		for (String username : recent)
+			prewarm(username);
+	}
+
+	private void noteSubmission(String username) {
+		if (prewarmWindow <= 0)
+			return;
+		synchronized (lastSubmission) {
+			lastSubmission.put(username, currentTimeMillis());
+		}
+	}
+
+	private Set<String> recentSubmitters() {
+		Set<String> result = new HashSet<>();
+		long cutoff = currentTimeMillis() - prewarmWindow;
+		synchronized (lastSubmission) {
+			Iterator<Map.Entry<String, Long>> it = lastSubmission.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Long> e = it.next();
+				if (prewarmWindow <= 0 || e.getValue() < cutoff)
+					it.remove();
+				else
+					result.add(e.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Start a user's factory in the background, if they do not have one and
+	 * there is room for it without shutting down anyone else's.
+	 */
+	private void prewarm(final String username) {
+		synchronized (factory) {
+			if (factory.containsKey(username) || starting.contains(username)
+					|| factory.size() + starting.size() >= maxProcesses)
+				return;
+			starting.add(username);
+		}
+		try {
+			prewarmer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						log.info("starting factory for " + username
+								+ " in advance");
+						getForker().make(username);
+						prewarmed.incrementAndGet();
+					} catch (Exception e) {
+						log.warn("failed to start factory for " + username
+								+ " in advance", e);
+					} finally {
+						synchronized (factory) {
+							starting.remove(username);
+							factory.notifyAll();
+						}
+					}
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (factory) {
+				starting.remove(username);
+				factory.notifyAll();
 			}
+		}
+	}
+
+	/**
+	 * Destroys the subprocesses that manufacture runs.
+	 */
+	@PreDestroy
+	public void killFactories() {
+		prewarmer.shutdownNow();
+		List<UserFactory> all;
+		synchronized (factory) {
+			all = new ArrayList<>(factory.values());
+			factory.clear();
+		}
+		for (UserFactory uf : all) {
+			log.info("requesting shutdown of " + uf.name);
 			try {
-				sleep(700);
-			} catch (InterruptedException e) {
-				if (log.isDebugEnabled())
-					log.debug("interrupted during wait after "
-							+ "asking factories to shut down", e);
+				uf.handle.shutdown();
+			} catch (RemoteException e) {
+				log.warn(uf.name + " failed to shut down nicely", e);
 			}
 		}
+		// Wait for them to go, but not for long; they are only being polite
+		long deadline = currentTimeMillis() + SHUTDOWN_GRACE;
+		try {
+			for (UserFactory uf : all)
+				while (currentTimeMillis() < deadline && uf.isAlive())
+					sleep(SHUTDOWN_POLL);
+		} catch (InterruptedException e) {
+			if (log.isDebugEnabled())
+				log.debug("interrupted during wait after "
+						+ "asking factories to shut down", e);
+		}
+		for (UserFactory uf : all)
+			if (uf.isAlive())
+				kill(uf);
 
 		try {
 			killForker();
@@ -271,24 +743,24 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 	 * The real core of the run builder, factored out from its reliability
 	 * support.
 	 * 
+	 * @param factory
+	 *            The factory to make the run with.
 	 * @param creator
 	 *            Who created this workflow?
-	 * @param username
-	 *            What user account is this workflow to be executed in?
 	 * @param wf
 	 *            The serialized workflow.
 	 * @return The remote handle of the workflow run.
 	 * @throws RemoteException
 	 *             If anything fails (communications error, etc.)
 	 */
-	private RemoteSingleRun getRealRun(@Nonnull UsernamePrincipal creator,
-			@Nonnull String username, @Nonnull byte[] wf, UUID id)
+	private RemoteSingleRun getRealRun(@Nonnull RemoteRunFactory factory,
+			@Nonnull UsernamePrincipal creator, @Nonnull byte[] wf, UUID id)
 			throws RemoteException {
 		String globaluser = "Unknown Person";
 		if (creator != null)
 			globaluser = creator.getName();
-		RemoteSingleRun rsr = factory.get(username).make(wf, globaluser,
-				makeURReciver(creator), id);
+		RemoteSingleRun rsr = factory.make(wf, globaluser,
+				makeURReciver(creator, id), id);
 		incrementRunCount();
 		return rsr;
 	}
@@ -302,18 +774,20 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 		if (username == null)
 			throw new Exception("cannot determine who to run workflow as; "
 					+ "local identity mapper returned null");
+		noteSubmission(username);
 		for (int i = 0; i < 3; i++) {
-			if (!factory.containsKey(username))
-				initFactory(username);
+			UserFactory uf = acquire(username);
 			try {
-				return getRealRun(creator, username, wf, id);
+				return getRealRun(uf.handle, creator, wf, id);
 			} catch (ConnectException | ConnectIOException e) {
 				// factory was lost; try to recreate
+				discard(uf);
+			} finally {
+				release(uf);
 			}
-			factory.remove(username);
 		}
-		throw new NoCreateException("total failure to connect to factory "
-				+ factoryProcessName + "despite attempting restart");
+		throw new NoCreateException("total failure to connect to factory for "
+				+ username + " despite attempting restart");
 	}
 
 	@Value("${secureForkPasswordFile}")
@@ -339,10 +813,20 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 	@Override
 	protected int operatingCount() throws Exception {
 		int total = 0;
-		for (RemoteRunFactory rrf : factory.values())
+		for (RemoteRunFactory rrf : getFactories())
 			total += rrf.countOperatingRuns();
 		return total;
 	}
+
+	@Override
+	protected Collection<RemoteRunFactory> getFactories() {
+		List<RemoteRunFactory> result = new ArrayList<>();
+		synchronized (factory) {
+			for (UserFactory uf : factory.values())
+				result.add(uf.handle);
+		}
+		return result;
+	}
 }
 
 /**
@@ -351,6 +835,8 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
  * @author Donal Fellows
  */
 class SecureFork implements IdAwareForkRunFactory.MetaFactory {
+	/** Asks the secure fork process to kill one of its subprocesses. */
+	private static final String KILL_REQUEST = "-kill";
 	private IdAwareForkRunFactory main;
 	private Process process;
 	private PrintWriter channel;
@@ -359,6 +845,8 @@ class SecureFork implements IdAwareForkRunFactory.MetaFactory {
 	private Log log;
 	private LocalWorkerState state;
 	private StreamLogger out, err;
+	/** Released when the factory with that name says it is ready. */
+	private final Map<String, CountDownLatch> announced = new ConcurrentHashMap<>();
 
 	/**
 	 * Construct the command to run the meta-factory process.
@@ -405,6 +893,11 @@ class SecureFork implements IdAwareForkRunFactory.MetaFactory {
 			@Override
 			protected void write(String msg) {
 				log.info(msg);
+				// Relayed with a prefix saying which stream it came from
+				int idx = msg.indexOf(READY_ANNOUNCEMENT);
+				if (idx >= 0)
+					announce(msg.substring(idx + READY_ANNOUNCEMENT.length())
+							.trim());
 			}
 		};
 		err = new StreamLogger("ForkedStderr", process.getErrorStream()) {
@@ -455,6 +948,20 @@ class SecureFork implements IdAwareForkRunFactory.MetaFactory {
 		}
 	}
 
+	@Override
+	public void kill(String name) {
+		if (channel == null)
+			return;
+		log.info("about to request death of " + name);
+		channel.println(KILL_REQUEST + " " + name);
+	}
+
+	private void announce(String fpn) {
+		CountDownLatch latch = announced.get(fpn);
+		if (latch != null)
+			latch.countDown();
+	}
+
 	protected void make(String username, String fpn) {
 		log.info("about to request subprocess creation for " + username
 				+ " producing ID " + fpn);
@@ -475,42 +982,65 @@ class SecureFork implements IdAwareForkRunFactory.MetaFactory {
 		}
 
 		String fpn = state.getFactoryProcessNamePrefix() + randomUUID();
-		make(username, fpn);
+		CountDownLatch ready = new CountDownLatch(1);
+		announced.put(fpn, ready);
+		try {
+			make(username, fpn);
+			return awaitFactory(username, fpn, ready);
+		} finally {
+			announced.remove(fpn);
+		}
+	}
 
-		// Wait for the subprocess to register itself in the RMI registry
+	/**
+	 * Wait for the subprocess to register itself in the RMI registry. It says
+	 * when it has done so, but in case that is missed, the registry is also
+	 * polled.
+	 */
+	private RemoteRunFactory awaitFactory(String username, String fpn,
+			CountDownLatch ready) throws Exception {
 		Calendar deadline = Calendar.getInstance();
 		deadline.add(SECOND, state.getWaitSeconds());
 		Exception lastException = null;
-		lastStartupCheckCount = 0;
-		while (deadline.after(Calendar.getInstance())) {
-			try {
-				sleep(state.getSleepMS());
-				lastStartupCheckCount++;
-				log.info("about to look up resource called " + fpn);
-				RemoteRunFactory f = (RemoteRunFactory) main.getTheRegistry()
-						.lookup(fpn);
-				log.info("successfully connected to factory subprocess " + fpn);
-				main.initInteractionDetails(f);
-				main.registerFactory(username, fpn, f);
-				return f;
-			} catch (InterruptedException ie) {
-				continue;
-			} catch (NotBoundException nbe) {
-				lastException = nbe;
-				log.info("resource \"" + fpn + "\" not yet registered...");
-				continue;
-			} catch (RemoteException re) {
-				// Unpack a remote exception if we can
-				lastException = re;
+		int checks = 0;
+		boolean heard = false;
+		try {
+			while (deadline.after(Calendar.getInstance())) {
 				try {
-					if (re.getCause() != null)
-						lastException = (Exception) re.getCause();
-				} catch (Throwable t) {
-					// Ignore!
+					if (heard)
+						sleep(state.getSleepMS());
+					else
+						heard = ready.await(state.getSleepMS(), MILLISECONDS);
+					checks++;
+					log.info("about to look up resource called " + fpn);
+					RemoteRunFactory f = (RemoteRunFactory) main
+							.getTheRegistry().lookup(fpn);
+					log.info("successfully connected to factory subprocess "
+							+ fpn);
+					main.initInteractionDetails(f);
+					main.registerFactory(username, fpn, f);
+					return f;
+				} catch (InterruptedException ie) {
+					continue;
+				} catch (NotBoundException nbe) {
+					lastException = nbe;
+					log.info("resource \"" + fpn + "\" not yet registered...");
+					continue;
+				} catch (RemoteException re) {
+					// Unpack a remote exception if we can
+					lastException = re;
+					try {
+						if (re.getCause() != null)
+							lastException = (Exception) re.getCause();
+					} catch (Throwable t) {
+						// Ignore!
+					}
+				} catch (Exception e) {
+					lastException = e;
 				}
-			} catch (Exception e) {
-				lastException = e;
 			}
+		} finally {
+			lastStartupCheckCount = checks;
 		}
 		if (lastException == null)
 			lastException = new InterruptedException();
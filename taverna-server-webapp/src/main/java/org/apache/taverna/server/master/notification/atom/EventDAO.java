@@ -30,6 +30,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.jdo.annotations.PersistenceAware;
 
@@ -184,11 +185,18 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 				messageSubject, messageContent));
 	}
 
+	private EventDAO self;
 	private Thread eventDaemon;
 	private boolean shuttingDown = false;
 
 	@Required
-	public void setSelf(final EventDAO dao) {
+	public void setSelf(EventDAO dao) {
+		this.self = dao;
+	}
+
+	@PostConstruct
+	void startDaemon() {
+		final EventDAO dao = self;
 		eventDaemon = new Thread(new Runnable() {
 			@Override
 			public void run() {
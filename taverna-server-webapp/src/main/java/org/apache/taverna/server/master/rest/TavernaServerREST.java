@@ -43,12 +43,14 @@ import java.util.Map;
 import javax.annotation.Nonnull;
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
@@ -109,15 +111,21 @@ public interface TavernaServerREST {
 	 * 
 	 * @param ui
 	 *            About the URI being accessed.
+	 * @param offset
+	 *            How many runs to skip over; runs are listed oldest first.
+	 * @param limit
+	 *            The maximum number of runs to list, or -1 for all of them.
 	 * @return A description of the list of runs that are available.
 	 */
 	@GET
 	@Path(RUNS)
 	@Produces({ XML, JSON })
 	@RolesAllowed(USER)
-	@Description("Produces a list of all runs visible to the user.")
+	@Description("Produces a list of all runs visible to the user, oldest first. The list may be paged through with the offset and limit query parameters.")
 	@Nonnull
-	RunList listUsersRuns(@Nonnull @Context UriInfo ui);
+	RunList listUsersRuns(@Nonnull @Context UriInfo ui,
+			@QueryParam("offset") @DefaultValue("0") int offset,
+			@QueryParam("limit") @DefaultValue("-1") int limit);
 
 	/**
 	 * Accepts (or not) a request to create a new run executing the given
@@ -57,11 +57,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
@@ -483,16 +485,33 @@ public interface TavernaServerRunREST {
 	InteractionFeedREST getInteractionFeed();
 
 	/**
-	 * @return The stdout for the workflow run, or empty string if the run has
+	 * Get what the workflow run has written to its stdout. Without an offset,
+	 * this is all of the output so far. With one, it is the section of the
+	 * output starting at that byte offset (or, if negative, that many bytes
+	 * before the end), and the response headers say where the section starts
+	 * and where the next one should be asked for, so that the output can be
+	 * followed as it grows.
+	 * 
+	 * @param offset
+	 *            Where to start reading, in bytes, or <tt>null</tt> for all
+	 *            of the output.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as the
+	 *            server will give at once. Only used with an offset.
+	 * @return The stdout for the workflow run, or empty content if the run has
 	 *         not yet started.
 	 * @throws NoListenerException
+	 * @throws FilesystemAccessException
+	 *             If the section of the output cannot be read.
 	 */
 	@GET
 	@Path(STDOUT)
-	@Description("Return the stdout for the workflow run.")
+	@Description("Return the stdout for the workflow run. A section of it may be read with the offset and length query parameters.")
 	@Produces(TEXT)
 	@Nonnull
-	String getStdout() throws NoListenerException;
+	Response getStdout(@QueryParam("offset") Long offset,
+			@QueryParam("length") @DefaultValue("-1") int length)
+			throws NoListenerException, FilesystemAccessException;
 
 	/** Get an outline of the operations supported. */
 	@OPTIONS
@@ -501,16 +520,29 @@ public interface TavernaServerRunREST {
 	Response stdoutOptions();
 
 	/**
-	 * @return The stderr for the workflow run, or empty string if the run has
+	 * Get what the workflow run has written to its stderr. The parameters and
+	 * headers are as for {@link #getStdout(Long, int)}.
+	 * 
+	 * @param offset
+	 *            Where to start reading, in bytes, or <tt>null</tt> for all
+	 *            of the output.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as the
+	 *            server will give at once. Only used with an offset.
+	 * @return The stderr for the workflow run, or empty content if the run has
 	 *         not yet started.
 	 * @throws NoListenerException
+	 * @throws FilesystemAccessException
+	 *             If the section of the output cannot be read.
 	 */
 	@GET
 	@Path(STDERR)
-	@Description("Return the stderr for the workflow run.")
+	@Description("Return the stderr for the workflow run. A section of it may be read with the offset and length query parameters.")
 	@Produces(TEXT)
 	@Nonnull
-	String getStderr() throws NoListenerException;
+	Response getStderr(@QueryParam("offset") Long offset,
+			@QueryParam("length") @DefaultValue("-1") int length)
+			throws NoListenerException, FilesystemAccessException;
 
 	/** Get an outline of the operations supported. */
 	@OPTIONS
@@ -632,6 +664,23 @@ public interface TavernaServerRunREST {
 		public static final String GENERATE_PROVENANCE = "generate-provenance";
 	}
 
+	/**
+	 * The names of the response headers that describe a section of the stdout
+	 * or stderr of a run.
+	 * 
+	 * @author Donal Fellows
+	 */
+	interface OutputHeaders {
+		/** Where the section starts, in bytes. */
+		public static final String OFFSET = "X-Taverna-Output-Offset";
+		/** Where the following section starts, in bytes. */
+		public static final String NEXT_OFFSET = "X-Taverna-Output-Next-Offset";
+		/** How many bytes have been written so far. */
+		public static final String TOTAL_LENGTH = "X-Taverna-Output-Length";
+		/** Whether the output has ended. */
+		public static final String COMPLETE = "X-Taverna-Output-Complete";
+	}
+
 	/**
 	 * The description of where everything is in a RESTful view of a workflow
 	 * run. Done with JAXB.
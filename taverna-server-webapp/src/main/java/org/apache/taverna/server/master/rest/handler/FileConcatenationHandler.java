@@ -17,6 +17,7 @@ package org.apache.taverna.server.master.rest.handler;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
@@ -32,12 +33,12 @@ import org.apache.taverna.server.master.interfaces.File;
 
 public class FileConcatenationHandler implements
 		MessageBodyWriter<FileConcatenation> {
-	/** How much to pull from the worker in one read. */
+	/** How much to pass on to the client in one write. */
 	private int maxChunkSize;
 
 	/**
 	 * @param maxChunkSize
-	 *            How much to pull from the worker in one read.
+	 *            How much to pass on to the client in one write.
 	 */
 	@Required
 	public void setMaxChunkSize(int maxChunkSize) {
@@ -61,15 +62,12 @@ public class FileConcatenationHandler implements
 			Annotation[] annotations, MediaType mediaType,
 			MultivaluedMap<String, Object> httpHeaders,
 			OutputStream entityStream) throws IOException {
+		byte[] buffer = new byte[maxChunkSize];
 		for (File f : fc)
-			try {
-				byte[] buffer;
-				for (int off = 0; true ; off += buffer.length) {
-					buffer = f.getContents(off, maxChunkSize);
-					if (buffer == null || buffer.length == 0)
-						break;
-					entityStream.write(buffer);
-				}
+			try (InputStream from = f.getContentsAsStream(0, -1)) {
+				int len;
+				while ((len = from.read(buffer)) >= 0)
+					entityStream.write(buffer, 0, len);
 			} catch (FilesystemAccessException e) {
 				// Ignore/skip to next file
 			}
@@ -21,6 +21,7 @@ package org.apache.taverna.server.master.rest.handler;
 import static org.apache.commons.logging.LogFactory.getLog;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
@@ -43,12 +44,12 @@ import org.apache.taverna.server.master.interfaces.File;
 @Provider
 public class FileMessageHandler implements MessageBodyWriter<File> {
 	private Log log = getLog("Taverna.Server.Webapp");
-	/** How much to pull from the worker in one read. */
+	/** How much to pass on to the client in one write. */
 	private int maxChunkSize;
 
 	/**
 	 * @param maxChunkSize
-	 *            How much to pull from the worker in one read.
+	 *            How much to pass on to the client in one write.
 	 */
 	public void setMaxChunkSize(int maxChunkSize) {
 		this.maxChunkSize = maxChunkSize;
@@ -77,15 +78,11 @@ public class FileMessageHandler implements MessageBodyWriter<File> {
 			MultivaluedMap<String, Object> httpHeaders,
 			OutputStream entityStream) throws IOException,
 			WebApplicationException {
-		try {
-			int off = 0;
-			while (true) {
-				byte[] buffer = t.getContents(off, maxChunkSize);
-				if (buffer == null || buffer.length == 0)
-					break;
-				entityStream.write(buffer);
-				off += buffer.length;
-			}
+		try (InputStream from = t.getContentsAsStream(0, -1)) {
+			byte[] buffer = new byte[maxChunkSize];
+			int len;
+			while ((len = from.read(buffer)) >= 0)
+				entityStream.write(buffer, 0, len);
 		} catch (FilesystemAccessException e) {
 			throw new IOException("problem when reading file", e);
 		}
@@ -18,9 +18,8 @@ package org.apache.taverna.server.master.rest.handler;
  * limitations under the License.
  */
 
-import static java.lang.Math.min;
-
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
@@ -41,12 +40,12 @@ import org.apache.taverna.server.master.rest.FileSegment;
  */
 @Provider
 public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
-	/** How much to pull from the worker in one read. */
+	/** How much to pass on to the client in one write. */
 	private int maxChunkSize;
 
 	/**
 	 * @param maxChunkSize
-	 *            How much to pull from the worker in one read.
+	 *            How much to pass on to the client in one write.
 	 */
 	public void setMaxChunkSize(int maxChunkSize) {
 		this.maxChunkSize = maxChunkSize;
@@ -70,16 +69,12 @@ public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
 			MultivaluedMap<String, Object> httpHeaders,
 			OutputStream entityStream) throws IOException,
 			WebApplicationException {
-		try {
-			int off = t.from;
-			while (off < t.to) {
-				byte[] buffer = t.file.getContents(off,
-						min(maxChunkSize, t.to - off));
-				if (buffer == null || buffer.length == 0)
-					break;
-				entityStream.write(buffer);
-				off += buffer.length;
-			}
+		try (InputStream from = t.file.getContentsAsStream(t.from, t.to
+				- t.from)) {
+			byte[] buffer = new byte[maxChunkSize];
+			int len;
+			while ((len = from.read(buffer)) >= 0)
+				entityStream.write(buffer, 0, len);
 		} catch (FilesystemAccessException e) {
 			throw new IOException("problem when reading file", e);
 		}
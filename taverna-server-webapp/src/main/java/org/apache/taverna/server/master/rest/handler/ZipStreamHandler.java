@@ -62,6 +62,10 @@ public class ZipStreamHandler implements MessageBodyWriter<ZipStream> {
 			MultivaluedMap<String, Object> httpHeaders,
 			OutputStream entityStream) throws IOException,
 			WebApplicationException {
-		copy(zipStream, entityStream);
+		try {
+			copy(zipStream, entityStream);
+		} finally {
+			zipStream.close();
+		}
 	}
 }
@@ -18,8 +18,7 @@ package org.apache.taverna.server.master.soap;
  * limitations under the License.
  */
 
-import static java.lang.Math.min;
-import static java.lang.System.arraycopy;
+import static org.apache.commons.io.IOUtils.copy;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,21 +67,9 @@ public class FileContents {
 	 */
 	public void writeToFile(File file) throws IOException,
 			FilesystemAccessException {
-		try (InputStream is = fileData.getInputStream()) {
-			byte[] buf = new byte[65536];
-			file.setContents(new byte[0]);
-			while (true) {
-				int len = is.read(buf);
-				if (len <= 0)
-					return;
-				if (len == buf.length)
-					file.appendContents(buf);
-				else {
-					byte[] shortbuf = new byte[len];
-					arraycopy(buf, 0, shortbuf, 0, len);
-					file.appendContents(shortbuf);
-				}
-			}
+		try (InputStream is = fileData.getInputStream();
+				OutputStream os = file.getContentsOutputStream(false)) {
+			copy(is, os);
 		}
 	}
 }
@@ -113,72 +100,19 @@ class TavernaFileSource implements DataSource {
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		final File f = this.f;
-		return new InputStream() {
-			private int idx;
-
-			@Override
-			public int read(byte[] b, int off, int len) throws IOException {
-				byte[] r;
-				try {
-					r = f.getContents(idx, len);
-				} catch (FilesystemAccessException e) {
-					throw new IOException(e);
-				}
-				if (r == null)
-					return -1;
-				len = min(len, r.length);
-				arraycopy(r, 0, b, off, len);
-				idx += len;
-				return len;
-			}
-
-			@Override
-			public int read() throws IOException {
-				byte[] r;
-				try {
-					r = f.getContents(idx, 1);
-				} catch (FilesystemAccessException e) {
-					throw new IOException(e);
-				}
-				if (r == null)
-					return -1;
-				idx++;
-				return r[0];
-			}
-		};
+		try {
+			return f.getContentsAsStream(0, -1);
+		} catch (FilesystemAccessException e) {
+			throw new IOException(e);
+		}
 	}
 
 	@Override
 	public OutputStream getOutputStream() throws IOException {
-		final File f = this.f;
-		return new OutputStream() {
-			private boolean append = false;
-
-			@Override
-			public void write(int b) throws IOException {
-				write(new byte[] { (byte) b });
-			}
-
-			@Override
-			public void write(byte[] b) throws IOException {
-				try {
-					if (append)
-						f.appendContents(b);
-					else
-						f.setContents(b);
-					append = true;
-				} catch (FilesystemAccessException e) {
-					throw new IOException(e);
-				}
-			}
-
-			@Override
-			public void write(byte[] b, int off, int len) throws IOException {
-				byte[] ary = new byte[len];
-				arraycopy(b, off, ary, 0, len);
-				write(ary);
-			}
-		};
+		try {
+			return f.getContentsOutputStream(false);
+		} catch (FilesystemAccessException e) {
+			throw new IOException(e);
+		}
 	}
 }
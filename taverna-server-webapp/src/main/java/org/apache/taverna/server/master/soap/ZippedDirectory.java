@@ -39,7 +39,7 @@ import org.apache.taverna.server.master.interfaces.Directory;
  * directory.
  * 
  * @author Donal Fellows
- * @see Directory#getContentsAsZip()
+ * @see Directory#getContentsAsZip(int)
  */
 @XmlType(name = "ZippedDirectory")
 public class ZippedDirectory {
@@ -57,10 +57,12 @@ public class ZippedDirectory {
 	 * 
 	 * @param dir
 	 *            The directory that is to be reported.
+	 * @param compressionLevel
+	 *            How hard to compress the contents of the directory.
 	 */
-	public ZippedDirectory(Directory dir) {
+	public ZippedDirectory(Directory dir, int compressionLevel) {
 		name = dir.getFullName();
-		fileData = new DataHandler(new ZipSource(dir));
+		fileData = new DataHandler(new ZipSource(dir, compressionLevel));
 	}
 }
 
@@ -70,11 +72,13 @@ public class ZippedDirectory {
  * @author Donal Fellows
  */
 class ZipSource implements DataSource {
-	ZipSource(Directory d) {
+	ZipSource(Directory d, int compressionLevel) {
 		this.d = d;
+		this.compressionLevel = compressionLevel;
 	}
 
 	private final Directory d;
+	private final int compressionLevel;
 
 	@Override
 	public String getContentType() {
@@ -89,7 +93,7 @@ class ZipSource implements DataSource {
 	@Override
 	public InputStream getInputStream() throws IOException {
 		try {
-			return d.getContentsAsZip();
+			return d.getContentsAsZip(compressionLevel);
 		} catch (FilesystemAccessException e) {
 			throw new IOException(e);
 		}
@@ -0,0 +1,205 @@
+/*
+ */
+package org.apache.taverna.server.master.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.taverna.server.master.exceptions.OverloadedException;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The shared pool of threads used by the webapp for short background tasks,
+ * such as handling the completion of a run. The number of threads is bounded,
+ * so that a burst of load cannot make it grow without limit. Tasks are handed
+ * straight to a thread rather than queued, and are refused when there is no
+ * thread for them. Tasks that last as long as something else does (such as
+ * relaying a subprocess's output) must not be run here, as they could hold
+ * all the threads; they get threads of their own.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "Executor", description = "The shared pool of threads for background tasks.")
+public class BoundedExecutor implements Executor {
+	/** How long an idle thread lingers before exiting, in seconds. */
+	private static final long KEEP_ALIVE = 60;
+	private Log log = getLog("Taverna.Server.Webapp");
+	private int maxThreads;
+	private ThreadPoolExecutor pool;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param maxThreads
+	 *            The maximum number of threads in the pool.
+	 */
+	@Required
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+
+	@PostConstruct
+	void start() {
+		/*
+		 * Direct handoff: a task goes to an idle thread or a new one, up to
+		 * the limit, and is otherwise refused. Nothing ever waits in a queue
+		 * behind a task that might not finish.
+		 */
+		pool = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE,
+				SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Taverna.Server.Task."
+								+ count.incrementAndGet());
+						t.setContextClassLoader(null);
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor executor) {
+						rejected.incrementAndGet();
+						throw new RejectedExecutionException(
+								"no capacity to run background task");
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	@PreDestroy
+	void stop() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Run a task in the background.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @throws RejectedExecutionException
+	 *             If there are no threads left.
+	 */
+	@Override
+	public void execute(Runnable task) throws RejectedExecutionException {
+		pool.execute(task);
+	}
+
+	/**
+	 * Run a task in the background, returning a handle to it.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @return The handle to the task; cancelling it interrupts the task.
+	 * @throws OverloadedException
+	 *             If there are no threads left.
+	 */
+	public <T> Future<T> submit(Callable<T> task) throws OverloadedException {
+		try {
+			return pool.submit(task);
+		} catch (RejectedExecutionException e) {
+			log.warn("background task rejected: " + pool.getActiveCount()
+					+ " active");
+			throw new OverloadedException(e);
+		}
+	}
+
+	/**
+	 * Run a task in the background, returning a handle to it.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @return The handle to the task; cancelling it interrupts the task.
+	 * @throws OverloadedException
+	 *             If there are no threads left.
+	 */
+	public Future<?> submit(Runnable task) throws OverloadedException {
+		try {
+			return pool.submit(task);
+		} catch (RejectedExecutionException e) {
+			log.warn("background task rejected: " + pool.getActiveCount()
+					+ " active");
+			throw new OverloadedException(e);
+		}
+	}
+
+	@ManagedMetric(description = "Number of threads currently running tasks.", metricType = GAUGE, category = "utilization")
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	@ManagedMetric(description = "Number of threads currently in the pool.", metricType = GAUGE, category = "utilization")
+	public int getPoolSize() {
+		return pool.getPoolSize();
+	}
+
+	@ManagedMetric(description = "Largest number of threads that have ever been in the pool.", metricType = GAUGE, category = "utilization")
+	public int getLargestPoolSize() {
+		return pool.getLargestPoolSize();
+	}
+
+	@ManagedAttribute(description = "Maximum number of threads in the pool.")
+	public int getMaximumPoolSize() {
+		return pool.getMaximumPoolSize();
+	}
+
+	@ManagedAttribute(description = "Maximum number of threads in the pool.")
+	public void setMaximumPoolSize(int size) {
+		if (size < pool.getCorePoolSize()) {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		} else {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		}
+	}
+
+	@ManagedMetric(description = "Number of tasks that have finished.", metricType = COUNTER, category = "throughput")
+	public long getCompletedTaskCount() {
+		return pool.getCompletedTaskCount();
+	}
+
+	@ManagedMetric(description = "Number of tasks refused because the pool was saturated.", metricType = COUNTER, category = "throughput")
+	public long getRejectedTaskCount() {
+		return rejected.get();
+	}
+}
@@ -36,8 +36,6 @@ import org.apache.taverna.server.master.interfaces.TavernaRun;
  * @author Donal Fellows
  */
 public class FilenameUtils {
-	private static final String TYPE_ERROR = "trying to take subdirectory of file";
-	private static final String NO_FILE = "no such directory entry";
 	private static final String NOT_A_FILE = "not a file";
 	private static final String NOT_A_DIR = "not a directory";
 
@@ -62,22 +60,7 @@ public class FilenameUtils {
 		Directory dir = run.getWorkingDirectory();
 		if (name == null || name.isEmpty())
 			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		// Must be nested loops; avoids problems with %-encoded "/" chars
-		for (String bit : name.split("/")) {
-			if (mustBeLast)
-				throw new FilesystemAccessException(TYPE_ERROR);
-			found = getEntryFromDir(bit, dir);
-			dir = null;
-			if (found instanceof Directory) {
-				dir = (Directory) found;
-				mustBeLast = false;
-			} else
-				mustBeLast = true;
-		}
-		return found;
+		return dir.getEntry(name);
 	}
 
 	/**
@@ -101,23 +84,14 @@ public class FilenameUtils {
 		Directory dir = run.getWorkingDirectory();
 		if (d == null || d.isEmpty())
 			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		// Must be nested loops; avoids problems with %-encoded "/" chars
-		for (PathSegment segment : d)
-			for (String bit : segment.getPath().split("/")) {
-				if (mustBeLast)
-					throw new FilesystemAccessException(TYPE_ERROR);
-				found = getEntryFromDir(bit, dir);
-				dir = null;
-				if (found instanceof Directory) {
-					dir = (Directory) found;
-					mustBeLast = false;
-				} else
-					mustBeLast = true;
-			}
-		return found;
+		// A segment may hold %-encoded "/" chars; they separate parts too
+		StringBuilder path = new StringBuilder();
+		for (PathSegment segment : d) {
+			if (path.length() > 0)
+				path.append('/');
+			path.append(segment.getPath());
+		}
+		return dir.getEntry(path.toString());
 	}
 
 	/**
@@ -141,44 +115,7 @@ public class FilenameUtils {
 		Directory dir = run.getWorkingDirectory();
 		if (d == null || d.path == null || d.path.isEmpty())
 			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		for (String bit : d.path.split("/")) {
-			if (mustBeLast)
-				throw new FilesystemAccessException(TYPE_ERROR);
-			found = getEntryFromDir(bit, dir);
-			dir = null;
-			if (found instanceof Directory) {
-				dir = (Directory) found;
-				mustBeLast = false;
-			} else
-				mustBeLast = true;
-		}
-		return found;
-	}
-
-	/**
-	 * Get a named directory entry from a directory.
-	 * 
-	 * @param name
-	 *            The name of the entry; must be "<tt>/</tt>"-free.
-	 * @param dir
-	 *            The directory to look in.
-	 * @return The directory entry whose name is equal to the given name.
-	 * @throws NoDirectoryEntryException
-	 *             If there is no such entry.
-	 * @throws FilesystemAccessException
-	 *             If the directory isn't specified or isn't readable.
-	 */
-	private DirectoryEntry getEntryFromDir(String name, Directory dir)
-			throws FilesystemAccessException, NoDirectoryEntryException {
-		if (dir == null)
-			throw new FilesystemAccessException(NO_FILE);
-		for (DirectoryEntry entry : dir.getContents())
-			if (entry.getName().equals(name))
-				return entry;
-		throw new NoDirectoryEntryException(NO_FILE);
+		return dir.getEntry(d.path);
 	}
 
 	/**
@@ -20,17 +20,27 @@ package org.apache.taverna.server.master.utils;
 
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static javax.jdo.Constants.TX_READ_COMMITTED;
 import static org.apache.commons.logging.LogFactory.getLog;
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
 
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.sql.SQLException;
+import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.jdo.JDOException;
+import javax.jdo.JDOOptimisticVerificationException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
@@ -41,6 +51,9 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
  * Simple support class that wraps up and provides access to the correct parts
@@ -53,6 +66,7 @@ import org.springframework.beans.factory.annotation.Required;
 public abstract class JDOSupport<T> {
 	private Class<T> contextClass;
 	private PersistenceManagerBuilder pmb;
+	private String isolationLevel = TX_READ_COMMITTED;
 
 	/**
 	 * Instantiate this class, supplying it a handle to the class that will be
@@ -75,6 +89,20 @@ public abstract class JDOSupport<T> {
 		pmb = persistenceManagerBuilder;
 	}
 
+	/**
+	 * @param isolationLevel
+	 *            The isolation level of the transactions started by this
+	 *            class, as named by the <tt>TX_*</tt> constants of
+	 *            {@link javax.jdo.Constants}. Defaults to
+	 *            <tt>read-committed</tt>. A method called while another
+	 *            class's transaction is in progress joins that transaction,
+	 *            and so runs at its level instead.
+	 * @see WithinSingleTransaction#isolation()
+	 */
+	public void setIsolationLevel(@Nonnull String isolationLevel) {
+		this.isolationLevel = isolationLevel;
+	}
+
 	private PersistenceManager pm() {
 		if (isPersistent())
 			return pmb.getPersistenceManager();
@@ -177,42 +205,89 @@ public abstract class JDOSupport<T> {
 	}
 
 	/**
-	 * Manages integration of JDO transactions with Spring.
+	 * Manages integration of JDO transactions with Spring. Each thread has its
+	 * own persistence manager, and so its own transaction; transactions in
+	 * different threads proceed concurrently, with the database doing whatever
+	 * locking is needed. The isolation level is fixed by the outermost method
+	 * of the transaction. A transaction that fails because it conflicted with
+	 * another one (an optimistic verification failure, a deadlock, a lock
+	 * timeout, or inserting a key that another has just inserted) is retried a
+	 * few times after a randomised, growing delay.
 	 * 
 	 * @author Donal Fellows
 	 */
 	@Aspect
+	@ManagedResource(objectName = JMX_ROOT + "Transactions", description = "The manager of database transactions.")
 	public static class TransactionAspect {
-		private Object lock = new Object();
 		private Log log = getLog("Taverna.Server.Utils");
-		private volatile int txid;
+		private final AtomicInteger txid = new AtomicInteger();
+		private final AtomicInteger active = new AtomicInteger();
+		private final AtomicInteger peak = new AtomicInteger();
+		private final AtomicLong committed = new AtomicLong();
+		private final AtomicLong retried = new AtomicLong();
+		/** The SQL state of a unique constraint violation. */
+		private static final String DUPLICATE_KEY = "23505";
+		private volatile int maxAttempts = 4;
+		private volatile long backoff = 20;
 
-		@Around(value = "@annotation(org.apache.taverna.server.master.utils.JDOSupport.WithinSingleTransaction) && target(support)", argNames = "support")
-		Object applyTransaction(ProceedingJoinPoint pjp, JDOSupport<?> support)
+		/**
+		 * @param maxAttempts
+		 *            How many times to try a transaction that conflicts with
+		 *            others before giving up.
+		 */
+		@ManagedAttribute(description = "How many times to try a conflicting transaction before giving up.")
+		public void setMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+		}
+
+		@ManagedAttribute(description = "How many times to try a conflicting transaction before giving up.")
+		public int getMaxAttempts() {
+			return maxAttempts;
+		}
+
+		/**
+		 * @param backoff
+		 *            The base delay before retrying a conflicting transaction,
+		 *            in milliseconds. It doubles with each further attempt.
+		 */
+		@ManagedAttribute(description = "The base delay before retrying a conflicting transaction, in milliseconds.")
+		public void setBackoff(long backoff) {
+			this.backoff = backoff;
+		}
+
+		@ManagedAttribute(description = "The base delay before retrying a conflicting transaction, in milliseconds.")
+		public long getBackoff() {
+			return backoff;
+		}
+
+		@Around(value = "@annotation(wst) && target(support)", argNames = "wst,support")
+		Object applyTransaction(ProceedingJoinPoint pjp,
+				WithinSingleTransaction wst, JDOSupport<?> support)
 				throws Throwable {
-			synchronized (lock) {
-				PersistenceManager pm = support.pm();
-				int id = ++txid;
-				Transaction tx = (pm == null) ? null : pm.currentTransaction();
-				if (tx != null && tx.isActive())
-					tx = null;
-				if (tx != null) {
-					if (log.isDebugEnabled())
-						log.debug("starting transaction #" + id);
-					tx.begin();
-				}
+			PersistenceManager pm = support.pm();
+			Transaction tx = (pm == null) ? null : pm.currentTransaction();
+			if (tx == null || tx.isActive())
+				// Not persistent, or joining an enclosing transaction
+				return pjp.proceed();
+			String isolation = wst.isolation().isEmpty() ? support.isolationLevel
+					: wst.isolation();
+			for (int attempt = 1;; attempt++) {
+				int id = txid.incrementAndGet();
+				tx.setIsolationLevel(isolation);
+				if (log.isDebugEnabled())
+					log.debug("starting transaction #" + id);
+				tx.begin();
+				noteActive(active.incrementAndGet());
 				try {
 					Object result = pjp.proceed();
-					if (tx != null) {
-						tx.commit();
-						if (log.isDebugEnabled())
-							log.debug("committed transaction #" + id);
-					}
-					tx = null;
+					tx.commit();
+					committed.incrementAndGet();
+					if (log.isDebugEnabled())
+						log.debug("committed transaction #" + id);
 					return result;
 				} catch (Throwable t) {
 					try {
-						if (tx != null) {
+						if (tx.isActive()) {
 							tx.rollback();
 							if (log.isDebugEnabled())
 								log.debug("rolled back transaction #" + id);
@@ -220,10 +295,78 @@ public abstract class JDOSupport<T> {
 					} catch (JDOException e) {
 						log.warn("rollback failed unexpectedly", e);
 					}
-					throw t;
+					if (attempt >= maxAttempts || !isConflict(t))
+						throw t;
+				} finally {
+					active.decrementAndGet();
 				}
+				retried.incrementAndGet();
+				long delay = backoff << (attempt - 1);
+				if (log.isDebugEnabled())
+					log.debug("transaction #" + id + " conflicted; retrying");
+				Thread.sleep(delay
+						+ ThreadLocalRandom.current().nextLong(delay + 1));
 			}
 		}
+
+		private void noteActive(int count) {
+			int p;
+			do {
+				p = peak.get();
+			} while (count > p && !peak.compareAndSet(p, count));
+		}
+
+		/**
+		 * Whether an exception indicates that the transaction was rolled back
+		 * because of a conflict with another transaction, in which case it is
+		 * worth trying again. Those are the optimistic verification failures,
+		 * the SQL errors in the "transaction rollback" class (which covers
+		 * deadlocks and lock timeouts), and duplicate keys. A duplicate key
+		 * arises when two transactions store the same content-addressed record
+		 * at once; on trying again, the loser finds the record already there.
+		 */
+		private static boolean isConflict(Throwable t) {
+			for (; t != null; t = t.getCause()) {
+				if (t instanceof JDOOptimisticVerificationException)
+					return true;
+				if (t instanceof SQLException) {
+					String state = ((SQLException) t).getSQLState();
+					if (state != null
+							&& (state.startsWith("40") || state
+									.equals(DUPLICATE_KEY)))
+						return true;
+				}
+				if (t instanceof JDOException) {
+					Throwable[] nested = ((JDOException) t)
+							.getNestedExceptions();
+					if (nested != null && nested.length > 1)
+						for (Throwable n : nested)
+							if (isConflict(n))
+								return true;
+				}
+			}
+			return false;
+		}
+
+		@ManagedMetric(description = "Number of transactions currently in progress.", metricType = GAUGE, category = "utilization")
+		public int getActiveCount() {
+			return active.get();
+		}
+
+		@ManagedMetric(description = "Largest number of transactions that have been in progress at once.", metricType = GAUGE, category = "utilization")
+		public int getPeakActiveCount() {
+			return peak.get();
+		}
+
+		@ManagedMetric(description = "Number of transactions committed.", metricType = COUNTER, category = "throughput")
+		public long getCommittedCount() {
+			return committed.get();
+		}
+
+		@ManagedMetric(description = "Number of transactions retried after conflicting with another.", metricType = COUNTER, category = "throughput")
+		public long getRetryCount() {
+			return retried.get();
+		}
 	}
 
 	/**
@@ -237,17 +380,26 @@ public abstract class JDOSupport<T> {
 	@Retention(RUNTIME)
 	@Documented
 	public @interface WithinSingleTransaction {
+		/**
+		 * The isolation level of the transaction, as named by the
+		 * <tt>TX_*</tt> constants of {@link javax.jdo.Constants}, if this
+		 * method starts it. Defaults to the level set on the class. Ignored
+		 * when the method is called within a transaction already in
+		 * progress.
+		 */
+		String isolation() default "";
 	}
 
 	/**
 	 * Manages {@linkplain PersistenceManager persistence managers} in a way
-	 * that doesn't cause problems when the web application is unloaded.
+	 * that doesn't cause problems when the web application is unloaded. Each
+	 * thread gets its own persistence manager, as they are not thread-safe.
 	 * 
 	 * @author Donal Fellows
 	 */
 	public static class PersistenceManagerBuilder {
 		private PersistenceManagerFactory pmf;
-		private WeakHashMap<Thread, PersistenceManager> cache = new WeakHashMap<>();
+		private volatile Map<Thread, PersistenceManager> cache = new WeakHashMap<>();
 
 		/**
 		 * @param persistenceManagerFactory
@@ -261,25 +413,30 @@ public abstract class JDOSupport<T> {
 
 		@Nonnull
 		public PersistenceManager getPersistenceManager() {
+			Map<Thread, PersistenceManager> cache = this.cache;
 			if (cache == null)
 				return pmf.getPersistenceManager();
 			Thread t = Thread.currentThread();
-			PersistenceManager pm = cache.get(t);
-			if (pm == null && pmf != null) {
-				pm = pmf.getPersistenceManager();
-				cache.put(t, pm);
+			synchronized (cache) {
+				PersistenceManager pm = cache.get(t);
+				if (pm == null && pmf != null) {
+					pm = pmf.getPersistenceManager();
+					cache.put(t, pm);
+				}
+				return pm;
 			}
-			return pm;
 		}
 
 		@PreDestroy
 		void clearThreadCache() {
-			WeakHashMap<Thread, PersistenceManager> cache = this.cache;
+			Map<Thread, PersistenceManager> cache = this.cache;
 			this.cache = null;
-			for (PersistenceManager pm : cache.values())
-				if (pm != null)
-					pm.close();
-			cache.clear();
+			synchronized (cache) {
+				for (PersistenceManager pm : cache.values())
+					if (pm != null)
+						pm.close();
+				cache.clear();
+			}
 		}
 	}
 }
@@ -18,6 +18,13 @@ package org.apache.taverna.server.master.worker;
  * limitations under the License.
  */
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.apache.taverna.server.localworker.remote.RemoteStatus;
 import org.apache.taverna.server.master.notification.atom.EventDAO;
 
 /**
@@ -36,4 +43,32 @@ public interface FactoryBean {
 	 *         feed)
 	 */
 	EventDAO getMasterEventFeed();
+
+	/**
+	 * @return the cache of the states of runs
+	 */
+	RunStatusCache getStatusCache();
+
+	/**
+	 * Get the states of many runs, asking each factory process only once. The
+	 * states found are also put in the {@linkplain #getStatusCache() cache}.
+	 * 
+	 * @param ids
+	 *            The IDs of the runs.
+	 * @return The states of those runs that a factory process knew about; the
+	 *         others must be asked about one at a time.
+	 */
+	@Nonnull
+	Map<String, RemoteStatus> getRunStates(@Nonnull Collection<String> ids);
+
+	/**
+	 * Destroy many runs, asking each factory process only once.
+	 * 
+	 * @param ids
+	 *            The IDs of the runs.
+	 * @return The IDs of the runs that were destroyed; the others must be
+	 *         destroyed one at a time.
+	 */
+	@Nonnull
+	Set<String> destroyRuns(@Nonnull Collection<String> ids);
 }
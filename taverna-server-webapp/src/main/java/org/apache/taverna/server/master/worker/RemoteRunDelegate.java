@@ -23,15 +23,16 @@ import static java.util.Calendar.MINUTE;
 import static java.util.Collections.sort;
 import static java.util.Collections.unmodifiableSet;
 import static java.util.UUID.randomUUID;
-import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.apache.taverna.server.master.worker.RemoteRunDelegate.checkBadFilename;
 import static org.apache.taverna.server.master.worker.RunConnection.NAME_LENGTH;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.rmi.MarshalledObject;
 import java.rmi.RemoteException;
 import java.security.GeneralSecurityException;
@@ -46,14 +47,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nonnull;
 
 import org.apache.commons.logging.Log;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
+import org.apache.taverna.server.localworker.remote.DirectoryEntryInfo;
 import org.apache.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.apache.taverna.server.localworker.remote.ImplementationException;
+import org.apache.taverna.server.localworker.remote.OutputValue;
 import org.apache.taverna.server.localworker.remote.RemoteDirectory;
 import org.apache.taverna.server.localworker.remote.RemoteDirectoryEntry;
 import org.apache.taverna.server.localworker.remote.RemoteFile;
@@ -67,6 +70,7 @@ import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.exceptions.BadPropertyValueException;
 import org.apache.taverna.server.master.exceptions.BadStateChangeException;
 import org.apache.taverna.server.master.exceptions.FilesystemAccessException;
+import org.apache.taverna.server.master.exceptions.NoDirectoryEntryException;
 import org.apache.taverna.server.master.exceptions.NoListenerException;
 import org.apache.taverna.server.master.exceptions.OverloadedException;
 import org.apache.taverna.server.master.exceptions.UnknownRunException;
@@ -197,6 +201,7 @@ public class RemoteRunDelegate implements TavernaRun {
 		} catch (RemoteException | ImplementationException e) {
 			log.warn("failed to destroy run", e);
 		}
+		statusChanged();
 	}
 
 	@Override
@@ -221,10 +226,21 @@ public class RemoteRunDelegate implements TavernaRun {
 		return secContext;
 	}
 
+	private RemoteStatus getRemoteStatus() throws RemoteException {
+		if (factory == null || factory.getStatusCache() == null || id == null)
+			return run.getStatus();
+		return factory.getStatusCache().get(id, run);
+	}
+
+	private void statusChanged() {
+		if (factory != null && factory.getStatusCache() != null && id != null)
+			factory.getStatusCache().invalidate(id);
+	}
+
 	@Override
 	public Status getStatus() {
 		try {
-			switch (run.getStatus()) {
+			switch (getRemoteStatus()) {
 			case Initialized:
 				return Status.Initialized;
 			case Operating:
@@ -242,9 +258,60 @@ public class RemoteRunDelegate implements TavernaRun {
 
 	@Override
 	public Workflow getWorkflow() {
+		// Not loaded with the rest of the record, as it can be large
+		if (workflow == null && db != null && id != null)
+			workflow = db.getWorkflow(id);
 		return workflow;
 	}
 
+	/**
+	 * Describe the values on some output ports of the run. The worker does
+	 * this in a single pass over the output directory.
+	 * 
+	 * @param ports
+	 *            The names of the output ports.
+	 * @return The descriptions of the values, in the same order as the ports.
+	 * @throws FilesystemAccessException
+	 *             If the worker cannot read the output directory.
+	 */
+	@Override
+	@Nonnull
+	public List<OutputValue> getOutputManifest(@Nonnull List<String> ports)
+			throws FilesystemAccessException {
+		try {
+			return run.getOutputManifest(ports);
+		} catch (IOException e) {
+			throw new FilesystemAccessException("failed to describe outputs",
+					e);
+		}
+	}
+
+	/**
+	 * Read a section of the stdout or stderr of the run.
+	 * 
+	 * @param stream
+	 *            Which stream to read; <tt>stdout</tt> or <tt>stderr</tt>.
+	 * @param offset
+	 *            Where to start reading, in bytes; if negative, counts back
+	 *            from the end of what has been written so far.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as the
+	 *            worker will give at once.
+	 * @return The section of the stream.
+	 * @throws FilesystemAccessException
+	 *             If the worker cannot read the stream.
+	 */
+	@Override
+	@Nonnull
+	public CapturedOutput readOutput(@Nonnull String stream, long offset,
+			int length) throws FilesystemAccessException {
+		try {
+			return run.readOutput(stream, offset, length);
+		} catch (IOException e) {
+			throw new FilesystemAccessException("failed to read " + stream, e);
+		}
+	}
+
 	@Override
 	public Directory getWorkingDirectory() throws FilesystemAccessException {
 		try {
@@ -268,6 +335,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	public String setStatus(Status s) throws BadStateChangeException {
 		try {
 			log.info("setting status of run " + id + " to " + s);
+			statusChanged();
 			switch (s) {
 			case Initialized:
 				run.setStatus(RemoteStatus.Initialized);
@@ -294,6 +362,7 @@ public class RemoteRunDelegate implements TavernaRun {
 				run.setStatus(RemoteStatus.Finished);
 				break;
 			}
+			statusChanged();
 			return null;
 		} catch (IllegalStateTransitionException e) {
 			throw new BadStateChangeException(e.getMessage());
@@ -312,6 +381,9 @@ public class RemoteRunDelegate implements TavernaRun {
 		} catch (InterruptedException e) {
 			throw new BadStateChangeException(
 					"interrupted while waiting to insert notification into database");
+		} catch (RejectedExecutionException e) {
+			// The worker had no capacity to supervise the run
+			throw new OverloadedException(e);
 		}
 	}
 
@@ -467,6 +539,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	}
 
 	private void writeObject(ObjectOutputStream out) throws IOException {
+		getWorkflow();
 		out.defaultWriteObject();
 		out.writeUTF(secContext.getOwner().getName());
 		out.writeObject(secContext.getFactory());
@@ -535,6 +608,8 @@ public class RemoteRunDelegate implements TavernaRun {
 abstract class DEDelegate implements DirectoryEntry {
 	Log log = getLog("Taverna.Server.Worker");
 	private RemoteDirectoryEntry entry;
+	/** Where this entry was listed; only set if it came from a listing. */
+	private DirectoryDelegate container;
 	private String name;
 	private String full;
 	private Date cacheModTime;
@@ -544,10 +619,36 @@ abstract class DEDelegate implements DirectoryEntry {
 		this.entry = entry;
 	}
 
+	DEDelegate(DirectoryDelegate container, DirectoryEntryInfo info) {
+		this.container = container;
+		this.name = info.getName();
+		this.full = container.getFullName() + "/" + info.getName();
+		this.cacheModTime = info.getModificationDate();
+		this.cacheQueryTime = currentTimeMillis();
+	}
+
+	/**
+	 * Get the handle to the entry on the worker. If this delegate was built
+	 * from a directory listing, the handle is only fetched when it is first
+	 * needed.
+	 * 
+	 * @return The handle.
+	 * @throws IOException
+	 *             If the entry has gone away, or cannot be fetched.
+	 */
+	RemoteDirectoryEntry remote() throws IOException {
+		if (entry == null) {
+			entry = container.rd().getEntry(name);
+			if (entry == null)
+				throw new FileNotFoundException(full + " no longer exists");
+		}
+		return entry;
+	}
+
 	@Override
 	public void destroy() throws FilesystemAccessException {
 		try {
-			entry.destroy();
+			remote().destroy();
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to delete directory entry", e);
@@ -587,11 +688,11 @@ abstract class DEDelegate implements DirectoryEntry {
 
 	@Override
 	public Date getModificationDate() {
-		if (cacheModTime == null || currentTimeMillis() - cacheQueryTime < 5000)
+		if (cacheModTime == null || currentTimeMillis() - cacheQueryTime > 5000)
 			try {
-				cacheModTime = entry.getModificationDate();
+				cacheModTime = remote().getModificationDate();
 				cacheQueryTime = currentTimeMillis();
-			} catch (RemoteException e) {
+			} catch (IOException e) {
 				log.error("failed to get modification time", e);
 			}
 		return cacheModTime;
@@ -615,11 +716,19 @@ abstract class DEDelegate implements DirectoryEntry {
 }
 
 class DirectoryDelegate extends DEDelegate implements Directory {
-	RemoteDirectory rd;
-
 	DirectoryDelegate(RemoteDirectory dir) {
 		super(dir);
-		rd = dir;
+	}
+
+	DirectoryDelegate(DirectoryDelegate container, DirectoryEntryInfo info) {
+		super(container, info);
+	}
+
+	RemoteDirectory rd() throws IOException {
+		RemoteDirectoryEntry rde = remote();
+		if (!(rde instanceof RemoteDirectory))
+			throw new IOException(getFullName() + " is no longer a directory");
+		return (RemoteDirectory) rde;
 	}
 
 	@Override
@@ -627,11 +736,12 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 			throws FilesystemAccessException {
 		ArrayList<DirectoryEntry> result = new ArrayList<>();
 		try {
-			for (RemoteDirectoryEntry rde : rd.getContents()) {
-				if (rde instanceof RemoteDirectory)
-					result.add(new DirectoryDelegate((RemoteDirectory) rde));
+			// One call for the names and attributes of everything
+			for (DirectoryEntryInfo info : rd().list(1)) {
+				if (info.isDirectory())
+					result.add(new DirectoryDelegate(this, info));
 				else
-					result.add(new FileDelegate((RemoteFile) rde));
+					result.add(new FileDelegate(this, info));
 			}
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
@@ -648,6 +758,22 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 		return result;
 	}
 
+	@Override
+	public DirectoryEntry getEntry(String path)
+			throws FilesystemAccessException, NoDirectoryEntryException {
+		RemoteDirectoryEntry rde;
+		try {
+			rde = rd().resolve(path);
+		} catch (IOException e) {
+			throw new FilesystemAccessException("failed to look up " + path, e);
+		}
+		if (rde == null)
+			throw new NoDirectoryEntryException("no such directory entry");
+		if (rde instanceof RemoteDirectory)
+			return new DirectoryDelegate((RemoteDirectory) rde);
+		return new FileDelegate((RemoteFile) rde);
+	}
+
 	static class DateComparator implements Comparator<DirectoryEntry> {
 		@Override
 		public int compare(DirectoryEntry a, DirectoryEntry b) {
@@ -659,7 +785,7 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	public File makeEmptyFile(Principal actor, String name)
 			throws FilesystemAccessException {
 		try {
-			return new FileDelegate(rd.makeEmptyFile(name));
+			return new FileDelegate(rd().makeEmptyFile(name));
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to make empty file", e);
 		}
@@ -669,7 +795,7 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	public Directory makeSubdirectory(Principal actor, String name)
 			throws FilesystemAccessException {
 		try {
-			return new DirectoryDelegate(rd.makeSubdirectory(name));
+			return new DirectoryDelegate(rd().makeSubdirectory(name));
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to make subdirectory",
 					e);
@@ -677,100 +803,66 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	}
 
 	@Override
-	public ZipStream getContentsAsZip() throws FilesystemAccessException {
-		ZipStream zs = new ZipStream();
-
-		final ZipOutputStream zos;
+	public ZipStream getContentsAsZip(int compressionLevel)
+			throws FilesystemAccessException {
 		try {
-			zos = new ZipOutputStream(new PipedOutputStream(zs));
+			return new ZipStream(rd().openZipChannel(compressionLevel)
+					.openInputStream());
 		} catch (IOException e) {
 			throw new FilesystemAccessException("problem building zip stream",
 					e);
 		}
-		Thread t = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					zipDirectory(rd, null, zos);
-				} catch (IOException e) {
-					log.warn("problem when zipping directory", e);
-				} finally {
-					closeQuietly(zos);
-				}
-			}
-		});
-		t.setDaemon(true);
-		t.start();
-		return zs;
-	}
-
-	/**
-	 * Compresses a directory tree into a ZIP.
-	 * 
-	 * @param dir
-	 *            The directory to compress.
-	 * @param base
-	 *            The base name of the directory (or <tt>null</tt> if this is
-	 *            the root directory of the ZIP).
-	 * @param zos
-	 *            Where to write the compressed data.
-	 * @throws RemoteException
-	 *             If some kind of problem happens with the remote delegates.
-	 * @throws IOException
-	 *             If we run into problems with reading or writing data.
-	 */
-	void zipDirectory(RemoteDirectory dir, String base, ZipOutputStream zos)
-			throws RemoteException, IOException {
-		for (RemoteDirectoryEntry rde : dir.getContents()) {
-			String name = rde.getName();
-			if (base != null)
-				name = base + "/" + name;
-			if (rde instanceof RemoteDirectory) {
-				RemoteDirectory rd = (RemoteDirectory) rde;
-				zipDirectory(rd, name, zos);
-			} else {
-				RemoteFile rf = (RemoteFile) rde;
-				zos.putNextEntry(new ZipEntry(name));
-				try {
-					int off = 0;
-					while (true) {
-						byte[] c = rf.getContents(off, 64 * 1024);
-						if (c == null || c.length == 0)
-							break;
-						zos.write(c);
-						off += c.length;
-					}
-				} finally {
-					zos.closeEntry();
-				}
-			}
-		}
 	}
 }
 
 class FileDelegate extends DEDelegate implements File {
-	RemoteFile rf;
+	/** The size from the listing, or -1 if it must be asked for. */
+	private long size = -1;
 
 	FileDelegate(RemoteFile f) {
 		super(f);
-		this.rf = f;
+	}
+
+	FileDelegate(DirectoryDelegate container, DirectoryEntryInfo info) {
+		super(container, info);
+		size = info.getSize();
+	}
+
+	RemoteFile rf() throws IOException {
+		RemoteDirectoryEntry rde = remote();
+		if (!(rde instanceof RemoteFile))
+			throw new IOException(getFullName() + " is no longer a file");
+		return (RemoteFile) rde;
 	}
 
 	@Override
 	public byte[] getContents(int offset, int length)
 			throws FilesystemAccessException {
 		try {
-			return rf.getContents(offset, length);
+			return rf().getContents(offset, length);
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to read file contents",
 					e);
 		}
 	}
 
+	@Override
+	public InputStream getContentsAsStream(long offset, long length)
+			throws FilesystemAccessException {
+		try {
+			return rf().openReadChannel(offset, length).openInputStream();
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to open channel to read file contents", e);
+		}
+	}
+
 	@Override
 	public long getSize() throws FilesystemAccessException {
+		if (size >= 0)
+			return size;
 		try {
-			return rf.getSize();
+			return rf().getSize();
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to get file length", e);
 		}
@@ -779,7 +871,8 @@ class FileDelegate extends DEDelegate implements File {
 	@Override
 	public void setContents(byte[] data) throws FilesystemAccessException {
 		try {
-			rf.setContents(data);
+			size = -1;
+			rf().setContents(data);
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to write file contents", e);
@@ -789,13 +882,26 @@ class FileDelegate extends DEDelegate implements File {
 	@Override
 	public void appendContents(byte[] data) throws FilesystemAccessException {
 		try {
-			rf.appendContents(data);
+			size = -1;
+			rf().appendContents(data);
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to write file contents", e);
 		}
 	}
 
+	@Override
+	public OutputStream getContentsOutputStream(boolean append)
+			throws FilesystemAccessException {
+		try {
+			size = -1;
+			return rf().openWriteChannel(append).openOutputStream();
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to open channel to write file contents", e);
+		}
+	}
+
 	@Override
 	public void copy(File from) throws FilesystemAccessException {
 		FileDelegate fromFile;
@@ -806,7 +912,8 @@ class FileDelegate extends DEDelegate implements File {
 		}
 
 		try {
-			rf.copy(fromFile.rf);
+			size = -1;
+			rf().copy(fromFile.rf());
 		} catch (Exception e) {
 			throw new FilesystemAccessException("failed to copy file contents",
 					e);
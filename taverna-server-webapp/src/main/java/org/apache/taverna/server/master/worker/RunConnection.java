@@ -22,10 +22,13 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.apache.taverna.server.master.worker.RunConnection.COUNT_QUERY;
 import static org.apache.taverna.server.master.worker.RunConnection.NAMES_QUERY;
+import static org.apache.taverna.server.master.worker.RunConnection.ORDERED_QUERY;
 import static org.apache.taverna.server.master.worker.RunConnection.SCHEMA;
 import static org.apache.taverna.server.master.worker.RunConnection.TABLE;
 import static org.apache.taverna.server.master.worker.RunConnection.TIMEOUT_QUERY;
 import static org.apache.taverna.server.master.worker.RunConnection.UNTERMINATED_QUERY;
+import static org.apache.taverna.server.master.worker.RunConnection.VISIBLE_QUERY;
+import static org.apache.taverna.server.master.worker.RunConnection.WORKFLOW_USERS_QUERY;
 
 import java.io.IOException;
 import java.rmi.MarshalledObject;
@@ -34,7 +37,10 @@ import java.util.HashSet;
 import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Element;
+import javax.jdo.annotations.Index;
 import javax.jdo.annotations.Join;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
@@ -47,6 +53,7 @@ import org.apache.taverna.server.master.common.Credential;
 import org.apache.taverna.server.master.common.Trust;
 import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.interfaces.SecurityContextFactory;
+import org.apache.taverna.server.master.interfaces.TavernaSecurityContext;
 import org.apache.taverna.server.master.utils.UsernamePrincipal;
 
 /**
@@ -60,17 +67,43 @@ import org.apache.taverna.server.master.utils.UsernamePrincipal;
 		@Query(name = "count", language = "SQL", value = COUNT_QUERY, unique = "true", resultClass = Integer.class),
 		@Query(name = "names", language = "SQL", value = NAMES_QUERY, unique = "false", resultClass = String.class),
 		@Query(name = "unterminated", language = "SQL", value = UNTERMINATED_QUERY, unique = "false", resultClass = String.class),
-		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class) })
+		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "ordered", language = "JDOQL", value = ORDERED_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "visible", language = "JDOQL", value = VISIBLE_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "workflowUsers", language = "SQL", value = WORKFLOW_USERS_QUERY, unique = "true", resultClass = Integer.class),
+		@Query(name = "doomed", language = "SQL", value = DOOMED_QUERY, unique = "false", resultClass = String.class) })
 public class RunConnection {
 	static final String SCHEMA = "TAVERNA";
 	static final String TABLE = "RUN_CONNECTION";
 	private static final String FULL_NAME = SCHEMA + "." + TABLE;
-	static final String COUNT_QUERY = "SELECT count(*) FROM " + FULL_NAME;
-	static final String NAMES_QUERY = "SELECT ID FROM " + FULL_NAME;
+	/*
+	 * Doomed runs have expired and are only waiting for their execution
+	 * resources to be destroyed; apart from the reaper, nothing sees them.
+	 */
+	static final String COUNT_QUERY = "SELECT count(*) FROM " + FULL_NAME
+			+ "   WHERE doomed = 0";
+	static final String NAMES_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE doomed = 0";
 	static final String TIMEOUT_QUERY = "SELECT ID FROM " + FULL_NAME
-			+ "   WHERE expiry < CURRENT_TIMESTAMP";
+			+ "   WHERE expiry < CURRENT_TIMESTAMP AND doomed = 0";
 	static final String UNTERMINATED_QUERY = "SELECT ID FROM " + FULL_NAME
-			+ "   WHERE doneTransitionToFinished = 0";
+			+ "   WHERE doneTransitionToFinished = 0 AND doomed = 0";
+	static final String WORKFLOW_USERS_QUERY = "SELECT count(*) FROM "
+			+ FULL_NAME + "   WHERE workflowId = ? AND doomed = 0";
+	static final String DOOMED_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE doomed = 1";
+	/** Order for listing runs; the ID breaks ties so paging is stable. */
+	private static final String LISTING_ORDER = " ORDER BY creationInstant ASCENDING, id ASCENDING";
+	static final String ORDERED_QUERY = "SELECT id WHERE doomed == 0"
+			+ LISTING_ORDER;
+	/**
+	 * The runs that a user is named on. This is a superset of what they may
+	 * see; the policy has the final say.
+	 */
+	static final String VISIBLE_QUERY = "SELECT id WHERE doomed == 0"
+			+ " && (owner == :user || readers.contains(:user)"
+			+ " || writers.contains(:user) || destroyers.contains(:user)"
+			+ " || id == :self)" + LISTING_ORDER;
 	static final int NAME_LENGTH = 48; 
 
 	@PrimaryKey
@@ -84,26 +117,34 @@ public class RunConnection {
 	@Persistent(defaultFetchGroup = "true")
 	private Date creationInstant;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	/** Only set for runs stored before workflows were shared between runs. */
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Workflow workflow;
 
+	@Persistent(defaultFetchGroup = "true")
+	@Column(length = WorkflowRecord.DIGEST_LENGTH)
+	private String workflowId;
+
 	@Persistent(defaultFetchGroup = "true")
 	private Date expiry;
 
 	@Persistent(defaultFetchGroup = "true")
 	@Join(table = TABLE + "_READERS", column = "ID")
+	@Element(indexed = "true")
 	private String[] readers;
 
 	@Persistent(defaultFetchGroup = "true")
 	@Join(table = TABLE + "_WRITERS", column = "ID")
+	@Element(indexed = "true")
 	private String[] writers;
 
 	@Persistent(defaultFetchGroup = "true")
 	@Join(table = TABLE + "_DESTROYERS", column = "ID")
+	@Element(indexed = "true")
 	private String[] destroyers;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private MarshalledObject<RemoteSingleRun> run;
 
@@ -113,21 +154,32 @@ public class RunConnection {
 	@Persistent(defaultFetchGroup = "true")
 	private int generateProvenance;
 
+	/** Set once the run has expired, until its resources are destroyed. */
+	@Persistent(defaultFetchGroup = "true")
+	@Column(defaultValue = "0")
+	private int doomed;
+
 	@Persistent(defaultFetchGroup = "true")
 	@Column(length = 128)
+	@Index
 	String owner;
 
 	@Persistent(defaultFetchGroup = "true")
 	@Column(length = 36)
 	private String securityToken;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	/*
+	 * The serialized fields are kept out of the default fetch group, so that
+	 * merely looking at a run's summary does not pull them in; they are loaded
+	 * when first touched.
+	 */
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private SecurityContextFactory securityContextFactory;
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Credential[] credentials;
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Trust[] trust;
 
@@ -145,6 +197,14 @@ public class RunConnection {
 		doneTransitionToFinished = (finished ? 1 : 0);
 	}
 
+	public boolean isDoomed() {
+		return doomed != 0;
+	}
+
+	public void setDoomed(boolean doomed) {
+		this.doomed = (doomed ? 1 : 0);
+	}
+
 	public boolean isProvenanceGenerated() {
 		return generateProvenance != 0;
 	}
@@ -178,9 +238,54 @@ public class RunConnection {
 		return asList(ary);
 	}
 
+	/**
+	 * Get the workflow of the run, if it is held directly by this record.
+	 * Must be called within the context of a transaction.
+	 * 
+	 * @return The workflow document, or <tt>null</tt> if the workflow is held
+	 *         in the {@linkplain WorkflowStore workflow store}.
+	 */
+	@Nullable
+	public Workflow getWorkflow() {
+		return workflow;
+	}
+
+	/**
+	 * @return The key of the run's workflow in the {@linkplain WorkflowStore
+	 *         workflow store}, or <tt>null</tt> if the workflow is held
+	 *         directly by this record.
+	 */
+	@Nullable
+	public String getWorkflowId() {
+		return workflowId;
+	}
+
+	/**
+	 * @param workflowId
+	 *            The key of the run's workflow in the
+	 *            {@linkplain WorkflowStore workflow store}.
+	 */
+	public void setWorkflowId(@Nonnull String workflowId) {
+		this.workflowId = workflowId;
+	}
+
+	/**
+	 * Get the handle to the run in the back end, without building a full
+	 * delegate. Must be called within the context of a transaction.
+	 * 
+	 * @return The remote handle.
+	 * @throws Exception
+	 *             If anything goes wrong with deserialization.
+	 */
+	@Nonnull
+	public RemoteSingleRun getRemoteRun() throws Exception {
+		return run.get();
+	}
+
 	/**
 	 * Get the remote run delegate for a particular persistent connection. Must
-	 * be called within the context of a transaction.
+	 * be called within the context of a transaction. The workflow is not
+	 * loaded; the delegate fetches it from the database if it is asked for.
 	 * 
 	 * @param db
 	 *            The database facade.
@@ -194,7 +299,6 @@ public class RunConnection {
 		RemoteRunDelegate rrd = new RemoteRunDelegate();
 		rrd.id = getId();
 		rrd.creationInstant = creationInstant;
-		rrd.workflow = workflow;
 		rrd.expiry = expiry;
 		rrd.readers = new HashSet<>(list(readers));
 		rrd.writers = new HashSet<>(list(writers));
@@ -224,7 +328,6 @@ public class RunConnection {
 		// Properties that are set exactly once
 		if (creationInstant == null) {
 			creationInstant = rrd.getCreationTimestamp();
-			workflow = rrd.getWorkflow();
 			run = new MarshalledObject<>(rrd.run);
 			securityContextFactory = rrd.getSecurityContext().getFactory();
 			owner = rrd.getSecurityContext().getOwner().getName();
@@ -236,13 +339,23 @@ public class RunConnection {
 		readers = rrd.getReaders().toArray(STRING_ARY);
 		writers = rrd.getWriters().toArray(STRING_ARY);
 		destroyers = rrd.getDestroyers().toArray(STRING_ARY);
-		credentials = rrd.getSecurityContext().getCredentials();
-		trust = rrd.getSecurityContext().getTrusted();
+		TavernaSecurityContext context = rrd.getSecurityContext();
+		if (context instanceof SecurityContextDelegate) {
+			// Don't force revalidation just to write them back
+			credentials = ((SecurityContextDelegate) context)
+					.getStoredCredentials();
+			trust = ((SecurityContextDelegate) context).getStoredTrust();
+		} else {
+			credentials = context.getCredentials();
+			trust = context.getTrusted();
+		}
 		if (rrd.name.length() > NAME_LENGTH)
 			this.name = rrd.name.substring(0, NAME_LENGTH);
 		else
 			this.name = rrd.name;
-		setFinished(rrd.doneTransitionToFinished);
+		// Once finished, always finished; a stale handle must not undo that
+		if (rrd.doneTransitionToFinished)
+			setFinished(true);
 		setProvenanceGenerated(rrd.generateProvenance);
 	}
 
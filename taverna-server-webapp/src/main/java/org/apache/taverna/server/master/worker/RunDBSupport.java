@@ -23,6 +23,7 @@ import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.notification.NotificationEngine;
 
 /**
@@ -37,6 +38,16 @@ public interface RunDBSupport {
 	 */
 	void checkForFinishNow();
 
+	/**
+	 * Check whether a particular run has finished and issue registered
+	 * notifications if it has. Used when the run's back end says that it has
+	 * terminated, so that we do not need to scan all the runs.
+	 * 
+	 * @param runId
+	 *            The ID of the run to check.
+	 */
+	void checkForFinishNow(@Nonnull String runId);
+
 	/**
 	 * Remove currently-expired runs from this database.
 	 */
@@ -58,6 +69,17 @@ public interface RunDBSupport {
 	 */
 	void flushToDisk(@Nonnull RemoteRunDelegate run);
 
+	/**
+	 * Get the workflow of a run. Workflows are not loaded from the database
+	 * along with the rest of the run's record, as they can be large.
+	 * 
+	 * @param runId
+	 *            The ID of the run.
+	 * @return The workflow, or <tt>null</tt> if the run does not exist.
+	 */
+	@Nullable
+	Workflow getWorkflow(@Nonnull String runId);
+
 	/**
 	 * Select an arbitrary representative run.
 	 * 
@@ -19,15 +19,17 @@ package org.apache.taverna.server.master.worker;
  */
 
 import static java.lang.Integer.parseInt;
+import static java.util.Collections.singletonMap;
 import static java.util.UUID.randomUUID;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nullable;
@@ -36,7 +38,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.localworker.remote.RemoteStatus;
 import org.apache.taverna.server.master.common.Status;
+import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.exceptions.UnknownRunException;
 import org.apache.taverna.server.master.interfaces.Listener;
 import org.apache.taverna.server.master.interfaces.Policy;
@@ -59,7 +64,9 @@ public class RunDatabase implements RunStore, RunDBSupport {
 	private NotificationEngine notificationEngine;
 	@Autowired
 	private FactoryBean factory;
-	private Map<String, TavernaRun> cache = new HashMap<>();
+	private RunHandleCache cache;
+	private RunReaper reaper;
+	private boolean leftoversReaped;
 
 	@Override
 	@Required
@@ -84,6 +91,16 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		this.dao = dao;
 	}
 
+	@Required
+	public void setCache(RunHandleCache cache) {
+		this.cache = cache;
+	}
+
+	@Required
+	public void setReaper(RunReaper reaper) {
+		this.reaper = reaper;
+	}
+
 	@Override
 	public void checkForFinishNow() {
 		/*
@@ -91,25 +108,65 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		 * candidates from the database and *then* doing the expensive requests
 		 * to the back end to find out the status.
 		 */
+		List<String> candidates = dao.getPotentiallyNotifiable();
+		if (candidates.isEmpty())
+			return;
+
+		/*
+		 * Ask each factory process about all of its candidates at once. Only
+		 * the runs that have finished, or that no factory process knew, are
+		 * loaded from the database; the states left in the status cache mean
+		 * that the checks below only go to the back end for the unknown ones.
+		 */
+		Map<String, RemoteStatus> states = factory.getRunStates(candidates);
+
 		Map<String, RemoteRunDelegate> notifiable = new HashMap<>();
-		for (RemoteRunDelegate p : dao.getPotentiallyNotifiable())
-			if (p.getStatus() == Status.Finished)
-				notifiable.put(p.getId(), p);
+		for (String id : candidates) {
+			RemoteStatus state = states.get(id);
+			if (state != null && state != RemoteStatus.Finished)
+				continue;
+			RemoteRunDelegate p = dao.getIfNotifiable(id);
+			if (p != null && p.getStatus() == Status.Finished)
+				notifiable.put(id, p);
+		}
 
+		notifyFinished(notifiable);
+	}
+
+	@Override
+	public void checkForFinishNow(String runId) {
+		/*
+		 * Only the one run to look at; we still confirm with the back end
+		 * that it has really finished before believing it.
+		 */
+		RemoteRunDelegate p = dao.getIfNotifiable(runId);
+		if (p != null && p.getStatus() == Status.Finished)
+			notifyFinished(singletonMap(p.getId(), p));
+	}
+
+	private void notifyFinished(Map<String, RemoteRunDelegate> notifiable) {
 		// Check if there's nothing more to do
 		if (notifiable.isEmpty())
 			return;
 
 		/*
-		 * Tell the database about the ones we've got.
+		 * Tell the database about the ones we've got. Some may have been dealt
+		 * with already by someone else, so keep only the ones we did.
 		 */
-		dao.markFinished(notifiable.keySet());
+		Set<String> marked = dao.markFinished(notifiable.keySet());
+		for (String id : marked) {
+			notifiable.get(id).doneTransitionToFinished = true;
+			TavernaRun cached = cache.get(id);
+			if (cached instanceof RemoteRunDelegate)
+				((RemoteRunDelegate) cached).doneTransitionToFinished = true;
+		}
 
 		/*
 		 * Send out the notifications. The notification addresses are stored in
 		 * the back-end engine, so this is *another* thing that can take time.
 		 */
-		for (RemoteRunDelegate rrd : notifiable.values())
+		for (String id : marked) {
+			RemoteRunDelegate rrd = notifiable.get(id);
 			for (Listener l : rrd.getListeners())
 				if (l.getName().equals("io")) {
 					try {
@@ -119,21 +176,30 @@ public class RunDatabase implements RunStore, RunDBSupport {
 					}
 					break;
 				}
+		}
 	}
 
 	@Override
 	public void cleanNow() {
-		List<String> cleaned;
+		if (!leftoversReaped)
+			try {
+				// Carry on with what was left when the server last stopped
+				reaper.reap(dao.getDoomed());
+				leftoversReaped = true;
+			} catch (Exception e) {
+				log.warn("failed to reload runs waiting to be destroyed", e);
+			}
+		Map<String, RemoteSingleRun> doomed;
 		try {
-			cleaned = dao.doClean();
+			doomed = dao.doClean();
 		} catch (Exception e) {
 			log.warn("failure during deletion of expired runs", e);
 			return;
 		}
-		synchronized (cache) {
-			for (String id : cleaned)
-				cache.remove(id);
-		}
+		for (String id : doomed.keySet())
+			cache.remove(id);
+		cache.expire();
+		reaper.reap(doomed);
 	}
 
 	@Override
@@ -152,6 +218,11 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		}
 	}
 
+	@Override
+	public Workflow getWorkflow(String runId) {
+		return dao.getWorkflow(runId);
+	}
+
 	@Override
 	public RemoteRunDelegate pickArbitraryRun() throws Exception {
 		return dao.pickArbitraryRun();
@@ -162,23 +233,34 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		return dao.listRunNames();
 	}
 
+	/**
+	 * Get a run handle, from the cache if possible and otherwise from the
+	 * database (in which case it is added to the cache).
+	 */
 	@Nullable
-	private TavernaRun get(String uuid) {
-		TavernaRun run = null;
-		synchronized (cache) {
-			run = cache.get(uuid);
+	private TavernaRun lookup(String uuid) {
+		TavernaRun run = cache.get(uuid);
+		if (run == null) {
+			run = dao.get(uuid);
+			if (run != null)
+				run = cache.add(uuid, run);
 		}
+		return run;
+	}
+
+	@Nullable
+	private TavernaRun get(String uuid) {
+		TavernaRun run = lookup(uuid);
 		try {
 			if (run != null)
 				run.ping();
 		} catch (UnknownRunException e) {
 			if (log.isDebugEnabled())
 				log.debug("stale mapping in cache?", e);
-			// Don't need to flush the cache; this happens when cleaning anyway
-			run = null;
-		}
-		if (run == null)
+			// Don't need to flush the database; this happens when cleaning
+			cache.remove(uuid);
 			run = dao.get(uuid);
+		}
 		return run;
 	}
 
@@ -210,17 +292,24 @@ public class RunDatabase implements RunStore, RunDBSupport {
 
 	@Override
 	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p) {
-		synchronized (cache) {
-			Map<String, TavernaRun> cached = new HashMap<>();
-			for (Entry<String, TavernaRun> e : cache.entrySet()) {
-				TavernaRun r = e.getValue();
-				if (p.permitAccess(user, r))
-					cached.put(e.getKey(), r);
-			}
-			if (!cached.isEmpty())
-				return cached;
+		return listRuns(user, p, 0, -1);
+	}
+
+	@Override
+	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p,
+			int offset, int limit) {
+		/*
+		 * The database narrows things down to the runs that the user is
+		 * mentioned on, so we only need to load those; the policy then makes
+		 * the final decision.
+		 */
+		Map<String, TavernaRun> result = new LinkedHashMap<>();
+		for (String id : dao.listRunNames(user, offset, limit)) {
+			TavernaRun run = lookup(id);
+			if (run != null && (user == null || p.permitAccess(user, run)))
+				result.put(id, run);
 		}
-		return dao.listRuns(user, p);
+		return result;
 	}
 
 	private void logLength(String message, Object obj) {
@@ -253,9 +342,7 @@ public class RunDatabase implements RunStore, RunDBSupport {
 					"unexpected problem when persisting run record in database",
 					e);
 		}
-		synchronized (cache) {
-			cache.put(rrd.getId(), run);
-		}
+		cache.add(rrd.getId(), run);
 		return rrd.getId();
 	}
 
@@ -263,9 +350,7 @@ public class RunDatabase implements RunStore, RunDBSupport {
 	public void unregisterRun(String uuid) {
 		try {
 			if (dao.unpersistRun(uuid))
-				synchronized (cache) {
-					cache.remove(uuid);
-				}
+				cache.remove(uuid);
 		} catch (RuntimeException e) {
 			if (log.isDebugEnabled())
 				log.debug("problem persisting the deletion of the run " + uuid,
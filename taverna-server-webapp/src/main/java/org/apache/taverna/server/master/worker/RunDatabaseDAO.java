@@ -18,24 +18,30 @@ package org.apache.taverna.server.master.worker;
  * limitations under the License.
  */
 
+import static javax.jdo.Constants.TX_SERIALIZABLE;
+import static org.apache.taverna.server.master.identity.WorkflowInternalAuthProvider.PREFIX;
 import static org.apache.taverna.server.master.worker.RunConnection.toDBform;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.jdo.Query;
 import javax.jdo.annotations.PersistenceAware;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
-import org.apache.taverna.server.master.interfaces.Policy;
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.master.common.Workflow;
 import org.apache.taverna.server.master.interfaces.TavernaRun;
 import org.apache.taverna.server.master.utils.CallTimeLogger.PerfLogged;
 import org.apache.taverna.server.master.utils.JDOSupport;
@@ -55,6 +61,12 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 
 	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
 	private RunDatabase facade;
+	private WorkflowStore workflowStore;
+
+	@Required
+	public void setWorkflowStore(WorkflowStore workflowStore) {
+		this.workflowStore = workflowStore;
+	}
 
 	@Required
 	public void setFacade(RunDatabase facade) {
@@ -89,6 +101,11 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		return (List<String>) namedQuery("timedout").execute();
 	}
 
+	@SuppressWarnings("unchecked")
+	private List<String> doomed() {
+		return (List<String>) namedQuery("doomed").execute();
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<String> unterminated() {
 		return (List<String>) namedQuery("unterminated").execute();
@@ -102,6 +119,8 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 			RunConnection rc = getById(name);
 			if (rc == null)
 				log.warn("no result for " + name);
+			else if (rc.isDoomed())
+				return null;
 			return rc;
 		} catch (RuntimeException e) {
 			log.warn("problem in fetch", e);
@@ -113,33 +132,19 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	@WithinSingleTransaction
 	public String getSecurityToken(@Nonnull String name) {
 		RunConnection rc = getById(name);
-		if (rc == null)
+		if (rc == null || rc.isDoomed())
 			return null;
 		return rc.getSecurityToken();
 	}
 
 	private void persist(@Nonnull RemoteRunDelegate rrd) throws IOException {
-		persist(toDBform(rrd));
+		RunConnection rc = toDBform(rrd);
+		rc.setWorkflowId(workflowStore.store(rrd.getWorkflow()));
+		persist(rc);
 	}
 
-	@Nonnull
-	private List<RunConnection> allRuns() {
-		try {
-			List<RunConnection> rcs = new ArrayList<>();
-			List<String> names = names();
-			for (String id : names) {
-				try {
-					if (id != null)
-						rcs.add(pickRun(id));
-				} catch (RuntimeException e) {
-					continue;
-				}
-			}
-			return rcs;
-		} catch (RuntimeException e) {
-			log.warn("problem in fetch", e);
-			throw e;
-		}
+	private boolean isWorkflowUsed(@Nonnull String workflowId) {
+		return (Integer) namedQuery("workflowUsers").execute(workflowId) > 0;
 	}
 
 	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
@@ -163,27 +168,57 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	}
 
 	/**
-	 * Get the runs that a user can read things from.
+	 * Get the workflow of a run.
+	 * 
+	 * @param name
+	 *            The identifier of the run.
+	 * @return The workflow, or <tt>null</tt> if there is no such run.
+	 */
+	@Nullable
+	@WithinSingleTransaction
+	public Workflow getWorkflow(@Nonnull String name) {
+		RunConnection rc = pickRun(name);
+		if (rc == null)
+			return null;
+		if (rc.getWorkflowId() == null)
+			// Stored before workflows were shared between runs
+			return rc.getWorkflow();
+		return workflowStore.get(rc.getWorkflowId());
+	}
+
+	/**
+	 * Get the IDs of the runs that a user is named on, either as owner or in
+	 * any of the access control lists, in a stable order. This is done
+	 * entirely in the database, so it does not need to load any runs.
 	 * 
 	 * @param user
-	 *            Who is asking?
-	 * @param p
-	 *            The policy that determines what they can see.
-	 * @return A mapping from run IDs to run handles.
+	 *            Who is asking, or <tt>null</tt> to list all runs.
+	 * @param offset
+	 *            How many IDs to skip.
+	 * @param limit
+	 *            The maximum number of IDs to return, or -1 for no limit.
+	 * @return The run IDs.
 	 */
 	@Nonnull
+	@SuppressWarnings("unchecked")
 	@WithinSingleTransaction
-	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p) {
-		Map<String, TavernaRun> result = new HashMap<>();
-		for (String id : names())
-			try {
-				RemoteRunDelegate rrd = pickRun(id).fromDBform(facade);
-				if (p.permitAccess(user, rrd))
-					result.put(id, rrd);
-			} catch (Exception e) {
-				continue;
-			}
-		return result;
+	public List<String> listRunNames(@Nullable UsernamePrincipal user,
+			int offset, int limit) {
+		Query q;
+		Map<String, Object> params = new HashMap<>();
+		if (user == null)
+			q = namedQuery("ordered");
+		else {
+			String name = user.getName();
+			q = namedQuery("visible");
+			params.put("user", name);
+			// A workflow run is also allowed to see itself
+			params.put("self", name.startsWith(PREFIX) ? name
+					.substring(PREFIX.length()) : null);
+		}
+		if (offset > 0 || limit >= 0)
+			q.setRange(offset, limit < 0 ? Long.MAX_VALUE : offset + limit);
+		return new ArrayList<>((List<String>) q.executeWithMap(params));
 	}
 
 	/**
@@ -193,9 +228,9 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	@WithinSingleTransaction
 	public List<String> listRunNames() {
 		List<String> runNames = new ArrayList<>();
-		for (RunConnection rc : allRuns())
-			if (rc.getId() != null)
-				runNames.add(rc.getId());
+		for (String id : names())
+			if (id != null)
+				runNames.add(id);
 		return runNames;
 	}
 
@@ -207,10 +242,12 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	@Nullable
 	@WithinSingleTransaction
 	public RemoteRunDelegate pickArbitraryRun() throws Exception {
-		for (RunConnection rc : allRuns()) {
-			if (rc.getId() == null)
+		for (String id : names()) {
+			if (id == null)
 				continue;
-			return rc.fromDBform(facade);
+			RunConnection rc = pickRun(id);
+			if (rc != null)
+				return rc.fromDBform(facade);
 		}
 		return null;
 	}
@@ -258,66 +295,149 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	}
 
 	/**
-	 * Remove all workflow runs that have expired.
+	 * Mark all workflow runs that have expired as doomed, which hides them
+	 * from everything but {@link #getDoomed()}. Their execution resources are
+	 * <i>not</i> destroyed, as that can take a long time; the caller is
+	 * responsible for doing that once the transaction has finished, and then
+	 * for removing them with {@link #deleteDoomed(Collection)}. Until then,
+	 * the record of them survives a restart. Workflows that no remaining run
+	 * uses are removed.
+	 * <p>
+	 * This is serializable so that a run made at the same time with one of
+	 * those workflows cannot slip in between checking that the workflow is
+	 * unused and deleting it; one of the two transactions waits for the
+	 * other, or is rolled back and retried.
 	 * 
-	 * @return The ids of the deleted runs.
+	 * @return Map from the ids of the doomed runs to their handles.
 	 */
 	@Nonnull
 	@PerfLogged
-	@WithinSingleTransaction
-	public List<String> doClean() {
+	@WithinSingleTransaction(isolation = TX_SERIALIZABLE)
+	public Map<String, RemoteSingleRun> doClean() {
 		if (log.isDebugEnabled())
-			log.debug("deleting runs that timed out before " + new Date());
-		List<String> toDelete = timedout();
+			log.debug("dooming runs that timed out before " + new Date());
+		List<String> toDoom = timedout();
 		if (log.isDebugEnabled())
-			log.debug("found " + toDelete.size() + " runs to delete");
-		for (String id : toDelete) {
+			log.debug("found " + toDoom.size() + " runs to doom");
+		Map<String, RemoteSingleRun> doomed = new HashMap<>();
+		Set<String> workflows = new HashSet<>();
+		for (String id : toDoom) {
 			RunConnection rc = getById(id);
+			if (rc.getWorkflowId() != null)
+				workflows.add(rc.getWorkflowId());
 			try {
-				rc.fromDBform(facade).run.destroy();
+				doomed.put(id, rc.getRemoteRun());
+				rc.setDoomed(true);
 			} catch (Exception e) {
+				// Nothing that we could destroy, so just forget it
 				if (log.isDebugEnabled())
-					log.debug("failed to delete execution resource for " + id,
-							e);
+					log.debug("failed to get execution resource for " + id, e);
+				delete(rc);
 			}
-			delete(rc);
 		}
-		return toDelete;
+		for (String workflowId : workflows)
+			if (!isWorkflowUsed(workflowId))
+				workflowStore.delete(workflowId);
+		return doomed;
 	}
 
 	/**
-	 * @return A list of workflow runs that are candidates for doing
-	 *         notification of termination.
+	 * Get the workflow runs that are doomed but whose execution resources
+	 * have not yet been destroyed, such as those left when the server last
+	 * stopped.
+	 * 
+	 * @return Map from the ids of the doomed runs to their handles.
 	 */
 	@Nonnull
-	@PerfLogged
 	@WithinSingleTransaction
-	public List<RemoteRunDelegate> getPotentiallyNotifiable() {
-		List<RemoteRunDelegate> toNotify = new ArrayList<>();
-		for (String id : unterminated())
+	public Map<String, RemoteSingleRun> getDoomed() {
+		Map<String, RemoteSingleRun> doomed = new HashMap<>();
+		for (String id : doomed()) {
+			RunConnection rc = getById(id);
+			if (rc == null)
+				continue;
 			try {
-				RunConnection rc = getById(id);
-				toNotify.add(rc.fromDBform(facade));
+				doomed.put(id, rc.getRemoteRun());
 			} catch (Exception e) {
-				log.warn("failed to fetch connection token"
-						+ "for notification of completion check", e);
+				log.warn("failed to get execution resource for " + id, e);
+				delete(rc);
 			}
-		return toNotify;
+		}
+		return doomed;
 	}
 
+	/**
+	 * Remove doomed workflow runs from the database, once their execution
+	 * resources have been destroyed.
+	 * 
+	 * @param ids
+	 *            The IDs of the runs.
+	 */
+	@WithinSingleTransaction
+	public void deleteDoomed(@Nonnull Collection<String> ids) {
+		for (String id : ids) {
+			RunConnection rc = getById(id);
+			if (rc != null && rc.isDoomed())
+				delete(rc);
+		}
+	}
+
+	/**
+	 * Get the IDs of the workflow runs that are candidates for doing
+	 * notification of termination. Only the ID column is read; a run is
+	 * loaded with {@link #getIfNotifiable(String)} once there is reason to
+	 * think it has finished.
+	 * 
+	 * @return The IDs of the runs not yet recorded as finished.
+	 */
+	@Nonnull
 	@PerfLogged
 	@WithinSingleTransaction
-	public void markFinished(@Nonnull Set<String> terminated) {
+	public List<String> getPotentiallyNotifiable() {
+		return new ArrayList<>(unterminated());
+	}
+
+	/**
+	 * @param name
+	 *            The identifier of the run.
+	 * @return The workflow run, if it is a candidate for doing notification
+	 *         of termination, or <tt>null</tt> otherwise.
+	 */
+	@Nullable
+	@WithinSingleTransaction
+	public RemoteRunDelegate getIfNotifiable(@Nonnull String name) {
+		RunConnection rc = getById(name);
+		if (rc == null || rc.isFinished() || rc.isDoomed())
+			return null;
+		try {
+			return rc.fromDBform(facade);
+		} catch (Exception e) {
+			log.warn("failed to fetch connection token "
+					+ "for notification of completion check", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Record that some workflow runs have terminated.
+	 * 
+	 * @param terminated
+	 *            The IDs of the runs that have terminated.
+	 * @return The IDs of the runs that were not already recorded as having
+	 *         terminated; only these should have notifications sent.
+	 */
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public Set<String> markFinished(@Nonnull Set<String> terminated) {
+		Set<String> marked = new HashSet<>();
 		for (String id : terminated) {
 			RunConnection rc = getById(id);
-			if (rc == null)
+			if (rc == null || rc.isFinished() || rc.isDoomed())
 				continue;
-			try {
-				rc.fromDBform(facade).doneTransitionToFinished = true;
-				rc.setFinished(true);
-			} catch (Exception e) {
-				log.warn("failed to note termination", e);
-			}
+			rc.setFinished(true);
+			marked.add(id);
 		}
+		return marked;
 	}
 }
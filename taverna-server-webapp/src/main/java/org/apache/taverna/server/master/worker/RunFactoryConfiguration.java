@@ -372,6 +372,15 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	@ManagedAttribute(description = "The mapping of user names to RMI factory IDs.", currencyTimeLimit = 60)
 	public abstract String[] getFactoryProcessMapping();
 
+	/**
+	 * @return A description of each factory process: whose it is, what it is
+	 *         registered as, how much heap it is using, how many runs it has
+	 *         and how long it has been running.
+	 */
+	@Override
+	@ManagedAttribute(description = "The owner, RMI ID, heap use, live run count and age of each factory process.", currencyTimeLimit = 10)
+	public abstract String[] getFactoryDetails();
+
 	@Override
 	@ManagedAttribute(description = "The maximum number of simultaneous operating runs supported by the server.", currencyTimeLimit = 300)
 	public final void setOperatingLimit(int operatingLimit) {
@@ -0,0 +1,224 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.currentTimeMillis;
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.taverna.server.master.interfaces.TavernaRun;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A cache of handles to workflow runs, so that we do not have to rebuild them
+ * from the database (with all the deserialization that involves) on every
+ * access. It is bounded both in size, by evicting the least recently used
+ * handles, and in time, by dropping handles that have not been used for a
+ * while.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunCache", description = "The cache of workflow run handles.")
+public class RunHandleCache {
+	/**
+	 * When the cache overflows, it is trimmed to this fraction of its
+	 * capacity, so that we are not trimming on every insertion.
+	 */
+	private static final double LOW_WATER_MARK = 0.9;
+	private final ConcurrentHashMap<String, Holder> map = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile int maxSize;
+	private volatile long maxIdle;
+
+	private static class Holder {
+		final TavernaRun run;
+		volatile long lastAccess;
+
+		Holder(TavernaRun run) {
+			this.run = run;
+			this.lastAccess = currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of run handles to hold.
+	 */
+	@Required
+	@ManagedAttribute(description = "The maximum number of run handles to hold.")
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trim();
+	}
+
+	@ManagedAttribute(description = "The maximum number of run handles to hold.")
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param seconds
+	 *            How long a run handle may go unused before it is dropped.
+	 */
+	@Required
+	@ManagedAttribute(description = "How long a run handle may go unused before it is dropped, in seconds.")
+	public void setMaxIdleTime(int seconds) {
+		maxIdle = seconds * 1000L;
+	}
+
+	@ManagedAttribute(description = "How long a run handle may go unused before it is dropped, in seconds.")
+	public int getMaxIdleTime() {
+		return (int) (maxIdle / 1000);
+	}
+
+	private boolean isExpired(Holder h, long now) {
+		return now - h.lastAccess > maxIdle;
+	}
+
+	/**
+	 * Look up a run handle.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @return The handle, or <tt>null</tt> if it is not in the cache.
+	 */
+	@Nullable
+	public TavernaRun get(@Nonnull String id) {
+		Holder h = map.get(id);
+		long now = currentTimeMillis();
+		if (h != null && isExpired(h, now)) {
+			if (map.remove(id, h))
+				evictions.incrementAndGet();
+			h = null;
+		}
+		if (h == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		h.lastAccess = now;
+		hits.incrementAndGet();
+		return h.run;
+	}
+
+	/**
+	 * Add a run handle to the cache, unless there is one there already.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @param run
+	 *            The handle to the run.
+	 * @return The handle that is now in the cache, which callers should use
+	 *         in preference to the one that they supplied.
+	 */
+	@Nonnull
+	public TavernaRun add(@Nonnull String id, @Nonnull TavernaRun run) {
+		Holder h = map.putIfAbsent(id, new Holder(run));
+		if (h != null)
+			return h.run;
+		if (map.size() > maxSize)
+			trim();
+		return run;
+	}
+
+	/**
+	 * Remove a run handle from the cache.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void remove(@Nonnull String id) {
+		map.remove(id);
+	}
+
+	/**
+	 * Drop all run handles that have not been used recently.
+	 */
+	@ManagedOperation(description = "Drop all run handles that have not been used recently.")
+	public void expire() {
+		long now = currentTimeMillis();
+		for (Map.Entry<String, Holder> e : map.entrySet())
+			if (isExpired(e.getValue(), now)
+					&& map.remove(e.getKey(), e.getValue()))
+				evictions.incrementAndGet();
+	}
+
+	/**
+	 * Drop the least recently used run handles until the cache is
+	 * comfortably within its size limit.
+	 */
+	private synchronized void trim() {
+		int target = (int) (maxSize * LOW_WATER_MARK);
+		if (map.size() <= maxSize)
+			return;
+		List<Map.Entry<String, Holder>> entries = new ArrayList<>(
+				map.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Holder>>() {
+			@Override
+			public int compare(Map.Entry<String, Holder> a,
+					Map.Entry<String, Holder> b) {
+				long la = a.getValue().lastAccess, lb = b.getValue().lastAccess;
+				return la < lb ? -1 : la == lb ? 0 : 1;
+			}
+		});
+		for (Map.Entry<String, Holder> e : entries) {
+			if (map.size() <= target)
+				break;
+			if (map.remove(e.getKey(), e.getValue()))
+				evictions.incrementAndGet();
+		}
+	}
+
+	@ManagedMetric(description = "Number of run handles in the cache.", metricType = GAUGE, category = "utilization")
+	public int getSize() {
+		return map.size();
+	}
+
+	@ManagedMetric(description = "Number of lookups that found a run handle.", metricType = COUNTER, category = "throughput")
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@ManagedMetric(description = "Number of lookups that did not find a run handle.", metricType = COUNTER, category = "throughput")
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@ManagedMetric(description = "Number of run handles dropped because of age or lack of space.", metricType = COUNTER, category = "throughput")
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Math.min;
+import static java.util.Collections.emptySet;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.rmi.NoSuchObjectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Destroys the execution resources of expired workflow runs in the
+ * background. Killing a run's subprocess and deleting its working directory
+ * can take a long time, so this is done by a small pool of threads of its own
+ * after the runs have been marked as doomed in the database, rather than by
+ * the scheduler thread while it holds a transaction open. A run's record is
+ * only deleted once it has been destroyed. Runs whose destruction fails are
+ * tried again later, up to a limit; runs still doomed when the server starts
+ * (because it stopped first, or because the limit was reached) are picked up
+ * again then.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunReaper", description = "The destroyer of expired workflow runs.")
+public class RunReaper {
+	private Log log = getLog("Taverna.Server.Worker.RunDB");
+	@Autowired
+	private FactoryBean factory;
+	private RunDatabaseDAO dao;
+	private int threads;
+	private int batchSize;
+	private int maxAttempts;
+	private long retryDelay;
+	private ScheduledThreadPoolExecutor pool;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+
+	@Required
+	public void setDao(RunDatabaseDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @param threads
+	 *            How many batches of runs may be destroyed at once.
+	 */
+	@Required
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param batchSize
+	 *            How many runs to ask the factory processes to destroy in one
+	 *            call.
+	 */
+	@Required
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            How many times to try to destroy a run before giving up.
+	 */
+	@Required
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param seconds
+	 *            How long to wait before the first retry; later retries wait
+	 *            proportionately longer.
+	 */
+	@Required
+	public void setRetryDelay(int seconds) {
+		this.retryDelay = seconds;
+	}
+
+	@PostConstruct
+	void start() {
+		pool = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Taverna.Server.Reaper."
+						+ count.incrementAndGet());
+				t.setContextClassLoader(null);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@PreDestroy
+	void stop() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Arrange for some runs to be destroyed. Returns immediately.
+	 * 
+	 * @param doomed
+	 *            Map from run ID to the handle of the run in its factory
+	 *            process.
+	 */
+	public void reap(@Nonnull Map<String, RemoteSingleRun> doomed) {
+		List<String> ids = new ArrayList<>(doomed.keySet());
+		for (int i = 0; i < ids.size(); i += batchSize) {
+			Map<String, RemoteSingleRun> batch = new HashMap<>();
+			for (String id : ids.subList(i, min(i + batchSize, ids.size())))
+				batch.put(id, doomed.get(id));
+			schedule(new Batch(batch, 1), 0);
+		}
+	}
+
+	private void schedule(Batch batch, long delay) {
+		pending.addAndGet(batch.runs.size());
+		try {
+			pool.schedule(batch, delay, SECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.addAndGet(-batch.runs.size());
+			abandoned.addAndGet(batch.runs.size());
+			log.warn("could not schedule destruction of runs "
+					+ batch.runs.keySet(), e);
+		}
+	}
+
+	private class Batch implements Runnable {
+		final Map<String, RemoteSingleRun> runs;
+		final int attempt;
+
+		Batch(Map<String, RemoteSingleRun> runs, int attempt) {
+			this.runs = runs;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			Map<String, RemoteSingleRun> failed = new HashMap<>();
+			Set<String> gone = new HashSet<>();
+			try {
+				Set<String> done;
+				try {
+					done = factory.destroyRuns(runs.keySet());
+				} catch (RuntimeException e) {
+					log.warn("failed to destroy runs in bulk", e);
+					done = emptySet();
+				}
+				for (Map.Entry<String, RemoteSingleRun> e : runs.entrySet()) {
+					if (!done.contains(e.getKey()))
+						try {
+							e.getValue().destroy();
+						} catch (NoSuchObjectException ex) {
+							// Its factory process has already let go of it
+						} catch (Exception ex) {
+							if (log.isDebugEnabled())
+								log.debug("failed to delete execution "
+										+ "resource for " + e.getKey(), ex);
+							failed.put(e.getKey(), e.getValue());
+							continue;
+						}
+					destroyed.incrementAndGet();
+					gone.add(e.getKey());
+				}
+			} finally {
+				pending.addAndGet(-runs.size());
+			}
+			if (!gone.isEmpty())
+				try {
+					dao.deleteDoomed(gone);
+				} catch (RuntimeException e) {
+					// Still doomed, so they'll be tried again on restart
+					log.warn("failed to remove destroyed runs " + gone, e);
+				}
+			if (failed.isEmpty())
+				return;
+			if (attempt < maxAttempts) {
+				retried.addAndGet(failed.size());
+				schedule(new Batch(failed, attempt + 1), retryDelay * attempt);
+			} else {
+				abandoned.addAndGet(failed.size());
+				log.warn("giving up for now on deleting execution resources "
+						+ "for " + failed.keySet()
+						+ "; will try again when the server restarts");
+			}
+		}
+	}
+
+	@ManagedAttribute(description = "How many batches of runs may be destroyed at once.")
+	public int getThreads() {
+		return threads;
+	}
+
+	@ManagedMetric(description = "Number of expired runs waiting to be destroyed.", metricType = GAUGE, category = "utilization")
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	@ManagedMetric(description = "Number of expired runs destroyed.", metricType = COUNTER, category = "throughput")
+	public long getDestroyedCount() {
+		return destroyed.get();
+	}
+
+	@ManagedMetric(description = "Number of times destruction of a run was retried.", metricType = COUNTER, category = "throughput")
+	public long getRetryCount() {
+		return retried.get();
+	}
+
+	@ManagedMetric(description = "Number of expired runs whose destruction was given up on.", metricType = COUNTER, category = "throughput")
+	public long getAbandonedCount() {
+		return abandoned.get();
+	}
+}
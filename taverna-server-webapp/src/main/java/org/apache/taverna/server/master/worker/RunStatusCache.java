@@ -0,0 +1,222 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.currentTimeMillis;
+import static org.apache.taverna.server.localworker.remote.RemoteStatus.Finished;
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.localworker.remote.RemoteStatus;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A short-lived cache of the states of workflow runs, so that clients polling
+ * many runs do not each cost a call to the worker. Concurrent requests for the
+ * state of the same run share a single call, and once a run has finished its
+ * state is remembered until the run is no longer asked about.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "StatusCache", description = "The cache of workflow run states.")
+public class RunStatusCache {
+	private final ConcurrentHashMap<String, Holder> map = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, FutureTask<RemoteStatus>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private volatile long timeToLive;
+	private volatile long maxIdle;
+
+	private static class Holder {
+		final RemoteStatus status;
+		final long fetched;
+		volatile long lastAccess;
+
+		Holder(RemoteStatus status, long now) {
+			this.status = status;
+			this.fetched = now;
+			this.lastAccess = now;
+		}
+	}
+
+	/**
+	 * @param milliseconds
+	 *            How long a state that may still change is remembered for.
+	 */
+	@Required
+	@ManagedAttribute(description = "How long a state that may still change is remembered for, in milliseconds.")
+	public void setTimeToLive(long milliseconds) {
+		timeToLive = milliseconds;
+	}
+
+	@ManagedAttribute(description = "How long a state that may still change is remembered for, in milliseconds.")
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param seconds
+	 *            How long the state of a run may go unread before it is
+	 *            dropped.
+	 */
+	@Required
+	@ManagedAttribute(description = "How long the state of a run may go unread before it is dropped, in seconds.")
+	public void setMaxIdleTime(int seconds) {
+		maxIdle = seconds * 1000L;
+	}
+
+	@ManagedAttribute(description = "How long the state of a run may go unread before it is dropped, in seconds.")
+	public int getMaxIdleTime() {
+		return (int) (maxIdle / 1000);
+	}
+
+	private boolean isFresh(Holder h, long now) {
+		return h.status == Finished || now - h.fetched <= timeToLive;
+	}
+
+	/**
+	 * Get the state of a run, asking the worker only if the state is not
+	 * known or may have changed.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @param run
+	 *            The handle to the run in the worker.
+	 * @return The state of the run.
+	 * @throws RemoteException
+	 *             If the worker cannot be asked.
+	 */
+	@Nonnull
+	public RemoteStatus get(@Nonnull String id,
+			@Nonnull final RemoteSingleRun run) throws RemoteException {
+		long now = currentTimeMillis();
+		Holder h = map.get(id);
+		if (h != null && isFresh(h, now)) {
+			h.lastAccess = now;
+			hits.incrementAndGet();
+			return h.status;
+		}
+		FutureTask<RemoteStatus> task = new FutureTask<>(
+				new Callable<RemoteStatus>() {
+					@Override
+					public RemoteStatus call() throws RemoteException {
+						return run.getStatus();
+					}
+				});
+		FutureTask<RemoteStatus> existing = inFlight.putIfAbsent(id, task);
+		if (existing == null) {
+			misses.incrementAndGet();
+			try {
+				task.run();
+				// Only remember the state if nobody changed it meanwhile
+				if (inFlight.get(id) == task && !task.isCancelled())
+					map.put(id, new Holder(task.get(), currentTimeMillis()));
+			} catch (ExecutionException | InterruptedException e) {
+				// Reported below
+			} finally {
+				inFlight.remove(id, task);
+			}
+		} else {
+			coalesced.incrementAndGet();
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException)
+				throw (RemoteException) e.getCause();
+			throw new RemoteException("failed to get run state", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("interrupted while getting run state", e);
+		}
+	}
+
+	/**
+	 * Remember the states of runs that were fetched by some other means, such
+	 * as in bulk.
+	 * 
+	 * @param states
+	 *            Map from run ID to state.
+	 */
+	public void putAll(@Nonnull Map<String, RemoteStatus> states) {
+		long now = currentTimeMillis();
+		for (Map.Entry<String, RemoteStatus> e : states.entrySet())
+			map.put(e.getKey(), new Holder(e.getValue(), now));
+	}
+
+	/**
+	 * Forget the state of a run, because it has been changed.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void invalidate(@Nonnull String id) {
+		inFlight.remove(id);
+		map.remove(id);
+	}
+
+	/**
+	 * Drop the states of runs that have not been asked about recently.
+	 */
+	@ManagedOperation(description = "Drop the states of runs that have not been asked about recently.")
+	public void expire() {
+		long now = currentTimeMillis();
+		for (Map.Entry<String, Holder> e : map.entrySet())
+			if (now - e.getValue().lastAccess > maxIdle)
+				map.remove(e.getKey(), e.getValue());
+	}
+
+	@ManagedMetric(description = "Number of run states in the cache.", metricType = GAUGE, category = "utilization")
+	public int getSize() {
+		return map.size();
+	}
+
+	@ManagedMetric(description = "Number of state reads answered from the cache.", metricType = COUNTER, category = "throughput")
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@ManagedMetric(description = "Number of state reads that asked the worker.", metricType = COUNTER, category = "throughput")
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@ManagedMetric(description = "Number of state reads that shared another read's call to the worker.", metricType = COUNTER, category = "throughput")
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+}
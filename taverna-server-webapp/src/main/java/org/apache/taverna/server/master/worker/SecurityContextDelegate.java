@@ -19,6 +19,7 @@ package org.apache.taverna.server.master.worker;
  */
 
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static java.util.Arrays.fill;
 import static java.util.UUID.randomUUID;
 import static org.apache.taverna.server.master.defaults.Default.CERTIFICATE_FIELD_NAMES;
@@ -42,6 +43,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -79,6 +81,12 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	private final List<Trust> trusted = new ArrayList<>();
 	private final RemoteRunDelegate run;
 	private final Object lock = new Object();
+	/**
+	 * Whether the credentials and trust have been validated since they were
+	 * loaded from the database. Validation is expensive (it decodes keystores
+	 * and certificates) so it is only done when they are actually needed.
+	 */
+	private boolean validated = true;
 	final SecurityContextFactory factory;
 
 	private transient Keystore keystore;
@@ -114,6 +122,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	@Override
 	public Credential[] getCredentials() {
 		synchronized (lock) {
+			validateLoaded();
 			return credentials.toArray(new Credential[credentials.size()]);
 		}
 	}
@@ -159,6 +168,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	@Override
 	public Trust[] getTrusted() {
 		synchronized (lock) {
+			validateLoaded();
 			return trusted.toArray(new Trust[trusted.size()]);
 		}
 	}
@@ -291,10 +301,15 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			IOException, ImplementationException {
 		RemoteSecurityContext rc = run.run.getSecurityContext();
 
-		List<Trust> trusted = new ArrayList<>(this.trusted);
-		this.trusted.clear();
-		List<Credential> credentials = new ArrayList<>(this.credentials);
-		this.credentials.clear();
+		List<Trust> trusted;
+		List<Credential> credentials;
+		synchronized (lock) {
+			validateLoaded();
+			trusted = new ArrayList<>(this.trusted);
+			this.trusted.clear();
+			credentials = new ArrayList<>(this.credentials);
+			this.credentials.clear();
+		}
 
 		try {
 			installLocalPasswordCredential(credentials, trusted);
@@ -481,7 +496,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 
 	/**
 	 * Reinstall the credentials and the trust extracted from serialization to
-	 * the database.
+	 * the database. They are not revalidated until they are next needed.
 	 * 
 	 * @param credentials
 	 *            The credentials to reinstall.
@@ -492,23 +507,64 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		synchronized (lock) {
 			this.credentials.clear();
 			if (credentials != null)
-				for (Credential c : credentials)
-					try {
-						validateCredential(c);
-						this.credentials.add(c);
-					} catch (InvalidCredentialException e) {
-						log.warn("failed to revalidate credential: " + c, e);
-					}
+				this.credentials.addAll(asList(credentials));
 			this.trusted.clear();
 			if (trust != null)
-				for (Trust t : trust)
-					try {
-						validateTrusted(t);
-						this.trusted.add(t);
-					} catch (InvalidCredentialException e) {
-						log.warn("failed to revalidate trust assertion: " + t,
-								e);
-					}
+				this.trusted.addAll(asList(trust));
+			validated = this.credentials.isEmpty() && this.trusted.isEmpty();
+		}
+	}
+
+	/**
+	 * Get the credentials to store in the database. Unlike
+	 * {@link #getCredentials()}, this does not force them to be revalidated.
+	 * 
+	 * @return The credentials.
+	 */
+	Credential[] getStoredCredentials() {
+		synchronized (lock) {
+			return credentials.toArray(new Credential[credentials.size()]);
+		}
+	}
+
+	/**
+	 * Get the trusted certificates to store in the database. Unlike
+	 * {@link #getTrusted()}, this does not force them to be revalidated.
+	 * 
+	 * @return The trusted certificates.
+	 */
+	Trust[] getStoredTrust() {
+		synchronized (lock) {
+			return trusted.toArray(new Trust[trusted.size()]);
+		}
+	}
+
+	/**
+	 * Revalidate the credentials and trust that were reinstalled from the
+	 * database, if that has not yet been done, discarding any that are no
+	 * longer valid. Must be called while holding the lock.
+	 */
+	private void validateLoaded() {
+		if (validated)
+			return;
+		validated = true;
+		for (Iterator<Credential> it = credentials.iterator(); it.hasNext();) {
+			Credential c = it.next();
+			try {
+				validateCredential(c);
+			} catch (InvalidCredentialException e) {
+				log.warn("failed to revalidate credential: " + c, e);
+				it.remove();
+			}
+		}
+		for (Iterator<Trust> it = trusted.iterator(); it.hasNext();) {
+			Trust t = it.next();
+			try {
+				validateTrusted(t);
+			} catch (InvalidCredentialException e) {
+				log.warn("failed to revalidate trust assertion: " + t, e);
+				it.remove();
+			}
 		}
 	}
 
@@ -0,0 +1,77 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.taverna.server.master.worker.RunConnection.SCHEMA;
+import static org.apache.taverna.server.master.worker.WorkflowRecord.TABLE;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import org.apache.taverna.server.master.common.Workflow;
+
+/**
+ * The persistent form of a workflow document. Each distinct document is only
+ * stored once, however many runs are made from it, as it is identified by the
+ * digest of its content.
+ * 
+ * @author Donal Fellows
+ * @see Workflow#getDigest()
+ */
+@PersistenceCapable(table = TABLE, schema = SCHEMA)
+public class WorkflowRecord {
+	static final String TABLE = "WORKFLOW";
+	/** The length of a hex-encoded SHA-256 digest. */
+	static final int DIGEST_LENGTH = 64;
+
+	@PrimaryKey
+	@Column(length = DIGEST_LENGTH)
+	private String id;
+
+	@Persistent(serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private Workflow workflow;
+
+	WorkflowRecord() {
+	}
+
+	/**
+	 * Make a persistent record of a workflow.
+	 * 
+	 * @param id
+	 *            The digest of the workflow.
+	 * @param workflow
+	 *            The workflow itself.
+	 */
+	WorkflowRecord(@Nonnull String id, @Nonnull Workflow workflow) {
+		this.id = id;
+		this.workflow = workflow;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Workflow getWorkflow() {
+		return workflow;
+	}
+}
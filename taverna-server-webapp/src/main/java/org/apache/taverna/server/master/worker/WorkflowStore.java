@@ -0,0 +1,204 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.annotations.PersistenceAware;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.taverna.server.master.common.Workflow;
+import org.apache.taverna.server.master.utils.JDOSupport;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The store of workflow documents. Workflows are identified by the digest of
+ * their content, so that each distinct workflow is only stored once in the
+ * database however many runs are made from it. The most recently used
+ * workflows are also kept in memory, so that the work of parsing and
+ * converting them is shared between all the runs of the same workflow.
+ * 
+ * @author Donal Fellows
+ */
+@PersistenceAware
+@ManagedResource(objectName = JMX_ROOT + "WorkflowStore", description = "The store of workflow documents.")
+public class WorkflowStore extends JDOSupport<WorkflowRecord> {
+	public WorkflowStore() {
+		super(WorkflowRecord.class);
+	}
+
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.Workflows");
+	private volatile int cacheSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Map<String, Workflow> cache = new LinkedHashMap<String, Workflow>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Workflow> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	/**
+	 * @param cacheSize
+	 *            How many workflows to keep in memory.
+	 */
+	@Required
+	@ManagedAttribute(description = "How many workflows to keep in memory.")
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	@ManagedAttribute(description = "How many workflows to keep in memory.")
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Get the canonical instance of a workflow, which is shared by all runs of
+	 * that workflow. If this workflow has not been seen recently, it becomes
+	 * the canonical instance.
+	 * 
+	 * @param workflow
+	 *            The workflow, as submitted.
+	 * @return The canonical instance of the workflow.
+	 * @throws IOException
+	 *             If the digest of the workflow cannot be computed.
+	 */
+	@Nonnull
+	public Workflow intern(@Nonnull Workflow workflow) throws IOException {
+		String digest = workflow.getDigest();
+		synchronized (cache) {
+			Workflow wf = cache.get(digest);
+			if (wf != null) {
+				hits.incrementAndGet();
+				return wf;
+			}
+			misses.incrementAndGet();
+			cache.put(digest, workflow);
+			return workflow;
+		}
+	}
+
+	/**
+	 * Make sure that a workflow is stored in the database. This may be done
+	 * for the same workflow by several transactions at once; all but the
+	 * first to commit then fail with a duplicate key, and are retried, upon
+	 * which they find the workflow already stored.
+	 * 
+	 * @param workflow
+	 *            The workflow to store.
+	 * @return The digest that identifies the workflow.
+	 * @throws IOException
+	 *             If the digest of the workflow cannot be computed.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public String store(@Nonnull Workflow workflow) throws IOException {
+		String digest = workflow.getDigest();
+		if (getById(digest) == null) {
+			if (log.isDebugEnabled())
+				log.debug("storing new workflow " + digest);
+			persist(new WorkflowRecord(digest, workflow));
+		}
+		return digest;
+	}
+
+	/**
+	 * Get a workflow, from memory if possible.
+	 * 
+	 * @param digest
+	 *            The digest that identifies the workflow.
+	 * @return The workflow, or <tt>null</tt> if it is not stored.
+	 */
+	@Nullable
+	@WithinSingleTransaction
+	public Workflow get(@Nonnull String digest) {
+		synchronized (cache) {
+			Workflow wf = cache.get(digest);
+			if (wf != null) {
+				hits.incrementAndGet();
+				return wf;
+			}
+		}
+		misses.incrementAndGet();
+		WorkflowRecord wr = getById(digest);
+		if (wr == null)
+			return null;
+		Workflow wf = wr.getWorkflow();
+		synchronized (cache) {
+			Workflow existing = cache.get(digest);
+			if (existing != null)
+				return existing;
+			cache.put(digest, wf);
+		}
+		return wf;
+	}
+
+	/**
+	 * Remove a workflow from the database. Only to be done once no run uses
+	 * it.
+	 * 
+	 * @param digest
+	 *            The digest that identifies the workflow.
+	 */
+	@WithinSingleTransaction
+	public void delete(@Nonnull String digest) {
+		if (log.isDebugEnabled())
+			log.debug("deleting unused workflow " + digest);
+		WorkflowRecord wr = getById(digest);
+		if (wr != null)
+			delete(wr);
+		synchronized (cache) {
+			cache.remove(digest);
+		}
+	}
+
+	@ManagedMetric(description = "Number of workflows held in memory.", metricType = GAUGE, category = "utilization")
+	public int getCachedCount() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	@ManagedMetric(description = "Number of lookups of workflows that were found in memory.", metricType = COUNTER, category = "throughput")
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@ManagedMetric(description = "Number of lookups of workflows that were not found in memory.", metricType = COUNTER, category = "throughput")
+	public long getMissCount() {
+		return misses.get();
+	}
+}
@@ -173,6 +173,15 @@ function updateRO() {
 						tbl.append("<tr><td>" + ary[i] + "<td>" + ary[i + 1]
 								+ "</tr>");
 			});
+	getJSON(where("factoryDetails"),
+			function(data) {
+				var ary = data.stringList.string;
+				var tbl = $("#factoryDetails");
+				tbl.html("<tr><th>Factory</tr>");
+				if (ary != undefined)
+					for ( var i = 0; i < ary.length; i++)
+						tbl.append("<tr><td>" + ary[i] + "</tr>");
+			});
 }
 
 /**
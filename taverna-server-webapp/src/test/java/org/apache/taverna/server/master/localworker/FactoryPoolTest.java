@@ -0,0 +1,188 @@
+/*
+ */
+package org.apache.taverna.server.master.localworker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.currentTimeMillis;
+import static java.rmi.registry.LocateRegistry.createRegistry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the pool of factory processes replaces members that die, and
+ * only those. The members are instances of {@link StubFactory}.
+ * 
+ * @author Donal Fellows
+ */
+public class FactoryPoolTest {
+	private static final long TIMEOUT = 30000;
+
+	private Registry registry;
+	private int port;
+	private FactoryPool pool;
+	private final List<Process> processes = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		registry = createRegistry(port);
+		pool = new FactoryPool("StubFactory.", new FactoryPool.Launcher() {
+			@Override
+			public Process launch(String name) throws IOException {
+				ProcessBuilder pb = new ProcessBuilder(new File(new File(
+						System.getProperty("java.home"), "bin"), "java")
+						.getPath(), "-cp", classPath(),
+						StubFactory.class.getName(), Integer.toString(port),
+						name);
+				pb.redirectErrorStream(true);
+				Process p = pb.start();
+				synchronized (processes) {
+					processes.add(p);
+				}
+				return p;
+			}
+
+			@Override
+			public RemoteRunFactory lookup(String name)
+					throws RemoteException, NotBoundException {
+				return (RemoteRunFactory) registry.lookup(name);
+			}
+
+			@Override
+			public void prepare(RemoteRunFactory factory) {
+			}
+		});
+		pool.setStartupTimeout(TIMEOUT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.shutdown();
+		synchronized (processes) {
+			for (Process p : processes)
+				p.destroy();
+		}
+		UnicastRemoteObject.unexportObject(registry, true);
+	}
+
+	/**
+	 * Surefire may run the tests from a manifest-only JAR, so the real class
+	 * path is not always in the usual place.
+	 */
+	private static String classPath() {
+		return System.getProperty("surefire.test.class.path",
+				System.getProperty("java.class.path"));
+	}
+
+	/**
+	 * Make a run the way {@link ForkRunFactory} does, moving on to another
+	 * factory if the one chosen turns out to be dead.
+	 */
+	private void create() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			RemoteRunFactory factory = pool.acquire();
+			assertNotNull(factory);
+			try {
+				factory.make(new byte[0], "test", null, null);
+				return;
+			} catch (ConnectException e) {
+				pool.failed(factory);
+			}
+		}
+		throw new AssertionError("failed to make run");
+	}
+
+	private void awaitReady(int count) throws InterruptedException {
+		long deadline = currentTimeMillis() + TIMEOUT;
+		while (pool.getReadyCount() < count && currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertEquals(count, pool.getReadyCount());
+	}
+
+	private FactoryPool.Member memberFor(RemoteRunFactory factory) {
+		for (FactoryPool.Member m : pool.getReadyMembers())
+			if (m.factory == factory)
+				return m;
+		return null;
+	}
+
+	@Test
+	public void crashedMemberIsReplaced() throws Exception {
+		create();
+		pool.setSize(2);
+		awaitReady(2);
+
+		RemoteRunFactory victim = pool.acquire();
+		FactoryPool.Member dead = memberFor(victim);
+		assertNotNull(dead);
+		try {
+			victim.make(new byte[0], "crash", null, null);
+		} catch (RemoteException e) {
+			// Expected; it died while answering
+		}
+		create();
+
+		// The dead member is dropped and a new one started in its place
+		awaitReady(2);
+		assertNull(memberFor(victim));
+		assertFalse(dead.isAlive());
+		assertEquals(1, pool.getReplacedCount());
+		assertEquals(0, pool.getFailedStartCount());
+	}
+
+	@Test
+	public void unresponsiveMemberIsKept() throws Exception {
+		create();
+		RemoteRunFactory slow = pool.acquire();
+		FactoryPool.Member member = memberFor(slow);
+		assertNotNull(member);
+		slow.make(new byte[0], "busy", null, null);
+
+		// Its next query fails; that must not cost it its life
+		try {
+			pool.acquire();
+		} catch (Exception e) {
+			// A replacement might not start in time; that is not the point
+		}
+		assertTrue(member.isAlive());
+		assertSame(member, memberFor(slow));
+		assertEquals(0, pool.getReplacedCount());
+	}
+}
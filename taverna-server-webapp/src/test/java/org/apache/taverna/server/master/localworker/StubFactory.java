@@ -0,0 +1,107 @@
+/*
+ */
+package org.apache.taverna.server.master.localworker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.out;
+import static java.rmi.registry.LocateRegistry.getRegistry;
+import static org.apache.taverna.server.localworker.remote.RemoteRunFactory.READY_ANNOUNCEMENT;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
+
+/**
+ * A stand-in for the worker's factory process, for testing how factory
+ * processes are managed. It registers a factory that makes no runs, announces
+ * that it is ready in the same way as the real thing, and then waits to be
+ * shut down or killed. Asking it to make a run for the user <tt>crash</tt>
+ * makes it die on the spot; asking it to make one for the user <tt>busy</tt>
+ * makes it fail the next query of how many runs it has, as if it had timed
+ * out.
+ * <p>
+ * Arguments: <i>registryPort</i> <i>factoryName</i>
+ * 
+ * @author Donal Fellows
+ */
+public class StubFactory implements InvocationHandler {
+	private final Registry registry;
+	private final String name;
+	private volatile boolean busy;
+
+	private StubFactory(Registry registry, String name) {
+		this.registry = registry;
+		this.name = name;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "StubFactory(" + name + ")";
+		case "countOperatingRuns":
+			if (busy) {
+				busy = false;
+				throw new RemoteException("timed out");
+			}
+			return 0;
+		case "getMemoryUsed":
+			return 0L;
+		case "make":
+			// A run made for "crash" kills the process, as abruptly as can be
+			if ("crash".equals(args[1]))
+				Runtime.getRuntime().halt(1);
+			busy = "busy".equals(args[1]);
+			return null;
+		case "shutdown":
+			registry.unbind(name);
+			new Thread() {
+				@Override
+				public void run() {
+					System.exit(0);
+				}
+			}.start();
+			return null;
+		default:
+			// Pretend to succeed at everything else
+			return null;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Registry registry = getRegistry("localhost", Integer.parseInt(args[0]));
+		String name = args[1];
+		RemoteRunFactory factory = (RemoteRunFactory) Proxy.newProxyInstance(
+				StubFactory.class.getClassLoader(),
+				new Class<?>[] { RemoteRunFactory.class }, new StubFactory(
+						registry, name));
+		registry.bind(name, UnicastRemoteObject.exportObject(factory, 0));
+		out.println(READY_ANNOUNCEMENT + name);
+		out.flush();
+	}
+}
@@ -38,6 +38,8 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.xml.ws.handler.MessageContext;
 
 import org.springframework.security.core.context.SecurityContext;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
+import org.apache.taverna.server.localworker.remote.OutputValue;
 import org.apache.taverna.server.master.common.Credential;
 import org.apache.taverna.server.master.common.Status;
 import org.apache.taverna.server.master.common.Trust;
@@ -462,4 +464,14 @@ public class ExampleRun implements TavernaRun, TavernaSecurityContext {
 		// TODO Auto-generated method stub
 		
 	}
+
+	@Override
+	public List<OutputValue> getOutputManifest(List<String> ports) {
+		return null;
+	}
+
+	@Override
+	public CapturedOutput readOutput(String stream, long offset, int length) {
+		return null;
+	}
 }
@@ -20,9 +20,11 @@ import java.lang.ref.WeakReference;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeSet;
 
 import org.apache.taverna.server.master.exceptions.NoDestroyException;
 import org.apache.taverna.server.master.exceptions.UnknownRunException;
@@ -132,6 +134,26 @@ public class SimpleNonpersistentRunStore implements RunStore {
 		return filtered;
 	}
 
+	@Override
+	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p,
+			int offset, int limit) {
+		Map<String, TavernaRun> all = listRuns(user, p);
+		Map<String, TavernaRun> page = new LinkedHashMap<>();
+		for (String id : new TreeSet<>(all.keySet()))
+			if (offset > 0)
+				offset--;
+			else if (limit < 0 || page.size() < limit)
+				page.put(id, all.get(id));
+		return page;
+	}
+
+	@Override
+	public int countRuns() {
+		synchronized (lock) {
+			return store.size();
+		}
+	}
+
 	@Override
 	public String registerRun(TavernaRun run) {
 		synchronized (lock) {
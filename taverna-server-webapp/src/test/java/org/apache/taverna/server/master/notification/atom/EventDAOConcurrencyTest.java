@@ -0,0 +1,180 @@
+/*
+ */
+package org.apache.taverna.server.master.notification.atom;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.taverna.server.master.utils.DerbyTestDatabase.inParallel;
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.taverna.server.master.utils.DerbyTestDatabase;
+import org.apache.taverna.server.master.utils.DerbyTestDatabase.Gate;
+import org.apache.taverna.server.master.utils.JDOSupport.TransactionAspect;
+import org.apache.taverna.server.master.utils.JDOSupport.WithinSingleTransaction;
+import org.apache.taverna.server.master.utils.UsernamePrincipal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the transactions of the Atom event store do not have to take
+ * turns. Each operation is done first by one thread and then by several at
+ * once, with every transaction held open until all the others in its group
+ * have started; if the transactions were serialized, the group would never
+ * all start. An in-memory Derby database is used.
+ *
+ * @author Donal Fellows
+ */
+public class EventDAOConcurrencyTest {
+	private static final int THREADS = 8;
+	private static final int EVENTS = 5;
+
+	private DerbyTestDatabase database;
+	private TransactionAspect aspect;
+	private GatedEventDAO gatedDAO;
+	private EventDAO dao;
+
+	/**
+	 * An event store that holds each transaction that stores or fetches
+	 * events at the gate.
+	 */
+	static class GatedEventDAO extends EventDAO {
+		final Gate gate = new Gate();
+
+		private void pass() {
+			try {
+				gate.pass();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		@WithinSingleTransaction
+		protected void storeEvents(List<Event> events) {
+			pass();
+			super.storeEvents(events);
+		}
+
+		@Override
+		@WithinSingleTransaction
+		public List<Event> getEvents(UsernamePrincipal user) {
+			pass();
+			return super.getEvents(user);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		database = new DerbyTestDatabase("eventConcurrency", 2 * THREADS);
+		aspect = database.getAspect();
+		aspect.setMaxAttempts(THREADS + 2);
+
+		gatedDAO = new GatedEventDAO();
+		gatedDAO.setPersistenceManagerBuilder(database
+				.getPersistenceManagerBuilder());
+		dao = database.transactional(gatedDAO);
+
+		// Create the table before anything contends for it
+		assertEquals(0, database.count(Event.class));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	private static UsernamePrincipal user(int i) {
+		return new UsernamePrincipal("user" + i);
+	}
+
+	private static List<Event> events(int user) {
+		List<Event> events = new ArrayList<>();
+		for (int i = 0; i < EVENTS; i++)
+			events.add(new Event("finish", URI.create("http://localhost/run/"
+					+ user + "/" + i), user(user), "finished", "run " + i
+					+ " has finished"));
+		return events;
+	}
+
+	/**
+	 * Run the tasks at once, each in a transaction that is held open until
+	 * they have all started.
+	 *
+	 * @return The most transactions that were ever in progress at once.
+	 */
+	private <T> int peakOverlap(List<? extends Callable<T>> tasks)
+			throws Exception {
+		gatedDAO.gate.expect(tasks.size());
+		inParallel(tasks);
+		return aspect.getPeakActiveCount();
+	}
+
+	private List<Callable<Void>> storing(int from, int count) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i = from; i < from + count; i++) {
+			final int user = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					dao.storeEvents(events(user));
+					return null;
+				}
+			});
+		}
+		return tasks;
+	}
+
+	private List<Callable<Void>> fetching(int count) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final int user = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					List<Event> events = dao.getEvents(user(user));
+					assertEquals(EVENTS, events.size());
+					for (Event e : events)
+						assertEquals(user(user).getName(), e.getOwner());
+					return null;
+				}
+			});
+		}
+		return tasks;
+	}
+
+	@Test
+	public void concurrentStores() throws Exception {
+		assertEquals(1, peakOverlap(storing(0, 1)));
+		assertEquals(THREADS, peakOverlap(storing(1, THREADS)));
+		assertEquals((1 + THREADS) * EVENTS, database.count(Event.class));
+	}
+
+	@Test
+	public void concurrentFetches() throws Exception {
+		for (int i = 0; i < THREADS; i++)
+			dao.storeEvents(events(i));
+
+		assertEquals(1, peakOverlap(fetching(1)));
+		assertEquals(THREADS, peakOverlap(fetching(THREADS)));
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ */
+package org.apache.taverna.server.master.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.xml.parsers.DocumentBuilderFactory.newInstance;
+import static org.apache.taverna.server.master.rest.handler.T2FlowDocumentHandler.T2FLOW_NS;
+import static org.apache.taverna.server.master.rest.handler.T2FlowDocumentHandler.T2FLOW_ROOTNAME;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import javax.jdo.PersistenceManager;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.taverna.server.master.common.Workflow;
+import org.apache.taverna.server.master.utils.JDOSupport.PersistenceManagerBuilder;
+import org.apache.taverna.server.master.utils.JDOSupport.TransactionAspect;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * An in-memory Derby database, set up the way the webapp sets up its real
+ * one, for tests of what happens when several threads use the DAOs at once.
+ * The database is dropped when it is closed.
+ *
+ * @author Donal Fellows
+ */
+public class DerbyTestDatabase {
+	private static final String DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+	private final String url;
+	private final BasicDataSource dataSource;
+	private final JDOPersistenceManagerFactory pmf;
+	private final PersistenceManagerBuilder pmb;
+	private final TransactionAspect aspect;
+
+	/**
+	 * @param name
+	 *            The name of the database. Should be unique to the test.
+	 * @param connections
+	 *            How many connections the pool may hand out at once.
+	 */
+	public DerbyTestDatabase(String name, int connections) {
+		url = "jdbc:derby:memory:" + name;
+		dataSource = new BasicDataSource();
+		dataSource.setDriverClassName(DERBY_DRIVER);
+		dataSource.setUrl(url + ";create=true");
+		dataSource.setMaxActive(connections);
+		pmf = new JDOPersistenceManagerFactory();
+		pmf.setConnectionFactory(dataSource);
+		pmf.setNontransactionalRead(true);
+		Properties props = new Properties();
+		props.setProperty("datanucleus.storeManagerType", "rdbms");
+		props.setProperty("datanucleus.autoCreateSchema", "true");
+		props.setProperty("datanucleus.autoCreateTables", "true");
+		props.setProperty("datanucleus.autoCreateColumns", "true");
+		props.setProperty("datanucleus.autoCreateConstraints", "true");
+		pmf.setPersistenceProperties(props);
+		pmb = new PersistenceManagerBuilder();
+		pmb.setPersistenceManagerFactory(pmf);
+		aspect = new TransactionAspect();
+	}
+
+	/**
+	 * @return The builder to configure DAOs with.
+	 */
+	public PersistenceManagerBuilder getPersistenceManagerBuilder() {
+		return pmb;
+	}
+
+	/**
+	 * @return The transaction manager that the DAOs' methods go through.
+	 */
+	public TransactionAspect getAspect() {
+		return aspect;
+	}
+
+	/**
+	 * Wrap a DAO so that its {@link JDOSupport.WithinSingleTransaction}
+	 * methods are run in transactions, as Spring does in the webapp.
+	 *
+	 * @param dao
+	 *            The DAO to wrap.
+	 * @return The wrapped DAO.
+	 */
+	public <T> T transactional(T dao) {
+		AspectJProxyFactory factory = new AspectJProxyFactory(dao);
+		factory.setProxyTargetClass(true);
+		factory.addAspect(aspect);
+		return factory.getProxy();
+	}
+
+	/**
+	 * Count the stored instances of a class, outside of any transaction.
+	 * Also creates the table for the class if it is not there yet.
+	 *
+	 * @param type
+	 *            The persistent class.
+	 * @return How many there are.
+	 */
+	public int count(Class<?> type) {
+		PersistenceManager pm = pmf.getPersistenceManager();
+		try {
+			return ((Collection<?>) pm.newQuery(type).execute()).size();
+		} finally {
+			pm.close();
+		}
+	}
+
+	/**
+	 * Make a small workflow to store. Different numbers give different
+	 * workflows.
+	 *
+	 * @param i
+	 *            Which workflow to make.
+	 * @return The workflow.
+	 * @throws Exception
+	 *             If the XML cannot be built.
+	 */
+	public static Workflow workflow(int i) throws Exception {
+		Document doc = newInstance().newDocumentBuilder()
+				.getDOMImplementation().createDocument(null, null, null);
+		Element root = doc.createElementNS(T2FLOW_NS, T2FLOW_ROOTNAME);
+		Element e = doc.createElementNS("urn:test", "test");
+		e.setTextContent("workflow " + i);
+		root.appendChild(e);
+		return new Workflow(root);
+	}
+
+	/**
+	 * Run some tasks, each in its own thread and all at once, and wait for
+	 * them all to finish.
+	 *
+	 * @param tasks
+	 *            The tasks to run.
+	 * @return The results of the tasks, in the same order.
+	 * @throws Exception
+	 *             The first failure of any of the tasks.
+	 */
+	public static <T> List<T> inParallel(List<? extends Callable<T>> tasks)
+			throws Exception {
+		ExecutorService pool = newFixedThreadPool(tasks.size());
+		try {
+			List<Future<T>> futures = new ArrayList<>();
+			for (Callable<T> task : tasks)
+				futures.add(pool.submit(task));
+			List<T> results = new ArrayList<>();
+			for (Future<T> f : futures)
+				results.add(f.get());
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Close down the database, throwing away everything in it.
+	 */
+	public void close() {
+		pmb.clearThreadCache();
+		pmf.close();
+		try {
+			dataSource.close();
+		} catch (SQLException e) {
+			// Dropping the database is what matters
+		}
+		try {
+			DriverManager.getConnection(url + ";drop=true");
+		} catch (SQLException e) {
+			// Derby reports a successful drop this way
+		}
+	}
+
+	/**
+	 * Holds each of a group of transactions open until all of them have got
+	 * to it, so that they must overlap unless something forces them to go one
+	 * at a time, which makes the wait time out. Once all have got to it, the
+	 * gate stays open, so transactions that are retried go straight through.
+	 */
+	public static class Gate {
+		private static final int TIMEOUT = 30;
+		private volatile CountDownLatch latch = new CountDownLatch(0);
+
+		/**
+		 * Close the gate until a number of transactions have got to it.
+		 *
+		 * @param parties
+		 *            How many transactions to wait for.
+		 */
+		public void expect(int parties) {
+			latch = new CountDownLatch(parties);
+		}
+
+		/**
+		 * Wait until all the expected transactions have got here.
+		 *
+		 * @throws InterruptedException
+		 *             If interrupted while waiting.
+		 * @throws TimeoutException
+		 *             If the others never turned up.
+		 */
+		public void pass() throws InterruptedException, TimeoutException {
+			CountDownLatch l = latch;
+			l.countDown();
+			if (!l.await(TIMEOUT, SECONDS))
+				throw new TimeoutException("transactions did not overlap");
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ */
+package org.apache.taverna.server.master.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.taverna.server.master.utils.DerbyTestDatabase.inParallel;
+import static org.apache.taverna.server.master.utils.DerbyTestDatabase.workflow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.taverna.server.master.common.Workflow;
+import org.apache.taverna.server.master.utils.DerbyTestDatabase.Gate;
+import org.apache.taverna.server.master.utils.JDOSupport.TransactionAspect;
+import org.apache.taverna.server.master.worker.WorkflowRecord;
+import org.apache.taverna.server.master.worker.WorkflowStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that database transactions from different threads that insert the
+ * same rows at the same time are retried rather than failed, and that the
+ * rows end up stored exactly once. An in-memory Derby database is used.
+ * 
+ * @author Donal Fellows
+ */
+public class JDOSupportConcurrencyTest {
+	private static final int THREADS = 8;
+	private static final int WORKFLOWS = 20;
+
+	private DerbyTestDatabase database;
+	private TransactionAspect aspect;
+	private GatedWorkflowStore gatedStore;
+	private WorkflowStore workflowStore;
+
+	/**
+	 * A workflow store that, the first time round, holds each transaction
+	 * that looks up a workflow until every thread has looked it up. They all
+	 * find it missing, so they all try to insert it, and all but one of them
+	 * must conflict.
+	 */
+	static class GatedWorkflowStore extends WorkflowStore {
+		final Map<Object, Gate> gates = new ConcurrentHashMap<>();
+
+		@Override
+		protected WorkflowRecord getById(Object id) {
+			WorkflowRecord wr = super.getById(id);
+			Gate gate = gates.get(id);
+			if (gate != null)
+				try {
+					gate.pass();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			return wr;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		database = new DerbyTestDatabase("jdoConcurrency", 2 * THREADS);
+		aspect = database.getAspect();
+		// Enough that a store that keeps losing the race still gets in
+		aspect.setMaxAttempts(THREADS + 2);
+
+		gatedStore = new GatedWorkflowStore();
+		gatedStore.setPersistenceManagerBuilder(database
+				.getPersistenceManagerBuilder());
+		gatedStore.setCacheSize(0);
+		workflowStore = database.transactional(gatedStore);
+
+		// Create the table before anything contends for it
+		assertEquals(0, database.count(WorkflowRecord.class));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	@Test
+	public void concurrentStoresOfSameWorkflow() throws Exception {
+		final List<Workflow> workflows = new ArrayList<>();
+		Set<String> digests = new HashSet<>();
+		for (int i = 0; i < WORKFLOWS; i++) {
+			Workflow wf = workflow(i);
+			workflows.add(wf);
+			digests.add(wf.getDigest());
+			Gate gate = new Gate();
+			gate.expect(THREADS);
+			gatedStore.gates.put(wf.getDigest(), gate);
+		}
+		List<Callable<Set<String>>> tasks = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++)
+			tasks.add(new Callable<Set<String>>() {
+				@Override
+				public Set<String> call() throws Exception {
+					Set<String> stored = new HashSet<>();
+					for (Workflow wf : workflows)
+						stored.add(workflowStore.store(wf));
+					return stored;
+				}
+			});
+		for (Set<String> stored : inParallel(tasks))
+			assertEquals(digests, stored);
+
+		// Every store committed once, after however many tries it took
+		assertEquals(THREADS * WORKFLOWS, aspect.getCommittedCount());
+		// Only one insert of each workflow can win; the rest must be retried
+		assertTrue("stores did not contend: " + aspect.getRetryCount(),
+				aspect.getRetryCount() >= (THREADS - 1) * WORKFLOWS);
+		assertTrue("stores retried too often: " + aspect.getRetryCount(),
+				aspect.getRetryCount() <= (THREADS - 1) * WORKFLOWS
+						* (aspect.getMaxAttempts() - 1));
+		assertEquals("transactions were serialized", THREADS,
+				aspect.getPeakActiveCount());
+
+		// Each workflow is stored exactly once, and can be read back
+		assertEquals(WORKFLOWS, database.count(WorkflowRecord.class));
+		for (String digest : digests)
+			assertNotNull(workflowStore.get(digest));
+	}
+}
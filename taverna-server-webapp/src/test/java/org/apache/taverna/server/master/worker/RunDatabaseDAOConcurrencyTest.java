@@ -0,0 +1,282 @@
+/*
+ */
+package org.apache.taverna.server.master.worker;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.reflect.Proxy.newProxyInstance;
+import static java.util.Arrays.asList;
+import static java.util.UUID.randomUUID;
+import static javax.jdo.Constants.TX_REPEATABLE_READ;
+import static org.apache.taverna.server.master.utils.DerbyTestDatabase.inParallel;
+import static org.apache.taverna.server.master.utils.DerbyTestDatabase.workflow;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.master.utils.DerbyTestDatabase;
+import org.apache.taverna.server.master.utils.DerbyTestDatabase.Gate;
+import org.apache.taverna.server.master.utils.JDOSupport.TransactionAspect;
+import org.apache.taverna.server.master.utils.JDOSupport.WithinSingleTransaction;
+import org.apache.taverna.server.master.utils.UsernamePrincipal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the transactions of the workflow run database do not have to
+ * take turns. Each operation is done first by one thread and then by several
+ * at once, with every transaction held open until all the others in its
+ * group have started; if the transactions were serialized, the group would
+ * never all start. An in-memory Derby database is used.
+ *
+ * @author Donal Fellows
+ */
+public class RunDatabaseDAOConcurrencyTest {
+	private static final int THREADS = 8;
+	private static final String READER = "reader";
+
+	private DerbyTestDatabase database;
+	private TransactionAspect aspect;
+	private GatedRunDatabaseDAO gatedDAO;
+	private RunDatabaseDAO dao;
+	private SecurityContextFactory securityFactory;
+
+	/**
+	 * A run database that holds each transaction that persists, updates or
+	 * lists runs at the gate.
+	 */
+	static class GatedRunDatabaseDAO extends RunDatabaseDAO {
+		final Gate gate = new Gate();
+
+		private void pass() {
+			try {
+				gate.pass();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		@WithinSingleTransaction
+		public void persistRun(RemoteRunDelegate rrd) throws IOException {
+			pass();
+			super.persistRun(rrd);
+		}
+
+		@Override
+		@WithinSingleTransaction
+		public void flushToDisk(RemoteRunDelegate run) throws IOException {
+			pass();
+			super.flushToDisk(run);
+		}
+
+		@Override
+		@WithinSingleTransaction
+		public List<String> listRunNames(UsernamePrincipal user, int offset,
+				int limit) {
+			pass();
+			return super.listRunNames(user, offset, limit);
+		}
+	}
+
+	/**
+	 * Stands in for the back end of a run, which these tests never talk to.
+	 * It is serializable because the database stores it.
+	 */
+	@SuppressWarnings("serial")
+	static class NoRemoteRun implements InvocationHandler, Serializable {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "NoRemoteRun";
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		database = new DerbyTestDatabase("runConcurrency", 2 * THREADS);
+		aspect = database.getAspect();
+		aspect.setMaxAttempts(THREADS + 2);
+
+		WorkflowStore workflowStore = new WorkflowStore();
+		workflowStore.setPersistenceManagerBuilder(database
+				.getPersistenceManagerBuilder());
+		workflowStore.setCacheSize(0);
+		gatedDAO = new GatedRunDatabaseDAO();
+		gatedDAO.setPersistenceManagerBuilder(database
+				.getPersistenceManagerBuilder());
+		// As configured in the webapp
+		gatedDAO.setIsolationLevel(TX_REPEATABLE_READ);
+		gatedDAO.setWorkflowStore(database.transactional(workflowStore));
+		dao = database.transactional(gatedDAO);
+
+		securityFactory = new SecurityContextFactory();
+		securityFactory.setPasswordIssuer(new PasswordIssuer());
+
+		// Create the tables before anything contends for them
+		assertEquals(0, database.count(RunConnection.class));
+		assertEquals(0, database.count(WorkflowRecord.class));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	private RemoteRunDelegate run(int i) throws Exception {
+		RemoteSingleRun remote = (RemoteSingleRun) newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class }, new NoRemoteRun());
+		RemoteRunDelegate rrd = new RemoteRunDelegate(new Date(), workflow(i),
+				remote, 20, null, randomUUID(), false, null);
+		rrd.secContext = new HelioSecurityContextDelegateImpl(rrd,
+				new UsernamePrincipal("user" + i), securityFactory);
+		return rrd;
+	}
+
+	private List<RemoteRunDelegate> runs(int from, int count) throws Exception {
+		List<RemoteRunDelegate> runs = new ArrayList<>();
+		for (int i = from; i < from + count; i++)
+			runs.add(run(i));
+		return runs;
+	}
+
+	private List<String> ids(List<RemoteRunDelegate> runs) {
+		List<String> ids = new ArrayList<>();
+		for (RemoteRunDelegate rrd : runs)
+			ids.add(rrd.getId());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Run the tasks at once, each in a transaction that is held open until
+	 * they have all started.
+	 *
+	 * @return The most transactions that were ever in progress at once.
+	 */
+	private <T> int peakOverlap(List<? extends Callable<T>> tasks)
+			throws Exception {
+		gatedDAO.gate.expect(tasks.size());
+		inParallel(tasks);
+		return aspect.getPeakActiveCount();
+	}
+
+	private List<Callable<Void>> persisting(List<RemoteRunDelegate> runs) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (final RemoteRunDelegate rrd : runs)
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					dao.persistRun(rrd);
+					return null;
+				}
+			});
+		return tasks;
+	}
+
+	private List<Callable<Void>> updating(List<RemoteRunDelegate> runs) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (final RemoteRunDelegate rrd : runs)
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					rrd.readers = new HashSet<>(asList(READER));
+					dao.flushToDisk(rrd);
+					return null;
+				}
+			});
+		return tasks;
+	}
+
+	private List<Callable<List<String>>> listing(int count) {
+		List<Callable<List<String>>> tasks = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			tasks.add(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					List<String> names = dao.listRunNames(
+							new UsernamePrincipal(READER), 0, -1);
+					Collections.sort(names);
+					return names;
+				}
+			});
+		return tasks;
+	}
+
+	@Test
+	public void concurrentPersists() throws Exception {
+		List<RemoteRunDelegate> alone = runs(0, 1);
+		List<RemoteRunDelegate> together = runs(1, THREADS);
+
+		assertEquals(1, peakOverlap(persisting(alone)));
+		assertEquals(THREADS, peakOverlap(persisting(together)));
+		assertEquals(1 + THREADS, dao.countRuns());
+		assertEquals(1 + THREADS, database.count(WorkflowRecord.class));
+	}
+
+	@Test
+	public void concurrentUpdates() throws Exception {
+		List<RemoteRunDelegate> alone = runs(0, 1);
+		List<RemoteRunDelegate> together = runs(1, THREADS);
+		List<RemoteRunDelegate> all = new ArrayList<>(alone);
+		all.addAll(together);
+		for (RemoteRunDelegate rrd : all)
+			dao.persistRun(rrd);
+
+		assertEquals(1, peakOverlap(updating(alone)));
+		assertEquals(THREADS, peakOverlap(updating(together)));
+		List<String> visible = dao.listRunNames(new UsernamePrincipal(READER),
+				0, -1);
+		Collections.sort(visible);
+		assertEquals(ids(all), visible);
+	}
+
+	@Test
+	public void concurrentListings() throws Exception {
+		List<RemoteRunDelegate> runs = runs(0, THREADS);
+		for (RemoteRunDelegate rrd : runs) {
+			rrd.readers = new HashSet<>(asList(READER));
+			dao.persistRun(rrd);
+		}
+		List<String> expected = ids(runs);
+
+		assertEquals(1, peakOverlap(listing(1)));
+		assertEquals(THREADS, peakOverlap(listing(THREADS)));
+		for (List<String> names : inParallel(listing(THREADS)))
+			assertEquals(expected, names);
+	}
+}
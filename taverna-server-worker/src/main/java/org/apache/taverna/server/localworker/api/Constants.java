@@ -149,6 +149,54 @@ public abstract class Constants {
 	 * located.
 	 */
 	public static final String SHARED_DIR_PROP = "taverna.sharedDirectory";
+	/**
+	 * The name of the property giving the maximum number of threads to use
+	 * for background tasks in this process.
+	 */
+	public static final String EXECUTOR_THREADS_PROP = "taverna.executor.threads";
+	/**
+	 * The default maximum number of threads used for short background tasks,
+	 * such as starting runs and serving bulk transfers.
+	 */
+	public static final int DEFAULT_EXECUTOR_THREADS = 128;
+	/**
+	 * The start of the name of the directory, alongside the working
+	 * directories of runs, that the working directory of a destroyed run is
+	 * moved into until it can be deleted. Each process has its own, named for
+	 * this, the user it runs as and its process ID, separated by hyphens.
+	 */
+	public static final String TRASH_DIR_NAME = ".trash";
+	/**
+	 * The name of the property giving the maximum number of destroyed runs'
+	 * working directories that may be deleted at once.
+	 */
+	public static final String TRASH_THREADS_PROP = "taverna.trash.threads";
+	/**
+	 * The default maximum number of working directories deleted at once.
+	 * Deletion is bound by disk I/O, so a few threads are plenty.
+	 */
+	public static final int DEFAULT_TRASH_THREADS = 2;
+	/**
+	 * The name of the property giving how many bytes of each of a run's
+	 * standard output and standard error are kept in memory. Anything older
+	 * has to be read back from the log file in the run's working directory.
+	 */
+	public static final String OUTPUT_BUFFER_PROP = "taverna.output.bufferSize";
+	/**
+	 * The default number of bytes of each captured output stream that are kept
+	 * in memory.
+	 */
+	public static final int DEFAULT_OUTPUT_BUFFER = 65536;
+	/**
+	 * The largest section of a captured output stream that will be returned
+	 * by a single read.
+	 */
+	public static final int MAX_OUTPUT_READ = 1048576;
+	/**
+	 * The name of the directory, within the working directory of a run, where
+	 * its logs are written.
+	 */
+	public static final String LOG_DIR_NAME = "logs";
 
 	public static final String TIME = "/usr/bin/time";
 }
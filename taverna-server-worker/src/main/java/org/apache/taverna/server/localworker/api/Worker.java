@@ -19,10 +19,12 @@ package org.apache.taverna.server.localworker.api;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.taverna.server.localworker.impl.LocalWorker;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
 import org.apache.taverna.server.localworker.remote.ImplementationException;
 import org.apache.taverna.server.localworker.remote.RemoteListener;
 import org.apache.taverna.server.localworker.remote.RemoteStatus;
@@ -124,6 +126,25 @@ public interface Worker {
 	 */
 	RemoteStatus getWorkerStatus();
 
+	/**
+	 * Read part of the captured standard output or standard error of the
+	 * subprocess.
+	 * 
+	 * @param stream
+	 *            Which stream to read; <tt>stdout</tt> or <tt>stderr</tt>.
+	 * @param offset
+	 *            Where to start reading, in bytes; if negative, counts back
+	 *            from the end of what has been written so far.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as
+	 *            possible.
+	 * @return The section of the stream.
+	 * @throws IOException
+	 *             If the stream is unknown or cannot be read.
+	 */
+	CapturedOutput readOutput(String stream, long offset, int length)
+			throws IOException;
+
 	/**
 	 * @return The listener that is registered by default, in addition to all
 	 *         those that are explicitly registered by the user.
@@ -16,6 +16,7 @@ package org.apache.taverna.server.localworker.api;
  * limitations under the License.
  */
 
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
 
 /**
  * Class that manufactures instances of {@link Worker}.
@@ -31,4 +32,15 @@ public interface WorkerFactory {
 	 *             If anything goes wrong.
 	 */
 	Worker makeInstance() throws Exception;
+
+	/**
+	 * Note that a run made with this factory has been destroyed, so that the
+	 * factory need no longer keep track of it.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @param run
+	 *            The run.
+	 */
+	void runDestroyed(String id, RemoteSingleRun run);
 }
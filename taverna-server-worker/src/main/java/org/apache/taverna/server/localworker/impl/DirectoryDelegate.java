@@ -18,9 +18,12 @@ package org.apache.taverna.server.localworker.impl;
  * limitations under the License.
  */
 
+import static java.nio.file.Files.isSymbolicLink;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.apache.commons.io.FileUtils.forceMkdir;
 import static org.apache.commons.io.FileUtils.touch;
+import static org.apache.taverna.server.localworker.impl.utils.BulkTransferServer.zipJob;
+import static org.apache.taverna.server.localworker.impl.utils.FilenameVerifier.getLookupParts;
 import static org.apache.taverna.server.localworker.impl.utils.FilenameVerifier.getValidatedNewFile;
 
 import java.io.File;
@@ -36,6 +39,9 @@ import javax.annotation.Nonnull;
 
 import org.apache.commons.collections.MapIterator;
 import org.apache.commons.collections.map.ReferenceMap;
+import org.apache.taverna.server.localworker.impl.utils.BulkTransferServer;
+import org.apache.taverna.server.localworker.remote.BulkTransfer;
+import org.apache.taverna.server.localworker.remote.DirectoryEntryInfo;
 import org.apache.taverna.server.localworker.remote.RemoteDirectory;
 import org.apache.taverna.server.localworker.remote.RemoteDirectoryEntry;
 import org.apache.taverna.server.localworker.remote.RemoteFile;
@@ -75,30 +81,109 @@ public class DirectoryDelegate extends UnicastRemoteObject implements
 		for (String s : dir.list()) {
 			if (s.equals(".") || s.equals(".."))
 				continue;
-			File f = new File(dir, s);
-			RemoteDirectoryEntry entry;
-			synchronized (localCache) {
-				entry = (RemoteDirectoryEntry) localCache.get(s);
-				if (f.isDirectory()) {
-					if (entry == null || !(entry instanceof DirectoryDelegate)) {
-						entry = new DirectoryDelegate(f, this);
-						localCache.put(s, entry);
-					}
-				} else if (f.isFile()) {
-					if (entry == null || !(entry instanceof FileDelegate)) {
-						entry = new FileDelegate(f, this);
-						localCache.put(s, entry);
-					}
-				} else {
-					// not file or dir; skip...
-					continue;
+			RemoteDirectoryEntry entry = delegate(s, new File(dir, s));
+			if (entry != null)
+				result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the (cached) delegate for an entry in this directory.
+	 * 
+	 * @param name
+	 *            The name of the entry.
+	 * @param f
+	 *            The entry.
+	 * @return The delegate, or <tt>null</tt> if the entry is neither a file
+	 *         nor a directory.
+	 * @throws RemoteException
+	 *             If registration of the delegate fails.
+	 */
+	private RemoteDirectoryEntry delegate(String name, File f)
+			throws RemoteException {
+		synchronized (localCache) {
+			RemoteDirectoryEntry entry = (RemoteDirectoryEntry) localCache
+					.get(name);
+			if (f.isDirectory()) {
+				if (entry == null || !(entry instanceof DirectoryDelegate)) {
+					entry = new DirectoryDelegate(f, this);
+					localCache.put(name, entry);
 				}
+			} else if (f.isFile()) {
+				if (entry == null || !(entry instanceof FileDelegate)) {
+					entry = new FileDelegate(f, this);
+					localCache.put(name, entry);
+				}
+			} else {
+				// not file or dir; skip...
+				return null;
 			}
-			result.add(entry);
+			return entry;
 		}
+	}
+
+	@Override
+	public List<DirectoryEntryInfo> list(int depth) throws IOException {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+		List<DirectoryEntryInfo> result = new ArrayList<>();
+		list(dir, null, depth, result);
 		return result;
 	}
 
+	private static void list(File d, String prefix, int depth,
+			List<DirectoryEntryInfo> result) throws IOException {
+		String[] names = d.list();
+		if (names == null)
+			throw new IOException("failed to list directory " + d);
+		for (String s : names) {
+			if (s.equals(".") || s.equals(".."))
+				continue;
+			File f = new File(d, s);
+			String path = (prefix == null ? s : prefix + "/" + s);
+			if (f.isDirectory()) {
+				result.add(new DirectoryEntryInfo(s, path, true, -1, f
+						.lastModified()));
+				// Don't follow links out of the tree, or round in circles
+				if (depth > 1 && !isSymbolicLink(f.toPath()))
+					list(f, path, depth - 1, result);
+			} else if (f.isFile())
+				result.add(new DirectoryEntryInfo(s, path, false, f.length(),
+						f.lastModified()));
+			// else not file or dir; skip...
+		}
+	}
+
+	@Override
+	public RemoteDirectoryEntry getEntry(String name) throws IOException {
+		List<String> parts = getLookupParts(name);
+		if (parts.size() != 1)
+			throw new IOException("illegal filename");
+		File f = new File(dir, parts.get(0));
+		if (!f.exists())
+			return null;
+		return delegate(parts.get(0), f);
+	}
+
+	@Override
+	public RemoteDirectoryEntry resolve(String path) throws IOException {
+		// Looser than the checks for making entries; see getLookupParts
+		List<String> parts = getLookupParts(path);
+		if (parts.isEmpty())
+			return this;
+		DirectoryDelegate d = this;
+		for (int i = 0;; i++) {
+			RemoteDirectoryEntry entry = d.delegate(parts.get(i), new File(
+					d.dir, parts.get(i)));
+			if (entry == null || i == parts.size() - 1)
+				return entry;
+			if (!(entry instanceof DirectoryDelegate))
+				throw new IOException("trying to take subdirectory of file");
+			d = (DirectoryDelegate) entry;
+		}
+	}
+
 	@Override
 	public RemoteFile makeEmptyFile(String name) throws IOException {
 		File f = getValidatedNewFile(dir, name);
@@ -121,6 +206,15 @@ public class DirectoryDelegate extends UnicastRemoteObject implements
 		return delegate;
 	}
 
+	@Override
+	public BulkTransfer openZipChannel(int compressionLevel)
+			throws IOException {
+		if (compressionLevel < -1 || compressionLevel > 9)
+			throw new IllegalArgumentException("bad compression level");
+		return BulkTransferServer.getInstance().offer(
+				zipJob(dir, compressionLevel), -1);
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public void destroy() throws IOException {
@@ -18,10 +18,14 @@ package org.apache.taverna.server.localworker.impl;
  * limitations under the License.
  */
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.lang.System.arraycopy;
 import static java.net.InetAddress.getLocalHost;
 import static org.apache.commons.io.FileUtils.copyFile;
 import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.apache.taverna.server.localworker.impl.utils.BulkTransferServer.readJob;
+import static org.apache.taverna.server.localworker.impl.utils.BulkTransferServer.writeJob;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -34,6 +38,8 @@ import java.util.Date;
 
 import javax.annotation.Nonnull;
 
+import org.apache.taverna.server.localworker.impl.utils.BulkTransferServer;
+import org.apache.taverna.server.localworker.remote.BulkTransfer;
 import org.apache.taverna.server.localworker.remote.RemoteDirectory;
 import org.apache.taverna.server.localworker.remote.RemoteFile;
 
@@ -85,6 +91,19 @@ public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
 		return buffer;
 	}
 
+	@Override
+	public BulkTransfer openReadChannel(long offset, long length)
+			throws IOException {
+		long size = file.length();
+		if (offset < 0 || offset > size)
+			throw new IOException("offset outside file");
+		if (length < 0)
+			length = size - offset;
+		length = max(0, min(length, size - offset));
+		return BulkTransferServer.getInstance().offer(
+				readJob(file, offset, length), length);
+	}
+
 	@Override
 	public long getSize() {
 		return file.length();
@@ -104,6 +123,12 @@ public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
 		}
 	}
 
+	@Override
+	public BulkTransfer openWriteChannel(boolean append) throws IOException {
+		return BulkTransferServer.getInstance().offer(writeJob(file, append),
+				-1);
+	}
+
 	@Override
 	public void destroy() throws IOException {
 		forceDelete(file);
@@ -58,11 +58,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.taverna.server.localworker.api.Worker;
 import org.apache.taverna.server.localworker.api.WorkerFactory;
+import org.apache.taverna.server.localworker.impl.utils.TrashCollector;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
 import org.apache.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.apache.taverna.server.localworker.remote.ImplementationException;
+import org.apache.taverna.server.localworker.remote.OutputValue;
 import org.apache.taverna.server.localworker.remote.RemoteDirectory;
 import org.apache.taverna.server.localworker.remote.RemoteInput;
 import org.apache.taverna.server.localworker.remote.RemoteListener;
@@ -123,13 +127,15 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 	final Map<String, String> inputDelimiters;
 	/** The interface to the workflow engine subprocess. */
 	private final Worker core;
+	/** The factory that made this run. */
+	private final WorkerFactory workerFactory;
 	/** Our descriptor token (UUID). */
 	private final String masterToken;
 	/**
 	 * The root working directory for a workflow run, or <tt>null</tt> if it has
 	 * been deleted.
 	 */
-	private File base;
+	private volatile File base;
 	/**
 	 * When did this workflow start running, or <tt>null</tt> for
 	 * "never/not yet".
@@ -181,6 +187,11 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 	URL webdavURL;
 	URL publishURL;//FIXME
 	private boolean doProvenance = true;
+	/**
+	 * Descriptions of the values on the output ports, kept once the run has
+	 * finished as they can no longer change.
+	 */
+	private final Map<String, OutputValue> outputManifest = new HashMap<>();
 
 	// ----------------------- METHODS -----------------------
 
@@ -248,6 +259,7 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 					"problem when creating core worker implementation", e);
 		}
 		core.setURReceiver(urReceiver);
+		this.workerFactory = workerFactory;
 		Thread t = new Thread(new Runnable() {
 			/**
 			 * Kill off the worker launched by the core.
@@ -269,6 +281,7 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 
 	@Override
 	public void destroy() throws ImplementationException {
+		workerFactory.runDestroyed(masterToken, this);
 		killWorkflowSubprocess();
 		removeFromShutdownHooks();
 		// Is this it?
@@ -277,6 +290,20 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		core.deleteLocalResources();
 	}
 
+	/**
+	 * @return The UUID of this run.
+	 */
+	String getId() {
+		return masterToken;
+	}
+
+	/**
+	 * @return Whether this run has been destroyed.
+	 */
+	boolean isDestroyed() {
+		return base == null;
+	}
+
 	private void killWorkflowSubprocess() {
 		if (status != Finished && status != Initialized)
 			try {
@@ -304,7 +331,7 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 	private void deleteWorkingDirectory() throws ImplementationException {
 		try {
 			if (base != null)
-				forceDelete(base);
+				TrashCollector.getInstance().discard(base);
 		} catch (IOException e) {
 			out.println("problem deleting working directory");
 			e.printStackTrace(out);
@@ -354,6 +381,12 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		return emptyList();
 	}
 
+	@Override
+	public CapturedOutput readOutput(String stream, long offset, int length)
+			throws IOException {
+		return core.readOutput(stream, offset, length);
+	}
+
 	@Override
 	public List<RemoteListener> getListeners() {
 		return singletonList(core.getDefaultListener());
@@ -536,6 +569,29 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		return baseDir;
 	}
 
+	@Override
+	public List<OutputValue> getOutputManifest(List<String> ports)
+			throws IOException {
+		boolean finished = (getStatus() == Finished);
+		OutputManifestBuilder builder = null;
+		List<OutputValue> result = new ArrayList<>(ports.size());
+		synchronized (outputManifest) {
+			for (String port : ports) {
+				OutputValue value = outputManifest.get(port);
+				if (value == null) {
+					if (builder == null)
+						builder = new OutputManifestBuilder(new File(base,
+								"out"), "/out");
+					value = builder.describe(port);
+					if (finished)
+						outputManifest.put(port, value);
+				}
+				result.add(value);
+			}
+		}
+		return result;
+	}
+
 	File validateFilename(String filename) throws RemoteException {
 		if (filename == null)
 			throw new IllegalArgumentException("filename must be non-null");
@@ -680,6 +736,9 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 				boolean started;
 				try {
 					started = createWorker();
+				} catch (RejectedExecutionException e) {
+					// Pass on as-is; the webapp reports it as overloading
+					throw e;
 				} catch (Exception e) {
 					throw new ImplementationException(
 							"problem creating executing workflow", e);
@@ -0,0 +1,174 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static eu.medsea.util.MimeUtil.getMimeType;
+import static java.lang.Integer.parseInt;
+import static org.apache.taverna.server.localworker.remote.OutputValue.absent;
+import static org.apache.taverna.server.localworker.remote.OutputValue.error;
+import static org.apache.taverna.server.localworker.remote.OutputValue.leaf;
+import static org.apache.taverna.server.localworker.remote.OutputValue.list;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import org.apache.taverna.server.localworker.remote.OutputValue;
+
+/**
+ * Builds the descriptions of the values on the output ports of a run by
+ * scanning the <tt>out</tt> directory directly. The layout is the one written
+ * by the workflow engine: a port's value is a file or directory named after the
+ * port (possibly with an extension), the elements of a list are named after
+ * their index counting from 1, and an error is a file with the suffix
+ * <tt>.error</tt>.
+ * 
+ * @author Donal Fellows
+ */
+class OutputManifestBuilder {
+	/** How much of a file to look at to guess its content type. */
+	private static final int SNIFF_LENGTH = 1024;
+	private static final String DEFAULT_TYPE = "application/octet-stream";
+	private static final Pattern LIST_ELEMENT = Pattern
+			.compile("^([0-9]+)([.].*)?$");
+	private final File outDir;
+	private final String outPath;
+	private final byte[] buffer = new byte[SNIFF_LENGTH];
+	private List<File> outContents;
+
+	/**
+	 * @param outDir
+	 *            The directory holding the outputs.
+	 * @param outPath
+	 *            The full name of that directory, relative to the working
+	 *            directory of the run.
+	 */
+	OutputManifestBuilder(@Nonnull File outDir, @Nonnull String outPath) {
+		this.outDir = outDir;
+		this.outPath = outPath;
+	}
+
+	/**
+	 * Describe the value of an output port.
+	 * 
+	 * @param port
+	 *            The name of the port.
+	 * @return The description.
+	 * @throws IOException
+	 *             If a directory cannot be listed.
+	 */
+	@Nonnull
+	OutputValue describe(@Nonnull String port) throws IOException {
+		if (outContents == null)
+			outContents = listing(outDir);
+		return describe(outContents, outPath, port);
+	}
+
+	private static List<File> listing(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("failed to list directory " + dir);
+		return new ArrayList<>(Arrays.asList(files));
+	}
+
+	private OutputValue describe(List<File> siblings, String parentPath,
+			String name) throws IOException {
+		String error = name + ".error";
+		String prefix = name + ".";
+		for (File f : siblings) {
+			String path = parentPath + "/" + f.getName();
+			if (f.getName().equals(error) && f.isFile())
+				return error(path, f.length());
+			else if (!f.getName().equals(name)
+					&& !f.getName().startsWith(prefix))
+				continue;
+			else if (f.isDirectory())
+				return describeList(f, path);
+			else
+				return leaf(path, f.length(), sniff(f));
+		}
+		return absent();
+	}
+
+	private OutputValue describeList(File dir, String path) throws IOException {
+		/*
+		 * Group the entries by index. A list written by the engine has no
+		 * index beyond its number of entries, so anything past that is
+		 * refused rather than padded out with absent elements.
+		 */
+		List<File> contents = listing(dir);
+		Map<Integer, List<File>> entries = new TreeMap<>();
+		for (File f : contents) {
+			Matcher m = LIST_ELEMENT.matcher(f.getName());
+			if (!m.matches())
+				continue;
+			int index;
+			try {
+				index = parseInt(m.group(1));
+			} catch (NumberFormatException e) {
+				index = Integer.MAX_VALUE;
+			}
+			if (index < 1)
+				continue;
+			if (index > contents.size())
+				throw new IOException("list element " + path + "/"
+						+ f.getName() + " is beyond the end of the list");
+			List<File> group = entries.get(index);
+			if (group == null)
+				entries.put(index, group = new ArrayList<>());
+			group.add(f);
+		}
+		List<OutputValue> elements = new ArrayList<>();
+		int length = 0;
+		for (Map.Entry<Integer, List<File>> entry : entries.entrySet()) {
+			int index = entry.getKey();
+			while (elements.size() < index - 1)
+				elements.add(absent());
+			OutputValue element = describe(entry.getValue(), path,
+					Integer.toString(index));
+			elements.add(element);
+			if (element.getType() != OutputValue.Type.ABSENT)
+				length = index;
+		}
+		return list(path, elements, length);
+	}
+
+	private String sniff(File f) {
+		try (InputStream is = new FileInputStream(f)) {
+			int len = 0, n;
+			while (len < SNIFF_LENGTH
+					&& (n = is.read(buffer, len, SNIFF_LENGTH - len)) > 0)
+				len += n;
+			return getMimeType(new ByteArrayInputStream(buffer, 0, len));
+		} catch (Exception e) {
+			return DEFAULT_TYPE;
+		}
+	}
+}
@@ -38,17 +38,26 @@ import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.taverna.scufl2.api.io.WorkflowBundleIO;
 import org.apache.taverna.server.localworker.api.RunAccounting;
 import org.apache.taverna.server.localworker.api.Worker;
 import org.apache.taverna.server.localworker.api.WorkerFactory;
+import org.apache.taverna.server.localworker.impl.utils.TimeoutService;
+import org.apache.taverna.server.localworker.remote.ImplementationException;
 import org.apache.taverna.server.localworker.remote.RemoteRunFactory;
 import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
+import org.apache.taverna.server.localworker.remote.RemoteStatus;
 import org.apache.taverna.server.localworker.server.UsageRecordReceiver;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -70,6 +79,11 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 	List<String> javaInitParams = new ArrayList<>();
 	private WorkflowBundleIO io;
 	private int activeRuns = 0;
+	/**
+	 * The runs made by this factory, so that they can be dealt with in bulk.
+	 * Runs drop themselves from here when they are destroyed.
+	 */
+	private final ConcurrentMap<String, LocalWorker> runs = new ConcurrentHashMap<>();
 	// Hacks!
 	public static String interactionHost;
 	public static String interactionPort;
@@ -114,8 +128,10 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 					.getMainWorkflow().getIdentifier();
 			out.println("Creating run from workflow <" + wfid + "> for <"
 					+ creator + ">");
-			return new LocalWorker(command, workflow, urReceiver, id,
-					seedEnvironment, javaInitParams, this);
+			LocalWorker run = new LocalWorker(command, workflow, urReceiver,
+					id, seedEnvironment, javaInitParams, this);
+			runs.put(run.getId(), run);
+			return run;
 		} catch (RemoteException e) {
 			throw e;
 		} catch (Exception e) {
@@ -142,18 +158,13 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 	@Override
 	public void shutdown() {
 		unregisterFactory();
-		new Thread(new DelayedDeath()).start();
+		TimeoutService.getInstance().after(DEATH_DELAY, new DelayedDeath());
 	}
 
 	static class DelayedDeath implements Runnable {
 		@Override
 		public void run() {
-			try {
-				Thread.sleep(DEATH_DELAY);
-			} catch (InterruptedException e) {
-			} finally {
-				exit(0);
-			}
+			exit(0);
 		}
 	}
 
@@ -210,7 +221,8 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 				unregisterFactory();
 			}
 		});
-		out.println("registered RemoteRunFactory with ID " + factoryName);
+		out.println(READY_ANNOUNCEMENT + factoryName);
+		out.flush();
 	}
 
 	private void addJavaParameter(String string) {
@@ -238,6 +250,72 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 		return (activeRuns < 0 ? 0 : activeRuns);
 	}
 
+	private LocalWorker getRun(String id) {
+		LocalWorker run = runs.get(id);
+		if (run != null && run.isDestroyed()) {
+			runs.remove(id, run);
+			return null;
+		}
+		return run;
+	}
+
+	@Override
+	public void runDestroyed(String id, RemoteSingleRun run) {
+		runs.remove(id, run);
+	}
+
+	@Override
+	public Map<String, RemoteStatus> getRunStates(List<String> ids) {
+		Map<String, RemoteStatus> states = new HashMap<>();
+		for (String id : ids) {
+			LocalWorker run = getRun(id);
+			if (run != null)
+				states.put(id, run.getStatus());
+		}
+		return states;
+	}
+
+	@Override
+	public Set<String> destroyRuns(List<String> ids) {
+		Set<String> destroyed = new HashSet<>();
+		for (String id : ids) {
+			LocalWorker run = runs.remove(id);
+			if (run == null || run.isDestroyed())
+				continue;
+			try {
+				run.destroy();
+				destroyed.add(id);
+			} catch (ImplementationException e) {
+				out.println("problem destroying run " + id);
+				e.printStackTrace(out);
+			}
+		}
+		return destroyed;
+	}
+
+	@Override
+	public Map<RemoteStatus, Integer> countRunsByState() {
+		Map<RemoteStatus, Integer> counts = new EnumMap<>(RemoteStatus.class);
+		Iterator<LocalWorker> it = runs.values().iterator();
+		while (it.hasNext()) {
+			LocalWorker run = it.next();
+			if (run.isDestroyed()) {
+				it.remove();
+				continue;
+			}
+			RemoteStatus state = run.getStatus();
+			Integer count = counts.get(state);
+			counts.put(state, count == null ? 1 : count + 1);
+		}
+		return counts;
+	}
+
+	@Override
+	public long getMemoryUsed() {
+		Runtime rt = getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
 	@Override
 	public synchronized void runStarted() {
 		activeRuns++;
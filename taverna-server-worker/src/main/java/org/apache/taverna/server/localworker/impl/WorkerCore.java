@@ -22,11 +22,12 @@ import static java.io.File.createTempFile;
 import static java.io.File.pathSeparator;
 import static java.lang.Boolean.parseBoolean;
 import static java.lang.Double.parseDouble;
+import static java.lang.Integer.getInteger;
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
-import static java.lang.Runtime.getRuntime;
 import static java.lang.System.out;
 import static java.net.InetAddress.getLocalHost;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.apache.commons.io.FileUtils.sizeOfDirectory;
 import static org.apache.commons.io.FileUtils.write;
@@ -35,7 +36,10 @@ import static org.apache.taverna.server.localworker.api.Constants.CREDENTIAL_MAN
 import static org.apache.taverna.server.localworker.api.Constants.CREDENTIAL_MANAGER_PASSWORD;
 import static org.apache.taverna.server.localworker.api.Constants.DEATH_TIME;
 import static org.apache.taverna.server.localworker.api.Constants.DEFAULT_LISTENER_NAME;
+import static org.apache.taverna.server.localworker.api.Constants.DEFAULT_OUTPUT_BUFFER;
 import static org.apache.taverna.server.localworker.api.Constants.KEYSTORE_PASSWORD;
+import static org.apache.taverna.server.localworker.api.Constants.LOG_DIR_NAME;
+import static org.apache.taverna.server.localworker.api.Constants.OUTPUT_BUFFER_PROP;
 import static org.apache.taverna.server.localworker.api.Constants.START_WAIT_TIME;
 import static org.apache.taverna.server.localworker.api.Constants.SYSTEM_ENCODING;
 import static org.apache.taverna.server.localworker.api.Constants.TIME;
@@ -64,7 +68,6 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URI;
@@ -78,6 +81,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -89,10 +94,16 @@ import javax.xml.ws.Holder;
 import org.apache.taverna.server.usagerecord.JobUsageRecord;
 import org.apache.taverna.server.localworker.api.RunAccounting;
 import org.apache.taverna.server.localworker.api.Worker;
-import org.apache.taverna.server.localworker.impl.utils.TimingOutTask;
+import org.apache.taverna.server.localworker.impl.utils.OutputCapture;
+import org.apache.taverna.server.localworker.impl.utils.OutputCapture.LineWatcher;
+import org.apache.taverna.server.localworker.impl.utils.ProcessSignaller;
+import org.apache.taverna.server.localworker.impl.utils.TimeoutService;
+import org.apache.taverna.server.localworker.impl.utils.TimeoutService.Task;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
 import org.apache.taverna.server.localworker.remote.ImplementationException;
 import org.apache.taverna.server.localworker.remote.RemoteListener;
 import org.apache.taverna.server.localworker.remote.RemoteStatus;
+import org.apache.taverna.server.localworker.server.RunCompletionReceiver;
 import org.apache.taverna.server.localworker.server.UsageRecordReceiver;
 
 /**
@@ -115,6 +126,11 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	 */
 	@Nonnull
 	private static final Pattern TimeRE;
+	/**
+	 * How long to wait, in milliseconds, for the rest of stderr once the
+	 * subprocess has exited.
+	 */
+	private static final long OUTPUT_DRAIN_TIME = 1000;
 	static {
 		final String TIMERE = "([0-9.:]+)";
 		final String TERMS = "(real|user|system|sys|elapsed)";
@@ -135,9 +151,9 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Nullable
 	Process subprocess;
 	@Nonnull
-	final StringWriter stdout;
+	final OutputCapture stdout;
 	@Nonnull
-	final StringWriter stderr;
+	final OutputCapture stderr;
 	@Nullable
 	Integer exitCode;
 	boolean readyToSendEmail;
@@ -149,8 +165,13 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	final RunAccounting accounting;
 	@Nonnull
 	final Holder<Integer> pid;
+	/** Released when the subprocess is seen to exit. */
+	private final CountDownLatch exited = new CountDownLatch(1);
+	private volatile int exitValue;
 
 	private boolean finished;
+	/** Set when the subprocess is being killed rather than left to finish. */
+	private volatile boolean aborting;
 	@Nullable
 	private JobUsageRecord ur;
 	@Nullable
@@ -160,6 +181,8 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Nullable
 	private File workflowFile;
 	private boolean stopped;
+	/** CPU and elapsed times reported on stderr by the timing wrapper. */
+	private volatile long userTime = -1, systemTime = -1, realTime = -1;
 
 	/**
 	 * @param accounting
@@ -168,8 +191,15 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	 */
 	public WorkerCore(@Nonnull RunAccounting accounting) throws RemoteException {
 		super();
-		stdout = new StringWriter();
-		stderr = new StringWriter();
+		int bufferSize = getInteger(OUTPUT_BUFFER_PROP, DEFAULT_OUTPUT_BUFFER);
+		stdout = new OutputCapture(bufferSize);
+		stderr = new OutputCapture(bufferSize);
+		stderr.addLineWatcher(new LineWatcher() {
+			@Override
+			public void line(String line) {
+				noteTimes(line);
+			}
+		});
 		pid = new Holder<>();
 		this.accounting = accounting;
 	}
@@ -230,20 +260,25 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 			@Nonnull final Map<String, String> environment,
 			@Nullable final String token,
 			@Nonnull final List<String> runtime) throws IOException {
+		Task start = new Task() {
+			@Override
+			public void doIt() throws IOException {
+				startExecutorSubprocess(
+						createProcessBuilder(local, executeWorkflowCommand,
+								workflow, workingDir, inputBaclava, inputFiles,
+								inputValues, inputDelimiters, outputBaclava,
+								securityDir, password, generateProvenance,
+								environment, token, runtime), password);
+			}
+		};
 		try {
-			new TimingOutTask() {
-				@Override
-				public void doIt() throws IOException {
-					startExecutorSubprocess(
-							createProcessBuilder(local, executeWorkflowCommand,
-									workflow, workingDir, inputBaclava,
-									inputFiles, inputValues, inputDelimiters,
-									outputBaclava, securityDir, password,
-									generateProvenance, environment, token,
-									runtime), password);
-				}
-			}.doOrTimeOut(START_WAIT_TIME);
-		} catch (IOException e) {
+			/*
+			 * If starting takes too long, we leave it to finish in the
+			 * background; the caller will find out by polling the status.
+			 */
+			TimeoutService.getInstance().runWithin(START_WAIT_TIME, false,
+					start);
+		} catch (IOException | RejectedExecutionException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new IOException(e);
@@ -259,14 +294,108 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		subprocess = pb.start();
 		if (subprocess == null)
 			throw new IOException("unknown failure creating process");
+		File logDir = new File(pb.directory(), LOG_DIR_NAME);
+		stdout.setLogFile(new File(logDir, "stdout.log"));
+		stderr.setLogFile(new File(logDir, "stderr.log"));
 		start = new Date();
 		accounting.runStarted();
 
-		// Capture its stdout and stderr
-		new AsyncCopy(subprocess.getInputStream(), stdout, pid);
-		new AsyncCopy(subprocess.getErrorStream(), stderr);
+		/*
+		 * Capture its stdout and stderr, and watch for it exiting. These last
+		 * as long as the subprocess, so each gets its own thread rather than
+		 * risking waiting for a pool thread; the number of them is bounded by
+		 * the limit on operating runs.
+		 */
+		final Process p = subprocess;
+		final AsyncCopy stdoutCopier = new AsyncCopy(p.getInputStream(),
+				stdout, pid);
+		startDaemon("stdout copier", new Runnable() {
+			@Override
+			public void run() {
+				stdoutCopier.run();
+				watchForExit(p);
+			}
+		});
+		startDaemon("stderr copier", new AsyncCopy(p.getErrorStream(), stderr));
 		if (password != null)
-			new PasswordWriterThread(subprocess, password);
+			startDaemon("password writer", new PasswordWriter(p, password));
+	}
+
+	private static void startDaemon(String name, Runnable task) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Wait for the subprocess to exit, and record that it has done so. Called
+	 * once its standard output has been closed, which is normally because it
+	 * is terminating. This is what tells the webapp that the run has finished,
+	 * without it needing to ask.
+	 */
+	private void watchForExit(@Nonnull Process p) {
+		try {
+			exitValue = p.waitFor();
+			exited.countDown();
+		} catch (InterruptedException e) {
+			// Shutting down; nothing more to watch for
+			return;
+		}
+		noteFinished(exitValue);
+	}
+
+	/**
+	 * Record that the subprocess has terminated, doing the accounting and
+	 * telling the webapp about it. Only the first call for a run does
+	 * anything.
+	 * 
+	 * @param code
+	 *            The exit code of the subprocess.
+	 */
+	private void noteFinished(int code) {
+		synchronized (this) {
+			if (finished)
+				return;
+			finished = true;
+			setExitCode(code);
+			readyToSendEmail = true;
+		}
+		accounting.runCeased();
+		buildUR(code == 0 ? Completed : aborting ? Aborted : Failed, code);
+		if (urreceiver instanceof RunCompletionReceiver)
+			try {
+				((RunCompletionReceiver) urreceiver).runCompleted(code);
+			} catch (RemoteException e) {
+				// Not fatal; the webapp will still find out when it next looks
+				out.println("failed to notify webapp of run completion");
+				e.printStackTrace(out);
+			}
+	}
+
+	/**
+	 * @param timeout
+	 *            How long to wait for the subprocess to exit, in milliseconds.
+	 * @return The exit code of the subprocess, or <tt>null</tt> if it has not
+	 *         exited within the time.
+	 */
+	@Nullable
+	private Integer awaitExit(long timeout) {
+		try {
+			if (exited.await(timeout, MILLISECONDS))
+				return exitValue;
+		} catch (InterruptedException e) {
+			// Treat as not yet exited
+		}
+		/*
+		 * Its output can outlive it if it passed its stdout on to a child
+		 * that is still running, so ask the process directly too. This is a
+		 * cheap, non-blocking check.
+		 */
+		try {
+			return subprocess.exitValue();
+		} catch (IllegalThreadStateException e) {
+			return null;
+		}
 	}
 
 	/**
@@ -347,7 +476,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		// Enable verbose logging
 		pb.command().add("-logfile");
 		pb.command().add(
-				new File(new File(workingDir, "logs"), "detail.log")
+				new File(new File(workingDir, LOG_DIR_NAME), "detail.log")
 						.getAbsolutePath());
 
 		if (securityDir != null) {
@@ -511,42 +640,29 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Override
 	public void killWorker() {
 		if (!finished && subprocess != null) {
-			final Holder<Integer> code = new Holder<>();
-			for (TimingOutTask tot : new TimingOutTask[] { new TimingOutTask() {
-				/** Check if the workflow terminated of its own accord */
-				@Override
-				public void doIt() throws IOException {
-					code.value = subprocess.exitValue();
-					accounting.runCeased();
-					buildUR(code.value == 0 ? Completed : Failed, code.value);
-				}
-			}, new TimingOutTask() {
-				/** Tell the workflow to stop */
-				@Override
-				public void doIt() throws IOException {
-					code.value = killNicely();
-					accounting.runCeased();
-					buildUR(code.value == 0 ? Completed : Aborted, code.value);
-				}
-			}, new TimingOutTask() {
-				/** Kill the workflow, kill it with fire */
-				@Override
-				public void doIt() throws IOException {
-					code.value = killHard();
-					accounting.runCeased();
-					buildUR(code.value == 0 ? Completed : Aborted, code.value);
-				}
-			} }) {
-				try {
-					tot.doOrTimeOut(DEATH_TIME);
-				} catch (Exception e) {
-				}
-				if (code.value != null)
-					break;
+			/*
+			 * Check if the workflow terminated of its own accord, and if not,
+			 * tell it to stop, and then kill it with fire.
+			 */
+			Integer code = awaitExit(0);
+			if (code == null) {
+				aborting = true;
+				code = killNicely();
 			}
-			finished = true;
-			setExitCode(code.value);
-			readyToSendEmail = true;
+			if (code == null)
+				code = killHard();
+			if (code == null) {
+				// Couldn't signal it at all? Take down what we launched
+				subprocess.destroy();
+				code = awaitExit(DEATH_TIME);
+			}
+			if (code != null)
+				noteFinished(code);
+			else
+				synchronized (this) {
+					finished = true;
+					readyToSendEmail = true;
+				}
 		}
 	}
 
@@ -578,7 +694,31 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	}
 
 	/**
-	 * Fills in the accounting information from the exit code and stderr.
+	 * Pick out the detailed timing information from a line of stderr, if it is
+	 * there. This is done as the lines are written, so that there is no need
+	 * to scan the whole of stderr (much of which may no longer be in memory)
+	 * once the run finishes.
+	 * 
+	 * @param line
+	 *            The line written.
+	 */
+	private void noteTimes(@Nonnull String line) {
+		Matcher m = TimeRE.matcher(line);
+		while (m.find())
+			for (int i = 1; i < 6; i += 2)
+				if (m.group(i + 1).equals("user"))
+					userTime = parseDuration(m.group(i));
+				else if (m.group(i + 1).equals("sys")
+						|| m.group(i + 1).equals("system"))
+					systemTime = parseDuration(m.group(i));
+				else if (m.group(i + 1).equals("real")
+						|| m.group(i + 1).equals("elapsed"))
+					realTime = parseDuration(m.group(i));
+	}
+
+	/**
+	 * Fills in the accounting information from the exit code and the timings
+	 * seen on stderr.
 	 * 
 	 * @param exitCode
 	 *            The exit code from the program.
@@ -586,19 +726,10 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	private void buildUR(@Nonnull Status status, int exitCode) {
 		try {
 			Date now = new Date();
-			long user = -1, sys = -1, real = -1;
-			Matcher m = TimeRE.matcher(stderr.toString());
+			// The timings are the last thing written; let them arrive
+			stderr.awaitClose(OUTPUT_DRAIN_TIME);
+			long user = userTime, sys = systemTime, real = realTime;
 			ur = newUR();
-			while (m.find())
-				for (int i = 1; i < 6; i += 2)
-					if (m.group(i + 1).equals("user"))
-						user = parseDuration(m.group(i));
-					else if (m.group(i + 1).equals("sys")
-							|| m.group(i + 1).equals("system"))
-						sys = parseDuration(m.group(i));
-					else if (m.group(i + 1).equals("real")
-							|| m.group(i + 1).equals("elapsed"))
-						real = parseDuration(m.group(i));
 			if (user != -1)
 				ur.addCpuDuration(user).setUsageType("user");
 			if (sys != -1)
@@ -639,8 +770,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 
 	private void signal(@Nonnull String signal) throws Exception {
 		int pid = getPID();
-		if (pid > 0
-				&& getRuntime().exec("kill -" + signal + " " + pid).waitFor() == 0)
+		if (pid > 0 && ProcessSignaller.getInstance().signal(pid, signal))
 			return;
 		throw new Exception("failed to send signal " + signal + " to process "
 				+ pid);
@@ -650,20 +780,20 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	private Integer killNicely() {
 		try {
 			signal("TERM");
-			return subprocess.waitFor();
 		} catch (Exception e) {
 			return null;
 		}
+		return awaitExit(DEATH_TIME);
 	}
 
 	@Nullable
 	private Integer killHard() {
 		try {
 			signal("QUIT");
-			return subprocess.waitFor();
 		} catch (Exception e) {
 			return null;
 		}
+		return awaitExit(DEATH_TIME);
 	}
 
 	/**
@@ -700,20 +830,23 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 			return Initialized;
 		if (finished)
 			return Finished;
-		try {
-			setExitCode(subprocess.exitValue());
-		} catch (IllegalThreadStateException e) {
-			if (stopped)
-				return Stopped;
-			return Operating;
-		}
-		finished = true;
-		readyToSendEmail = true;
-		accounting.runCeased();
-		buildUR(exitCode.intValue() == 0 ? Completed : Failed, exitCode);
+		Integer code = awaitExit(0);
+		if (code == null)
+			return stopped ? Stopped : Operating;
+		noteFinished(code);
 		return Finished;
 	}
 
+	@Override
+	public CapturedOutput readOutput(String stream, long offset, int length)
+			throws IOException {
+		if (Property.STDOUT.toString().equals(stream))
+			return stdout.read(offset, length);
+		if (Property.STDERR.toString().equals(stream))
+			return stderr.read(offset, length);
+		throw new IOException("no such output stream: " + stream);
+	}
+
 	@Override
 	public String getConfiguration() {
 		return "";
@@ -823,7 +956,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
  * 
  * @author Donal Fellows
  */
-class AsyncCopy extends Thread {
+class AsyncCopy implements Runnable {
 	@Nonnull
 	private BufferedReader from;
 	@Nonnull
@@ -842,8 +975,6 @@ class AsyncCopy extends Thread {
 				SYSTEM_ENCODING));
 		this.to = to;
 		this.pidHolder = pid;
-		setDaemon(true);
-		start();
 	}
 
 	@Override
@@ -860,6 +991,12 @@ class AsyncCopy extends Thread {
 			}
 			copy(from, to);
 		} catch (IOException e) {
+		} finally {
+			try {
+				to.close();
+			} catch (IOException e) {
+				// Ignore; nothing we can do about it
+			}
 		}
 	}
 }
@@ -869,16 +1006,14 @@ class AsyncCopy extends Thread {
  * 
  * @author Donal Fellows
  */
-class PasswordWriterThread extends Thread {
+class PasswordWriter implements Runnable {
 	private OutputStream to;
 	private char[] chars;
 
-	PasswordWriterThread(@Nonnull Process to, @Nonnull char[] chars) {
+	PasswordWriter(@Nonnull Process to, @Nonnull char[] chars) {
 		this.to = to.getOutputStream();
 		assert chars != null;
 		this.chars = chars;
-		setDaemon(true);
-		start();
 	}
 
 	@Override
@@ -0,0 +1,173 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Integer.getInteger;
+import static java.lang.System.out;
+import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.taverna.server.localworker.api.Constants.DEFAULT_EXECUTOR_THREADS;
+import static org.apache.taverna.server.localworker.api.Constants.EXECUTOR_THREADS_PROP;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+
+/**
+ * The shared pool of threads used for bounded background work in this
+ * process, such as starting workflow runs and serving bulk transfers. Tasks
+ * are handed straight to a thread, never queued, and are refused with a
+ * {@link RejectedExecutionException} when there is no thread for them; the
+ * webapp reports that to its client as the server being overloaded. Work that
+ * lasts as long as a subprocess, such as copying its output, does not belong
+ * here.
+ * <p>
+ * The number of threads is set with the <tt>taverna.executor.threads</tt>
+ * system property. The pool's statistics are published over JMX.
+ * 
+ * @author Donal Fellows
+ */
+public class BoundedExecutor implements Executor, BoundedExecutorMBean {
+	/** How long an idle thread lingers before exiting, in seconds. */
+	private static final long KEEP_ALIVE = 60;
+	private static final String OBJECT_NAME = "Taverna:group=Worker,name=Executor";
+
+	private static BoundedExecutor instance;
+
+	/**
+	 * @return The executor for this process, creating it if necessary.
+	 */
+	@Nonnull
+	public static synchronized BoundedExecutor getInstance() {
+		if (instance == null) {
+			instance = new BoundedExecutor(getInteger(EXECUTOR_THREADS_PROP,
+					DEFAULT_EXECUTOR_THREADS));
+			try {
+				getPlatformMBeanServer().registerMBean(instance,
+						new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				out.println("failed to register executor with JMX");
+				e.printStackTrace(out);
+			}
+		}
+		return instance;
+	}
+
+	private final ThreadPoolExecutor pool;
+	private final AtomicLong rejected = new AtomicLong();
+
+	private BoundedExecutor(int threads) {
+		/*
+		 * Direct handoff: a task goes to an idle thread or a new one, up to
+		 * the limit, and is otherwise refused, so it can never wait behind a
+		 * task that does not finish.
+		 */
+		pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "worker task "
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor executor) {
+						rejected.incrementAndGet();
+						throw new RejectedExecutionException(
+								"worker too busy to run background task");
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run a task in the background.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @throws RejectedExecutionException
+	 *             If there are no threads left.
+	 */
+	@Override
+	public void execute(@Nonnull Runnable task)
+			throws RejectedExecutionException {
+		pool.execute(task);
+	}
+
+	/**
+	 * Run a task in the background, returning a handle to its result.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @return The handle to the result.
+	 * @throws RejectedExecutionException
+	 *             If there are no threads left.
+	 */
+	@Nonnull
+	public <T> Future<T> submit(@Nonnull Callable<T> task)
+			throws RejectedExecutionException {
+		return pool.submit(task);
+	}
+
+	@Override
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	@Override
+	public int getPoolSize() {
+		return pool.getPoolSize();
+	}
+
+	@Override
+	public int getLargestPoolSize() {
+		return pool.getLargestPoolSize();
+	}
+
+	@Override
+	public int getMaximumPoolSize() {
+		return pool.getMaximumPoolSize();
+	}
+
+	@Override
+	public long getCompletedTaskCount() {
+		return pool.getCompletedTaskCount();
+	}
+
+	@Override
+	public long getRejectedTaskCount() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The management interface of the {@link BoundedExecutor}.
+ * 
+ * @author Donal Fellows
+ */
+public interface BoundedExecutorMBean {
+	/** @return The number of threads currently running tasks. */
+	int getActiveCount();
+
+	/** @return The number of threads currently in the pool. */
+	int getPoolSize();
+
+	/** @return The largest number of threads that have ever been in the pool. */
+	int getLargestPoolSize();
+
+	/** @return The maximum number of threads allowed in the pool. */
+	int getMaximumPoolSize();
+
+	/** @return The number of tasks that have finished. */
+	long getCompletedTaskCount();
+
+	/** @return The number of tasks refused because the pool was saturated. */
+	long getRejectedTaskCount();
+}
@@ -0,0 +1,362 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Math.min;
+import static java.lang.System.out;
+import static java.nio.channels.Channels.newOutputStream;
+import static java.nio.file.Files.isSymbolicLink;
+import static java.util.zip.Deflater.DEFAULT_COMPRESSION;
+import static java.util.zip.ZipEntry.STORED;
+import static org.apache.taverna.server.localworker.api.Constants.LOCALHOST;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.apache.taverna.server.localworker.remote.BulkTransfer;
+
+/**
+ * Serves {@linkplain BulkTransfer bulk transfers} of data between this worker
+ * process and the webapp. A single loopback server socket is shared by all
+ * transfers; each client identifies the transfer it wants by presenting the
+ * ticket it was issued over RMI.
+ * 
+ * @author Donal Fellows
+ */
+public class BulkTransferServer implements Runnable {
+	/** How long an offered transfer remains claimable, in milliseconds. */
+	private static final long TICKET_LIFETIME = 60000;
+	/** How long a client has to present its ticket, in milliseconds. */
+	private static final int TICKET_READ_TIMEOUT = 10000;
+	/** The length of a ticket, in bytes. */
+	private static final int TICKET_LENGTH = 16;
+	/** How much to buffer when receiving an upload, in bytes. */
+	private static final int UPLOAD_BUFFER_SIZE = 65536;
+	/** How much to buffer when building a ZIP, in bytes. */
+	private static final int ZIP_BUFFER_SIZE = 65536;
+
+	private static BulkTransferServer instance;
+
+	/**
+	 * @return The transfer server for this process, creating it if necessary.
+	 * @throws IOException
+	 *             If the server socket cannot be opened.
+	 */
+	@Nonnull
+	public static synchronized BulkTransferServer getInstance()
+			throws IOException {
+		if (instance == null)
+			instance = new BulkTransferServer();
+		return instance;
+	}
+
+	/**
+	 * The actual work of a transfer, done once the client has connected.
+	 */
+	public interface Job {
+		/**
+		 * @param channel
+		 *            The connection to the client. Will be closed by the
+		 *            caller once this method returns.
+		 * @throws IOException
+		 *             If anything goes wrong.
+		 */
+		void transfer(@Nonnull SocketChannel channel) throws IOException;
+	}
+
+	private final ServerSocketChannel server;
+	private final String host;
+	private final int port;
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, Job> pending = new HashMap<>();
+
+	private BulkTransferServer() throws IOException {
+		InetAddress addr = InetAddress.getByName(LOCALHOST);
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(addr, 0));
+		host = addr.getHostAddress();
+		port = server.socket().getLocalPort();
+		Thread t = new Thread(this, "bulk transfer acceptor");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Make a transfer available to be claimed by a client.
+	 * 
+	 * @param job
+	 *            What to do when the client connects.
+	 * @param length
+	 *            How many bytes will be sent to the client, or -1 if that is
+	 *            not known.
+	 * @return The descriptor to hand to the client.
+	 */
+	@Nonnull
+	public BulkTransfer offer(@Nonnull Job job, long length) {
+		byte[] ticket = new byte[TICKET_LENGTH];
+		random.nextBytes(ticket);
+		final String key = key(ticket);
+		synchronized (pending) {
+			pending.put(key, job);
+		}
+		TimeoutService.getInstance().after(TICKET_LIFETIME, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (pending) {
+					pending.remove(key);
+				}
+			}
+		});
+		return new BulkTransfer(host, port, ticket, length);
+	}
+
+	private static String key(byte[] ticket) {
+		return new BigInteger(1, ticket).toString(16);
+	}
+
+	private Job claim(byte[] ticket) {
+		synchronized (pending) {
+			return pending.remove(key(ticket));
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				out.println("bulk transfer server failed to accept");
+				e.printStackTrace(out);
+				return;
+			}
+			try {
+				BoundedExecutor.getInstance().execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				out.println("too busy to serve bulk transfer");
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// Ignore; nothing we can do about it
+				}
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		try {
+			byte[] ticket = new byte[TICKET_LENGTH];
+			channel.socket().setSoTimeout(TICKET_READ_TIMEOUT);
+			new DataInputStream(channel.socket().getInputStream())
+					.readFully(ticket);
+			channel.socket().setSoTimeout(0);
+			Job job = claim(ticket);
+			if (job == null) {
+				out.println("rejected bulk transfer with unknown ticket");
+				return;
+			}
+			job.transfer(channel);
+		} catch (IOException e) {
+			out.println("problem during bulk transfer");
+			e.printStackTrace(out);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore; nothing we can do about it
+			}
+		}
+	}
+
+	/**
+	 * Make a job that sends part of a file to the client.
+	 * 
+	 * @param file
+	 *            The file to send.
+	 * @param offset
+	 *            Where in the file to start.
+	 * @param length
+	 *            How many bytes to send.
+	 * @return The job.
+	 */
+	@Nonnull
+	public static Job readJob(@Nonnull final File file, final long offset,
+			final long length) {
+		return new Job() {
+			@Override
+			public void transfer(SocketChannel channel) throws IOException {
+				try (FileInputStream fis = new FileInputStream(file)) {
+					FileChannel fc = fis.getChannel();
+					long pos = offset;
+					long end = min(fc.size(), offset + length);
+					while (pos < end) {
+						long sent = fc.transferTo(pos, end - pos, channel);
+						if (sent <= 0)
+							break;
+						pos += sent;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Make a job that receives the contents of a file from the client. Once
+	 * the client has finished sending, the file is synchronized to disk and
+	 * the number of bytes written is sent back as an 8-byte big-endian value.
+	 * 
+	 * @param file
+	 *            The file to write.
+	 * @param append
+	 *            Whether to append to the file or to replace its contents.
+	 * @return The job.
+	 */
+	@Nonnull
+	public static Job writeJob(@Nonnull final File file, final boolean append) {
+		return new Job() {
+			@Override
+			public void transfer(SocketChannel channel) throws IOException {
+				long written = 0;
+				try (FileOutputStream fos = new FileOutputStream(file, append)) {
+					FileChannel fc = fos.getChannel();
+					ByteBuffer buffer = ByteBuffer
+							.allocateDirect(UPLOAD_BUFFER_SIZE);
+					while (channel.read(buffer) >= 0) {
+						buffer.flip();
+						while (buffer.hasRemaining())
+							written += fc.write(buffer);
+						buffer.clear();
+					}
+					fc.force(true);
+				}
+				ByteBuffer reply = ByteBuffer.allocate(8);
+				reply.putLong(written).flip();
+				while (reply.hasRemaining())
+					channel.write(reply);
+			}
+		};
+	}
+
+	/**
+	 * Make a job that sends a ZIP archive of a directory tree to the client.
+	 * 
+	 * @param dir
+	 *            The directory to archive.
+	 * @param compressionLevel
+	 *            The compression level, as used by {@link ZipOutputStream}; 0
+	 *            means that entries are to be stored uncompressed, and -1 means
+	 *            the default level.
+	 * @return The job.
+	 */
+	@Nonnull
+	public static Job zipJob(@Nonnull final File dir, final int compressionLevel) {
+		return new Job() {
+			@Override
+			public void transfer(SocketChannel channel) throws IOException {
+				ZipOutputStream zos = new ZipOutputStream(
+						new BufferedOutputStream(newOutputStream(channel),
+								ZIP_BUFFER_SIZE));
+				if (compressionLevel != 0)
+					zos.setLevel(compressionLevel < 0 ? DEFAULT_COMPRESSION
+							: compressionLevel);
+				byte[] buffer = new byte[ZIP_BUFFER_SIZE];
+				zipDirectory(dir, null, zos, compressionLevel == 0, buffer);
+				zos.finish();
+				zos.flush();
+			}
+		};
+	}
+
+	private static void zipDirectory(File dir, String base,
+			ZipOutputStream zos, boolean store, byte[] buffer)
+			throws IOException {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			throw new IOException("failed to list directory " + dir);
+		for (File f : entries) {
+			String name = (base == null ? f.getName() : base + "/"
+					+ f.getName());
+			if (isSymbolicLink(f.toPath()))
+				// Don't follow links out of the tree, or round in circles
+				continue;
+			else if (f.isDirectory()) {
+				zipDirectory(f, name, zos, store, buffer);
+				continue;
+			} else if (!f.isFile())
+				// not file or dir; skip...
+				continue;
+			ZipEntry ze = new ZipEntry(name);
+			ze.setTime(f.lastModified());
+			if (store) {
+				/*
+				 * Stored entries must have their size and CRC declared before
+				 * the data, so we need a pre-pass over the file.
+				 */
+				CRC32 crc = new CRC32();
+				long size = 0;
+				try (InputStream is = new FileInputStream(f)) {
+					int len;
+					while ((len = is.read(buffer)) >= 0) {
+						crc.update(buffer, 0, len);
+						size += len;
+					}
+				}
+				ze.setMethod(STORED);
+				ze.setSize(size);
+				ze.setCompressedSize(size);
+				ze.setCrc(crc.getValue());
+			}
+			zos.putNextEntry(ze);
+			try (InputStream is = new FileInputStream(f)) {
+				int len;
+				while ((len = is.read(buffer)) >= 0)
+					zos.write(buffer, 0, len);
+			} finally {
+				zos.closeEntry();
+			}
+		}
+	}
+}
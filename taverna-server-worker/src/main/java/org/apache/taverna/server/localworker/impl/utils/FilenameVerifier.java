@@ -20,7 +20,9 @@ package org.apache.taverna.server.localworker.impl.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -129,6 +131,35 @@ public abstract class FilenameVerifier {
 		return f;
 	}
 
+	/**
+	 * Split a path to an entry that is to be looked up, rather than created,
+	 * into its parts. The check is looser than {@link #getValidatedFile(File,
+	 * String...)}, as the entry may have been written by the workflow engine
+	 * or uploaded with a name that could not be created through this class;
+	 * only parts that would step outside the directory are refused. Empty
+	 * parts (from doubled or trailing "<tt>/</tt>"s) are skipped.
+	 * 
+	 * @param path
+	 *            The "<tt>/</tt>"-separated path.
+	 * @return The parts of the path. May be empty.
+	 * @throws IOException
+	 *             If a part is "<tt>.</tt>" or "<tt>..</tt>", or holds a
+	 *             separator or NUL character.
+	 */
+	public static List<String> getLookupParts(String path) throws IOException {
+		List<String> parts = new ArrayList<>();
+		for (String name : path.split("/")) {
+			if (name.isEmpty())
+				continue;
+			if (name.equals(".") || name.equals("..")
+					|| name.indexOf(File.separatorChar) >= 0
+					|| name.indexOf('\0') >= 0)
+				throw new IOException("illegal filename");
+			parts.add(name);
+		}
+		return parts;
+	}
+
 	/**
 	 * Create a file handle where the underlying file must exist.
 	 * 
@@ -0,0 +1,325 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.taverna.server.localworker.api.Constants.MAX_OUTPUT_READ;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
+
+/**
+ * Captures one of the output streams of a workflow engine. Only the most
+ * recent part of the stream is held in memory, in a fixed-size ring buffer, so
+ * that a run that writes a great deal does not exhaust the heap of the worker
+ * process; everything is also appended to a log file, from which the older
+ * parts can be read back. Positions in the stream are counted in bytes of its
+ * UTF-8 encoding, which are what is stored in both places.
+ * <p>
+ * Interested parties may also {@linkplain #addLineWatcher(LineWatcher) watch}
+ * the lines of the stream as they are written, rather than having to scan the
+ * whole of it afterwards.
+ * 
+ * @author Donal Fellows
+ */
+public class OutputCapture extends Writer {
+	/** The longest line that is passed to the line watchers, in characters. */
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	/**
+	 * Something that is told about each line written to a captured stream.
+	 * Watchers are called by the thread doing the writing, so they should be
+	 * quick.
+	 */
+	public interface LineWatcher {
+		/**
+		 * @param line
+		 *            The line, without its terminator. Very long lines are
+		 *            truncated.
+		 */
+		void line(@Nonnull String line);
+	}
+
+	private final byte[] ring;
+	private final List<LineWatcher> watchers = new CopyOnWriteArrayList<>();
+	private final StringBuilder currentLine = new StringBuilder();
+	/** How many bytes have been written to the stream. */
+	private long written;
+	/** How many bytes, from the start of the stream, are in the log file. */
+	private long logged;
+	@Nullable
+	private File logFile;
+	@Nullable
+	private FileOutputStream log;
+	/** The first half of a surrogate pair split across two writes. */
+	@Nullable
+	private Character pendingSurrogate;
+	private boolean closed;
+
+	/**
+	 * @param bufferSize
+	 *            How many bytes of the most recent output to keep in memory.
+	 */
+	public OutputCapture(int bufferSize) {
+		ring = new byte[max(bufferSize, 1)];
+	}
+
+	/**
+	 * Start logging the stream to a file. This must be done before anything
+	 * is written; if it is not done at all, or the file cannot be written,
+	 * only what is still in memory can be read.
+	 * 
+	 * @param file
+	 *            The file to log to. Its directory is created if necessary.
+	 */
+	public void setLogFile(@Nonnull File file) {
+		synchronized (lock) {
+			if (written > 0)
+				throw new IllegalStateException(
+						"output has already been captured");
+			try {
+				File dir = file.getParentFile();
+				if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("failed to make directory " + dir);
+				log = new FileOutputStream(file);
+				logFile = file;
+			} catch (IOException e) {
+				out.println("failed to open output log " + file
+						+ "; keeping recent output only");
+				e.printStackTrace(out);
+			}
+		}
+	}
+
+	/**
+	 * @param watcher
+	 *            The watcher to tell about each line from now on.
+	 */
+	public void addLineWatcher(@Nonnull LineWatcher watcher) {
+		watchers.add(watcher);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		synchronized (lock) {
+			if (closed)
+				throw new IOException("output stream closed");
+			for (int i = off; i < off + len; i++)
+				watch(cbuf[i]);
+			StringBuilder sb = new StringBuilder(len + 1);
+			if (pendingSurrogate != null)
+				sb.append(pendingSurrogate.charValue());
+			sb.append(cbuf, off, len);
+			pendingSurrogate = null;
+			if (sb.length() > 0
+					&& Character.isHighSurrogate(sb.charAt(sb.length() - 1))) {
+				pendingSurrogate = sb.charAt(sb.length() - 1);
+				sb.setLength(sb.length() - 1);
+			}
+			if (sb.length() > 0)
+				append(sb.toString().getBytes(UTF_8));
+		}
+	}
+
+	private void watch(char c) {
+		if (c == '\n') {
+			int end = currentLine.length();
+			if (end > 0 && currentLine.charAt(end - 1) == '\r')
+				currentLine.setLength(end - 1);
+			String line = currentLine.toString();
+			currentLine.setLength(0);
+			for (LineWatcher w : watchers)
+				w.line(line);
+		} else if (currentLine.length() < MAX_LINE_LENGTH)
+			currentLine.append(c);
+	}
+
+	private void append(byte[] bytes) {
+		if (log != null)
+			try {
+				log.write(bytes);
+				logged += bytes.length;
+			} catch (IOException e) {
+				out.println("failed to write output log " + logFile
+						+ "; keeping recent output only");
+				e.printStackTrace(out);
+				closeLog();
+			}
+		int from = max(bytes.length - ring.length, 0);
+		int pos = (int) ((written + from) % ring.length);
+		int first = min(bytes.length - from, ring.length - pos);
+		System.arraycopy(bytes, from, ring, pos, first);
+		System.arraycopy(bytes, from + first, ring, 0, bytes.length - from
+				- first);
+		written += bytes.length;
+	}
+
+	private void closeLog() {
+		try {
+			if (log != null)
+				log.close();
+		} catch (IOException e) {
+			// Ignore; nothing we can do about it
+		}
+		log = null;
+	}
+
+	/** Does nothing; output is logged as soon as it is written. */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Mark the end of the stream. Any unterminated final line is passed to the
+	 * line watchers, and the log file is closed.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			if (currentLine.length() > 0)
+				watch('\n');
+			closeLog();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait for the stream to be closed.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait, in milliseconds.
+	 * @return Whether the stream has been closed.
+	 */
+	public boolean awaitClose(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			try {
+				while (!closed) {
+					long delay = deadline - System.currentTimeMillis();
+					if (delay <= 0)
+						break;
+					lock.wait(delay);
+				}
+			} catch (InterruptedException e) {
+				// Treat as timed out
+			}
+			return closed;
+		}
+	}
+
+	/** @return How many bytes have been written to the stream. */
+	public long getLength() {
+		synchronized (lock) {
+			return written;
+		}
+	}
+
+	/**
+	 * Read a section of the stream. Recent output comes from memory; older
+	 * output is read back from the log file. If the section asked for is no
+	 * longer available at all, the result starts with the oldest output that
+	 * is.
+	 * 
+	 * @param offset
+	 *            Where to start reading, in bytes. If negative, counts back
+	 *            from the end of what has been written.
+	 * @param length
+	 *            The maximum number of bytes to read, or -1 for as much as
+	 *            possible (subject to an overall limit).
+	 * @return The section read.
+	 * @throws IOException
+	 *             If the log file cannot be read.
+	 */
+	@Nonnull
+	public CapturedOutput read(long offset, int length) throws IOException {
+		int limit = (length < 0 ? MAX_OUTPUT_READ : min(length,
+				MAX_OUTPUT_READ));
+		long total;
+		boolean complete;
+		File file;
+		int count;
+		synchronized (lock) {
+			total = written;
+			complete = closed;
+			if (offset < 0)
+				offset = max(written + offset, 0);
+			offset = min(offset, written);
+			long ringStart = max(written - ring.length, 0);
+			if (offset < ringStart && offset >= logged)
+				offset = ringStart;
+			if (offset >= ringStart) {
+				count = (int) min(limit, written - offset);
+				return new CapturedOutput(offset, fromRing(offset, count),
+						total, complete);
+			}
+			// The log file is only ever appended to, so can be read unlocked
+			file = logFile;
+			count = (int) min(limit, logged - offset);
+		}
+		byte[] data = new byte[count];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(offset);
+			raf.readFully(data);
+		}
+		return new CapturedOutput(offset, data, total, complete);
+	}
+
+	private byte[] fromRing(long offset, int count) {
+		byte[] data = new byte[count];
+		int pos = (int) (offset % ring.length);
+		int first = min(count, ring.length - pos);
+		System.arraycopy(ring, pos, data, 0, first);
+		System.arraycopy(ring, 0, data, first, count - first);
+		return data;
+	}
+
+	/**
+	 * @return The most recent output, as much as is held in memory. If the
+	 *         start of that falls part way through a character, the partial
+	 *         character is omitted.
+	 */
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			long start = max(written - ring.length, 0);
+			byte[] data = fromRing(start, (int) (written - start));
+			int skip = 0;
+			if (start > 0)
+				while (skip < data.length && (data[skip] & 0xC0) == 0x80)
+					skip++;
+			return new String(data, skip, data.length - skip, UTF_8);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.out;
+import static org.apache.taverna.server.localworker.api.Constants.SYSTEM_ENCODING;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Sends signals to processes. Java offers no way of signalling an arbitrary
+ * process, so this keeps a single long-lived shell as a co-process and asks it
+ * to use its built-in <tt>kill</tt>. That costs one fork for the lifetime of
+ * this process, instead of a fork and exec of <tt>kill</tt> for every signal
+ * sent.
+ * 
+ * @author Donal Fellows
+ */
+public class ProcessSignaller {
+	private static final String SHELL = "/bin/sh";
+	private static final Pattern SIGNAL_NAME = Pattern.compile("^[A-Z0-9]+$");
+	private static ProcessSignaller instance;
+
+	/**
+	 * @return The signaller for this process, creating it if necessary.
+	 */
+	@Nonnull
+	public static synchronized ProcessSignaller getInstance() {
+		if (instance == null)
+			instance = new ProcessSignaller();
+		return instance;
+	}
+
+	private Process shell;
+	private Writer toShell;
+	private BufferedReader fromShell;
+
+	private ProcessSignaller() {
+	}
+
+	private void startShell() throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(SHELL);
+		pb.redirectErrorStream(true);
+		shell = pb.start();
+		toShell = new OutputStreamWriter(shell.getOutputStream(),
+				SYSTEM_ENCODING);
+		fromShell = new BufferedReader(new InputStreamReader(
+				shell.getInputStream(), SYSTEM_ENCODING));
+	}
+
+	private void stopShell() {
+		if (shell != null)
+			shell.destroy();
+		shell = null;
+		toShell = null;
+		fromShell = null;
+	}
+
+	private boolean ask(int pid, String signal) throws IOException {
+		if (shell == null)
+			startShell();
+		toShell.write("kill -" + signal + " " + pid + " 2>/dev/null; echo $?\n");
+		toShell.flush();
+		String reply = fromShell.readLine();
+		if (reply == null)
+			throw new IOException("signalling shell exited");
+		return reply.trim().equals("0");
+	}
+
+	/**
+	 * Send a signal to a process.
+	 * 
+	 * @param pid
+	 *            The ID of the process to signal.
+	 * @param signal
+	 *            The name of the signal, without the <tt>SIG</tt> prefix
+	 *            (e.g., <tt>TERM</tt>).
+	 * @return Whether the signal was delivered.
+	 * @throws IOException
+	 *             If the shell could not be (re)started.
+	 */
+	public synchronized boolean signal(int pid, @Nonnull String signal)
+			throws IOException {
+		if (pid <= 0 || !SIGNAL_NAME.matcher(signal).matches())
+			throw new IllegalArgumentException("bad signal request");
+		try {
+			return ask(pid, signal);
+		} catch (IOException e) {
+			// The shell died under us; try again with a new one
+			out.println("restarting signalling shell: " + e.getMessage());
+			stopShell();
+			return ask(pid, signal);
+		}
+	}
+}
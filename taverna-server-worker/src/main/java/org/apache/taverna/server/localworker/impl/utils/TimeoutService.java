@@ -0,0 +1,246 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.System.out;
+import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+
+/**
+ * Imposes time limits on tasks. The tasks themselves run on the shared
+ * {@link BoundedExecutor}; the deadlines are tracked by a single scheduler
+ * thread, so bounding a wait never needs a thread of its own. The service also
+ * runs delayed actions for other parts of this process. How often time limits
+ * are actually reached is published over JMX.
+ * 
+ * @author Donal Fellows
+ */
+public class TimeoutService implements TimeoutServiceMBean {
+	private static final String OBJECT_NAME = "Taverna:group=Worker,name=Timeouts";
+
+	private static TimeoutService instance;
+
+	/**
+	 * @return The timeout service for this process, creating it if necessary.
+	 */
+	@Nonnull
+	public static synchronized TimeoutService getInstance() {
+		if (instance == null) {
+			instance = new TimeoutService();
+			try {
+				getPlatformMBeanServer().registerMBean(instance,
+						new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				out.println("failed to register timeout service with JMX");
+				e.printStackTrace(out);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * A piece of work to do with a time limit.
+	 */
+	public interface Task {
+		/**
+		 * @throws Exception
+		 *             If anything goes wrong; passed on to the caller if the
+		 *             task finishes in time.
+		 */
+		void doIt() throws Exception;
+	}
+
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final AtomicLong tasks = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong cancellations = new AtomicLong();
+
+	private TimeoutService() {
+		scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "worker timeouts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Don't let cancelled deadlines accumulate in the queue
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * A task with a deadline. When the task finishes, the deadline is
+	 * withdrawn; when the deadline passes first, the task is counted as timed
+	 * out and is optionally cancelled.
+	 */
+	private class DeadlineTask extends FutureTask<Void> {
+		private final boolean cancelOnTimeout;
+		private volatile ScheduledFuture<?> deadline;
+
+		DeadlineTask(final Task task, boolean cancelOnTimeout) {
+			super(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					task.doIt();
+					return null;
+				}
+			});
+			this.cancelOnTimeout = cancelOnTimeout;
+		}
+
+		void startClock(long timeout) {
+			deadline = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone())
+						return;
+					timeouts.incrementAndGet();
+					if (cancelOnTimeout && cancel(true))
+						cancellations.incrementAndGet();
+				}
+			}, timeout, MILLISECONDS);
+			// Might have finished before the clock started
+			if (isDone())
+				deadline.cancel(false);
+		}
+
+		@Override
+		protected void done() {
+			ScheduledFuture<?> d = deadline;
+			if (d != null)
+				d.cancel(false);
+		}
+	}
+
+	/**
+	 * Start a task with a time limit, without waiting for it.
+	 * 
+	 * @param timeout
+	 *            How long the task may take, in milliseconds.
+	 * @param cancelOnTimeout
+	 *            Whether to interrupt the task if it overruns, or to leave it
+	 *            to complete in the background.
+	 * @param task
+	 *            What to do.
+	 * @return The handle to the task.
+	 * @throws RejectedExecutionException
+	 *             If there is no capacity to run the task.
+	 */
+	@Nonnull
+	public Future<Void> start(long timeout, boolean cancelOnTimeout,
+			@Nonnull Task task) throws RejectedExecutionException {
+		DeadlineTask dt = new DeadlineTask(task, cancelOnTimeout);
+		BoundedExecutor.getInstance().execute(dt);
+		tasks.incrementAndGet();
+		dt.startClock(timeout);
+		return dt;
+	}
+
+	/**
+	 * Do a task with a time limit, waiting for it to finish or for the time
+	 * to run out, whichever happens first.
+	 * 
+	 * @param timeout
+	 *            How long the task may take, in milliseconds.
+	 * @param cancelOnTimeout
+	 *            Whether to interrupt the task if it overruns, or to leave it
+	 *            to complete in the background.
+	 * @param task
+	 *            What to do.
+	 * @return Whether the task finished in time. If the waiting thread is
+	 *         interrupted, this is <tt>false</tt> and the thread's interrupt
+	 *         status is set again; the task is treated as if it overran.
+	 * @throws Exception
+	 *             Whatever the task threw, if it finished in time.
+	 */
+	public boolean runWithin(long timeout, boolean cancelOnTimeout,
+			@Nonnull Task task) throws Exception {
+		Future<Void> f = start(timeout, cancelOnTimeout, task);
+		try {
+			f.get(timeout, MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			// Stop waiting, but leave the interrupt for our caller to see
+			if (cancelOnTimeout)
+				f.cancel(true);
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} catch (CancellationException e) {
+			// The deadline got there before we did
+			return false;
+		}
+	}
+
+	/**
+	 * Arrange for something to happen after a delay.
+	 * 
+	 * @param delay
+	 *            How long to wait, in milliseconds.
+	 * @param action
+	 *            What to do. Should be quick, as it runs on the scheduler's
+	 *            thread.
+	 * @return The handle to the delayed action, which may be used to cancel
+	 *         it.
+	 */
+	@Nonnull
+	public ScheduledFuture<?> after(long delay, @Nonnull Runnable action) {
+		return scheduler.schedule(action, delay, MILLISECONDS);
+	}
+
+	@Override
+	public long getTaskCount() {
+		return tasks.get();
+	}
+
+	@Override
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	@Override
+	public long getCancellationCount() {
+		return cancellations.get();
+	}
+
+	@Override
+	public int getPendingCount() {
+		return scheduler.getQueue().size();
+	}
+}
@@ -1,3 +1,5 @@
+/*
+ */
 package org.apache.taverna.server.localworker.impl.utils;
 /*
  * Licensed to the Apache Software Foundation (ASF) under one or more
@@ -16,41 +18,21 @@ package org.apache.taverna.server.localworker.impl.utils;
  * limitations under the License.
  */
 
-import javax.annotation.Nullable;
-
 /**
- * A class that handles running a task that can take some time.
+ * The management interface of the {@link TimeoutService}.
  * 
  * @author Donal Fellows
- * 
  */
-public abstract class TimingOutTask extends Thread {
-	public abstract void doIt() throws Exception;
-
-	@Nullable
-	private Exception ioe;
+public interface TimeoutServiceMBean {
+	/** @return The number of tasks run with a time limit. */
+	long getTaskCount();
 
-	@Override
-	public final void run() {
-		try {
-			doIt();
-		} catch (Exception ioe) {
-			this.ioe = ioe;
-		}
-	}
+	/** @return The number of tasks that overran their time limit. */
+	long getTimeoutCount();
 
-	public TimingOutTask() {
-		this.setDaemon(true);
-	}
+	/** @return The number of overrunning tasks that were cancelled. */
+	long getCancellationCount();
 
-	public void doOrTimeOut(long timeout) throws Exception {
-		start();
-		try {
-			join(timeout);
-		} catch (InterruptedException e) {
-			interrupt();
-		}
-		if (ioe != null)
-			throw ioe;
-	}
-}
\ No newline at end of file
+	/** @return The number of delayed actions waiting to fire. */
+	int getPendingCount();
+}
@@ -0,0 +1,293 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.lang.Integer.getInteger;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.getProperty;
+import static java.lang.System.out;
+import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.taverna.server.localworker.api.Constants.DEFAULT_TRASH_THREADS;
+import static org.apache.taverna.server.localworker.api.Constants.TRASH_DIR_NAME;
+import static org.apache.taverna.server.localworker.api.Constants.TRASH_THREADS_PROP;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+
+/**
+ * Deletes the working directories of destroyed runs in the background. A
+ * directory is first renamed into a trash area on the same filesystem, which
+ * is quick and atomic, so that destroying a run does not have to wait for
+ * what may be a very large tree of files to be deleted. The trash is then
+ * deleted by a few threads of its own, so that the disk is not swamped. Each
+ * process has a trash area of its own, as several processes, possibly running
+ * as different users, share the directory that holds the working directories.
+ * Trash areas left behind by earlier processes of the same user that have
+ * since died are deleted as soon as a trash area is next needed. How much is
+ * waiting and how much has been reclaimed are published over JMX.
+ * <p>
+ * The number of deleting threads is set with the <tt>taverna.trash.threads</tt>
+ * system property.
+ * 
+ * @author Donal Fellows
+ */
+public class TrashCollector implements TrashCollectorMBean {
+	/** How long an idle thread lingers before exiting, in seconds. */
+	private static final long KEEP_ALIVE = 60;
+	private static final String OBJECT_NAME = "Taverna:group=Worker,name=Trash";
+
+	private static TrashCollector instance;
+
+	/**
+	 * @return The trash collector for this process, creating it if necessary.
+	 */
+	@Nonnull
+	public static synchronized TrashCollector getInstance() {
+		if (instance == null) {
+			instance = new TrashCollector(getInteger(TRASH_THREADS_PROP,
+					DEFAULT_TRASH_THREADS));
+			try {
+				getPlatformMBeanServer().registerMBean(instance,
+						new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				out.println("failed to register trash collector with JMX");
+				e.printStackTrace(out);
+			}
+		}
+		return instance;
+	}
+
+	private final String trashPrefix = TRASH_DIR_NAME + "-"
+			+ getProperty("user.name") + "-";
+	private final String pid = processId();
+	private final ThreadPoolExecutor pool;
+	private final Set<File> trashAreas = new HashSet<>();
+	private final AtomicInteger serial = new AtomicInteger();
+	private final AtomicInteger backlog = new AtomicInteger();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private TrashCollector(int threads) {
+		pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "trash collector "
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get rid of a directory and everything in it. The directory is gone from
+	 * its original location when this method returns, but the space it uses
+	 * is only reclaimed later.
+	 * 
+	 * @param dir
+	 *            The directory to get rid of.
+	 * @throws IOException
+	 *             If the directory can neither be moved to the trash nor
+	 *             deleted.
+	 */
+	public void discard(@Nonnull File dir) throws IOException {
+		File trash = trashArea(dir.getParentFile());
+		File target = new File(trash, dir.getName() + "-"
+				+ currentTimeMillis() + "-" + serial.incrementAndGet());
+		try {
+			Files.move(dir.toPath(), target.toPath(), ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Probably not on the same filesystem; do it the slow way
+			out.println("cannot move " + dir + " to trash (" + e
+					+ "); deleting in place");
+			forceDelete(dir);
+			return;
+		}
+		collect(target);
+	}
+
+	private File trashArea(File parent) throws IOException {
+		File trash = new File(parent, trashPrefix + pid);
+		synchronized (trashAreas) {
+			if (trashAreas.add(trash)) {
+				forceMkdir(trash);
+				collectLeftovers(parent);
+			}
+		}
+		return trash;
+	}
+
+	/**
+	 * Delete the trash areas left behind by processes of the same user that
+	 * are no longer running.
+	 */
+	private void collectLeftovers(File parent) {
+		File[] areas = parent.listFiles();
+		if (areas == null)
+			return;
+		for (File area : areas) {
+			String name = area.getName();
+			if (!name.startsWith(trashPrefix) || !area.isDirectory())
+				continue;
+			String owner = name.substring(trashPrefix.length());
+			if (owner.equals(pid) || isRunning(owner))
+				continue;
+			collect(area);
+		}
+	}
+
+	/** @return The ID of this process, or a unique substitute for it. */
+	private static String processId() {
+		// The runtime's name is "pid@host" on all the JVMs that matter
+		String name = getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		if (at > 0)
+			return name.substring(0, at);
+		return "x" + currentTimeMillis();
+	}
+
+	/**
+	 * Whether a process is still running. If that cannot be found out, it is
+	 * assumed to be, so that its trash is left alone.
+	 */
+	private static boolean isRunning(String pid) {
+		if (!pid.matches("[0-9]+"))
+			return true;
+		if (new File("/proc/self").isDirectory())
+			return new File("/proc", pid).exists();
+		try {
+			return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+		} catch (IOException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+
+	private void collect(final File tree) {
+		backlog.incrementAndGet();
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long bytes = delete(tree.toPath());
+					deleted.incrementAndGet();
+					reclaimed.addAndGet(bytes);
+					out.println("deleted " + tree + " (" + bytes + " bytes; "
+							+ (backlog.get() - 1) + " more to delete)");
+				} catch (IOException e) {
+					failures.incrementAndGet();
+					out.println("problem deleting " + tree);
+					e.printStackTrace(out);
+				} finally {
+					backlog.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delete a tree. Symbolic links are deleted, not followed. Anything that
+	 * cannot be deleted is counted and skipped, so that as much as possible is
+	 * reclaimed.
+	 * 
+	 * @return The number of bytes of file content deleted.
+	 */
+	private long delete(Path root) throws IOException {
+		final long[] bytes = new long[1];
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				try {
+					Files.delete(file);
+					if (attrs.isRegularFile())
+						bytes[0] += attrs.size();
+				} catch (IOException e) {
+					failures.incrementAndGet();
+				}
+				return CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				failures.incrementAndGet();
+				return CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+				try {
+					Files.delete(dir);
+				} catch (IOException e2) {
+					failures.incrementAndGet();
+				}
+				return CONTINUE;
+			}
+		});
+		return bytes[0];
+	}
+
+	@Override
+	public int getBacklogCount() {
+		return backlog.get();
+	}
+
+	@Override
+	public long getDeletedCount() {
+		return deleted.get();
+	}
+
+	@Override
+	public long getBytesReclaimed() {
+		return reclaimed.get();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failures.get();
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ */
+package org.apache.taverna.server.localworker.impl.utils;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The management interface of the {@link TrashCollector}.
+ * 
+ * @author Donal Fellows
+ */
+public interface TrashCollectorMBean {
+	/** @return The number of discarded directories not yet deleted. */
+	int getBacklogCount();
+
+	/** @return The number of discarded directories deleted. */
+	long getDeletedCount();
+
+	/** @return The number of bytes of file content deleted. */
+	long getBytesReclaimed();
+
+	/** @return The number of files or directories that could not be deleted. */
+	long getFailureCount();
+}
@@ -42,11 +42,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.apache.taverna.server.localworker.api.Worker;
 import org.apache.taverna.server.localworker.api.WorkerFactory;
+import org.apache.taverna.server.localworker.remote.CapturedOutput;
 import org.apache.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.apache.taverna.server.localworker.remote.ImplementationException;
 import org.apache.taverna.server.localworker.remote.RemoteDirectory;
 import org.apache.taverna.server.localworker.remote.RemoteInput;
 import org.apache.taverna.server.localworker.remote.RemoteListener;
+import org.apache.taverna.server.localworker.remote.RemoteSingleRun;
 import org.apache.taverna.server.localworker.remote.RemoteStatus;
 import org.apache.taverna.server.localworker.server.UsageRecordReceiver;
 
@@ -95,6 +97,13 @@ public class LocalWorkerTest {
 			};
 		}
 
+		@Override
+		public CapturedOutput readOutput(String stream, long offset,
+				int length) {
+			events.add("readOutput[" + stream + "]");
+			return new CapturedOutput(0, new byte[0], 0, false);
+		}
+
 		@Override
 		public RemoteStatus getWorkerStatus() {
 			events.add("status=" + returnThisStatus);
@@ -163,6 +172,10 @@ public class LocalWorkerTest {
 		public Worker makeInstance() throws Exception {
 			return new DummyWorker();
 		}
+
+		@Override
+		public void runDestroyed(String id, RemoteSingleRun run) {
+		}
 	};
 
 	@Before